@@ -0,0 +1,41 @@
+package clustering;
+
+import models.Cluster;
+import models.Point;
+
+import java.util.List;
+
+/**
+ * Read access to a hierarchy of clusters, either built in memory by HGC or mapped from a snapshot.
+ */
+public interface ClusterHierarchy {
+
+    /**
+     * get clusters within certain window and zoom level
+     *
+     * @param bbox the bounding box of the window
+     * @param zoom the zoom level
+     * @return all the clusters within this bounding box and this zoom level
+     */
+    List<Cluster> getClusters(double[] bbox, int zoom);
+
+    /**
+     * get the parent drawPoints in certain zoom level
+     *
+     * @param cluster the input drawPoints
+     * @param zoom    the zoom level of its parent
+     * @return the parent drawPoints of this drawPoints
+     */
+    Cluster parentCluster(Cluster cluster, int zoom);
+
+    /**
+     * get the parent drawPoints in certain zoom level of a point given in longitude and latitude
+     *
+     * @param point the longitude and latitude of a point of the edges
+     * @param zoom  the zoom level of its parent
+     * @return the parent drawPoints of this point
+     */
+    default Cluster parentCluster(Point point, int zoom) {
+        return parentCluster(new Cluster(new Point(Clustering.lngX(point.getX()), Clustering.latY(point.getY()))), zoom);
+    }
+}
@@ -2,13 +2,14 @@ package clustering;
 
 import akka.util.HashCode;
 import models.*;
+import utils.PropertiesUtil;
 import smile.plot.swing.Grid;
 
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-public class Clustering {
+public class Clustering implements ClusterHierarchy {
 
     // max longitude
     private static final int MAX_LONGITUDE = 180;
@@ -27,6 +28,18 @@ public class Clustering {
     //percentage to measure the similarity of two
     // clusters having most edges going the same direction
     private static final double PERCENTAGE_OF_SAME_DIRECTION_EDGES = 0.6;
+    // spatial indexes of a zoom level
+    private static final String KDTREE = "kdtree";
+    private static final String GRID = "grid";
+    private static final String HASH = "hash";
+    private static final String AUTO = "auto";
+    // number of points from which the density of an automatically indexed zoom level is measured
+    private static final int AUTO_MIN_SIZE = 1000;
+    // points per occupied cell of the zoom radius under which a zoom level is sparse, over which it is dense
+    private static final double AUTO_SPARSE = 2;
+    private static final double AUTO_DENSE = 32;
+    // fraction of the edges under a merged cluster from which the meta-edge tables are rebuilt instead of updated
+    private static final double META_EDGES_REBUILD_FRACTION = 0.125;
     // min zoom level in clustering tree
     private int minZoom;
     // max zoom level in clustering tree
@@ -35,9 +48,88 @@ public class Clustering {
     private double radius;
     //maximum possible radius for the range search
     private double max_radius;
-    // kd-trees in different zoom level
-    private KdTree[] trees;
+    // spatial indexes in different zoom level
+    private SpatialIndex[] trees;
+    // configured spatial index of each zoom level
+    private String[] indexKinds;
+    // number of points of each automatically indexed zoom level when its density was last measured
+    private int[] measuredSizes;
     private HashMap<BucketCode, List<HyperEdge>>[] hyperEdges;
+    // point of the max zoom level of each longitude and latitude of the edges
+    private HashMap<Point, Leaf> leaves = new HashMap<>();
+    // incremented whenever loading or removing edges changes the parents of the clusters
+    private int version;
+    // edge of each point of the max zoom level, by both of its points
+    private IdentityHashMap<Cluster, LeafEdge> leafEdges = new IdentityHashMap<>();
+    // weights of the edges between the clusters of the zoom levels drawn so far, by their source and by their target,
+    // null until a zoom level is drawn
+    private MetaEdgeTable[] metaEdges;
+    // fingerprint of the loaded edges and their weights, equal for hierarchies of the same data
+    private long dataVersion;
+
+    /**
+     * A point of the max zoom level with its ancestor in the last zoom level asked for,
+     * valid until the hierarchy changes
+     */
+    private static class Leaf {
+        private Cluster point;
+        private Cluster ancestor;
+        private int zoom;
+        private int version = -1;
+
+        private Leaf(Cluster point) {
+            this.point = point;
+        }
+    }
+
+    /**
+     * An edge loaded in the hierarchy, between two points of the max zoom level
+     */
+    private static class LeafEdge {
+        private Cluster from;
+        private Cluster to;
+        private int weight;
+
+        private LeafEdge(Cluster from, Cluster to, int weight) {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * weights of the edges between the clusters of a zoom level, by their source and by their target,
+     * both sharing the counter of an edge
+     */
+    private static class MetaEdgeTable {
+        private final IdentityHashMap<Cluster, IdentityHashMap<Cluster, int[]>> out = new IdentityHashMap<>();
+        private final IdentityHashMap<Cluster, IdentityHashMap<Cluster, int[]>> in = new IdentityHashMap<>();
+
+        /**
+         * add a weight to the edge between two clusters, dropping the edge once its weight is gone
+         */
+        private void update(Cluster from, Cluster to, int weight) {
+            if (from == null || to == null || from == to)
+                return;
+            IdentityHashMap<Cluster, int[]> targets = out.computeIfAbsent(from, c -> new IdentityHashMap<>());
+            int[] total = targets.get(to);
+            if (total == null) {
+                total = new int[1];
+                targets.put(to, total);
+                in.computeIfAbsent(to, c -> new IdentityHashMap<>()).put(from, total);
+            }
+            total[0] += weight;
+            if (total[0] <= 0) {
+                targets.remove(to);
+                if (targets.isEmpty())
+                    out.remove(from);
+                IdentityHashMap<Cluster, int[]> sources = in.get(to);
+                sources.remove(from);
+                if (sources.isEmpty())
+                    in.remove(to);
+            }
+        }
+    }
 
     /**
      * Create an instance of hierarchical greedy clustering
@@ -50,14 +142,126 @@ public class Clustering {
         this.maxZoom = maxZoom;
         this.radius = 40;
         this.max_radius = radius * 2;
-        trees = new KdTree[maxZoom + 2];
+        trees = new SpatialIndex[maxZoom + 2];
         hyperEdges = new HashMap[maxZoom + 2];
+        indexKinds = indexKinds(maxZoom + 2);
+        measuredSizes = new int[maxZoom + 2];
+        metaEdges = new MetaEdgeTable[maxZoom + 2];
         for (int z = minZoom; z <= maxZoom + 1; z++) {
-            trees[z] = new KdTree();// GridIndex(getZoomRadius(radius, z));
+            trees[z] = newIndex(indexKinds[z], z);
             hyperEdges[z] = new HashMap<>();
         }
     }
 
+    /**
+     * read the spatial index of each zoom level from spatialIndex, the default,
+     * and spatialIndexZooms, a list of ranges of zoom levels with their index such as 0-9:kdtree,10-18:hash
+     *
+     * @param levels number of zoom levels
+     * @return the configured index of each zoom level
+     */
+    private static String[] indexKinds(int levels) {
+        String[] kinds = new String[levels];
+        String kind = PropertiesUtil.getSpatialIndex();
+        Arrays.fill(kinds, kind == null || kind.isEmpty() ? KDTREE : kind.trim().toLowerCase());
+        String zooms = PropertiesUtil.getSpatialIndexZooms();
+        if (zooms == null || zooms.trim().isEmpty())
+            return kinds;
+        for (String range : zooms.split(",")) {
+            try {
+                String[] parts = range.trim().split(":");
+                String[] bounds = parts[0].split("-");
+                int from = Integer.parseInt(bounds[0].trim());
+                int to = Integer.parseInt(bounds[bounds.length - 1].trim());
+                for (int z = Math.max(0, from); z <= Math.min(levels - 1, to); z++) {
+                    kinds[z] = parts[1].trim().toLowerCase();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        return kinds;
+    }
+
+    /**
+     * create the spatial index of a zoom level, an automatic one starts as a kd-tree.
+     * A grid finer than its maximum resolution would be coarsened, such a level gets a hash grid of the zoom radius instead
+     *
+     * @param kind kdtree, grid, hash or auto
+     * @param z    the zoom level
+     * @return the empty index
+     */
+    private SpatialIndex newIndex(String kind, int z) {
+        switch (kind) {
+            case GRID:
+                if (GridIndex.fits(0, 0, 1, 1, getZoomRadius(radius, z)))
+                    return new GridIndex(0, 0, 1, 1, getZoomRadius(radius, z));
+                // falls through to a hash grid
+            case HASH:
+                return new HashGridIndex(getZoomRadius(radius, z));
+            default:
+                return new KdTree();
+        }
+    }
+
+    /**
+     * move the points of the automatically indexed zoom levels that grew to the index suiting their density:
+     * a hash grid with cells of the zoom radius when sparse, a kd-tree when dense
+     */
+    private void adaptIndexes() {
+        for (int z = minZoom; z <= maxZoom + 1; z++) {
+            int size = trees[z].size();
+            if (!AUTO.equals(indexKinds[z]) || size < AUTO_MIN_SIZE || size < measuredSizes[z] * 2)
+                continue;
+            measuredSizes[z] = size;
+            double step = getZoomRadius(radius, z);
+            double pointsPerCell;
+            if (trees[z] instanceof HashGridIndex) {
+                pointsPerCell = (double) size / ((HashGridIndex) trees[z]).cellCount();
+            } else {
+                Set<Long> cells = new HashSet<>();
+                for (Cluster c : trees[z].values()) {
+                    cells.add(((long) Math.floor(c.getX() / step) << 32) | ((long) Math.floor(c.getY() / step) & 0xffffffffL));
+                }
+                pointsPerCell = (double) size / cells.size();
+            }
+            SpatialIndex index = null;
+            if (pointsPerCell <= AUTO_SPARSE && !(trees[z] instanceof HashGridIndex)) {
+                index = new HashGridIndex(step);
+            } else if (pointsPerCell >= AUTO_DENSE && !(trees[z] instanceof KdTree)) {
+                index = new KdTree();
+            }
+            if (index != null) {
+                for (Cluster c : trees[z].values()) {
+                    index.insert(c);
+                }
+                trees[z] = index;
+            }
+        }
+    }
+
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * get all the clusters of a zoom level
+     *
+     * @param zoom the zoom level, maxZoom + 1 for the points
+     * @return the clusters of this zoom level
+     */
+    public List<Cluster> getClusters(int zoom) {
+        return trees[limitZoom(zoom)].values();
+    }
+
     /**
      * set the range search radius
      *
@@ -66,6 +270,11 @@ public class Clustering {
     public void setRadius(double radius) {
         this.radius = radius;
         this.max_radius = radius * 2;
+        // size the grids of the empty indexes to the new radius
+        for (int z = minZoom; z <= maxZoom + 1; z++) {
+            if (trees[z].size() == 0)
+                trees[z] = newIndex(indexKinds[z], z);
+        }
     }
 
     /**
@@ -116,7 +325,7 @@ public class Clustering {
      *
      * @param edges input of edges
      */
-    public void load(HashMap<Edge, Integer> edges) {
+    public synchronized void load(HashMap<Edge, Integer> edges) {
         for (Edge edge : edges.keySet()) {
             Point from = edge.getFromPoint();
             Point to = edge.getToPoint();
@@ -129,9 +338,216 @@ public class Clustering {
 //            insert(fromCluster);
 //            insert(toCluster);
            insert(fromCluster, toCluster);
+            leaves.putIfAbsent(from, new Leaf(fromCluster));
+            leaves.putIfAbsent(to, new Leaf(toCluster));
+            LeafEdge leafEdge = new LeafEdge(fromCluster, toCluster, edges.get(edge));
+            leafEdges.put(fromCluster, leafEdge);
+            leafEdges.put(toCluster, leafEdge);
+            updateMetaEdges(leafEdge, leafEdge.weight);
+            dataVersion += fingerprint(edge, leafEdge.weight);
+        }
+        version++;
+        adaptIndexes();
+    }
+
+    /**
+     * Remove the edges of a batch loaded before.
+     * The counts and centroids of the ancestors of their points are updated up to the root,
+     * the clusters left without points are removed from their zoom level,
+     * and the links between clusters that no remaining edge supports are pruned along with their hyper edges.
+     *
+     * @param edges edges to remove
+     */
+    public synchronized void remove(HashMap<Edge, Integer> edges) {
+        // links between the ancestors of the removed edges, that may not be supported by another edge
+        Map<Cluster, Set<Cluster>> links = new IdentityHashMap<>();
+        Set<Cluster> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Edge edge : edges.keySet()) {
+            Cluster[] points = findLeaves(edge);
+            if (points == null)
+                continue;
+            LeafEdge leafEdge = leafEdges.remove(points[0]);
+            if (leafEdge != null) {
+                leafEdges.remove(points[1]);
+                updateMetaEdges(leafEdge, -leafEdge.weight);
+                dataVersion -= fingerprint(edge, leafEdge.weight);
+            }
+            Cluster[] fromAncestors = ancestors(points[0]);
+            Cluster[] toAncestors = ancestors(points[1]);
+            for (int z = minZoom; z <= maxZoom; z++) {
+                if (fromAncestors[z] != null && toAncestors[z] != null && fromAncestors[z] != toAncestors[z])
+                    links.computeIfAbsent(fromAncestors[z], c -> Collections.newSetFromMap(new IdentityHashMap<>()))
+                            .add(toAncestors[z]);
+            }
+            points[0].getTargetClusters().remove(points[1]);
+            points[1].getTargetClusters().remove(points[0]);
+            detach(points[0], removed);
+            detach(points[1], removed);
+            unindexLeaf(edge.getFromPoint(), points[0]);
+            unindexLeaf(edge.getToPoint(), points[1]);
+        }
+        version++;
+        // keep the links still supported by a remaining edge, in one pass over the points
+        if (!links.isEmpty()) {
+            for (Cluster point : trees[maxZoom + 1].values()) {
+                Cluster[] fromAncestors = ancestors(point);
+                for (Cluster target : point.getTargetClusters()) {
+                    Cluster[] toAncestors = ancestors(target);
+                    for (int z = minZoom; z <= maxZoom; z++) {
+                        Set<Cluster> targets = links.get(fromAncestors[z]);
+                        if (targets != null)
+                            targets.remove(toAncestors[z]);
+                    }
+                }
+            }
+        }
+        Map<Cluster, Set<Cluster>> dropped = new IdentityHashMap<>();
+        for (Map.Entry<Cluster, Set<Cluster>> entry : links.entrySet()) {
+            Cluster from = entry.getKey();
+            for (Cluster to : entry.getValue()) {
+                if (removed.contains(from) || removed.contains(to))
+                    continue;
+                from.getTargetClusters().remove(to);
+                to.getTargetClusters().remove(from);
+                dropped.computeIfAbsent(from, c -> Collections.newSetFromMap(new IdentityHashMap<>())).add(to);
+            }
+        }
+        if (removed.isEmpty() && dropped.isEmpty())
+            return;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            Iterator<List<HyperEdge>> buckets = hyperEdges[z].values().iterator();
+            while (buckets.hasNext()) {
+                List<HyperEdge> bucket = buckets.next();
+                bucket.removeIf(hyperEdge -> {
+                    Point from = hyperEdge.getFromPoint();
+                    Point to = hyperEdge.getToPoint();
+                    return removed.contains(from) || removed.contains(to)
+                            || (dropped.containsKey(from) && dropped.get(from).contains(to))
+                            || (dropped.containsKey(to) && dropped.get(to).contains(from));
+                });
+                if (bucket.isEmpty())
+                    buckets.remove();
+            }
         }
     }
 
+    /**
+     * find the points inserted for an edge
+     *
+     * @param edge the edge in longitude and latitude
+     * @return the source and target points, null if the edge is not in the hierarchy
+     */
+    private Cluster[] findLeaves(Edge edge) {
+        Cluster toPoint = new Cluster(new Point(lngX(edge.getToX()), latY(edge.getToY())));
+        for (Cluster from : trees[maxZoom + 1].findAll(new Cluster(new Point(lngX(edge.getFromX()), latY(edge.getFromY()))))) {
+            for (Cluster to : from.getTargetClusters()) {
+                if (to.equals(toPoint))
+                    return new Cluster[]{from, to};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param edge   an edge in longitude and latitude
+     * @param weight its weight
+     * @return the share of the edge in the data version, summed so that it does not depend on the loading order
+     */
+    private static long fingerprint(Edge edge, int weight) {
+        long hash = Objects.hash(edge.getFromX(), edge.getFromY(), edge.getToX(), edge.getToY());
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (hash ^ (hash >>> 33)) * weight;
+    }
+
+    /**
+     * @return the version of the loaded data, changing whenever edges are loaded or removed
+     * and the same for hierarchies of the same edges
+     */
+    public synchronized long getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * point another duplicate of a removed point from its longitude and latitude, if any is left
+     *
+     * @param lngLat longitude and latitude of the point
+     * @param point  the removed point
+     */
+    private void unindexLeaf(Point lngLat, Cluster point) {
+        Leaf leaf = leaves.get(lngLat);
+        if (leaf == null || leaf.point != point)
+            return;
+        Cluster duplicate = trees[maxZoom + 1].findPoint(point);
+        if (duplicate == null) {
+            leaves.remove(lngLat);
+        } else {
+            leaf.point = duplicate;
+            leaf.version = -1;
+        }
+    }
+
+    /**
+     * @param cluster a cluster
+     * @return the cluster and its ancestors indexed by their zoom level
+     */
+    private Cluster[] ancestors(Cluster cluster) {
+        Cluster[] ancestors = new Cluster[maxZoom + 2];
+        for (Cluster c = cluster; c != null; c = c.getParent()) {
+            if (c.getZoom() >= minZoom && c.getZoom() <= maxZoom + 1)
+                ancestors[c.getZoom()] = c;
+        }
+        return ancestors;
+    }
+
+    /**
+     * remove a point and take it out of the counts and centroids of its ancestors,
+     * removing the ones left without points
+     *
+     * @param point   the point
+     * @param removed the clusters removed so far
+     */
+    private void detach(Cluster point, Set<Cluster> removed) {
+        trees[maxZoom + 1].remove(point);
+        removed.add(point);
+        Cluster parent = point.getParent();
+        if (parent != null)
+            parent.getChildren().removeIf(c -> c == point);
+        while (parent != null) {
+            Cluster next = parent.getParent();
+            int numPoints = parent.getNumPoints() - point.getNumPoints();
+            if (numPoints <= 0) {
+                removeCluster(parent, removed);
+            } else {
+                parent.setX((parent.getX() * parent.getNumPoints() - point.getX() * point.getNumPoints()) / numPoints);
+                parent.setY((parent.getY() * parent.getNumPoints() - point.getY() * point.getNumPoints()) / numPoints);
+                parent.setNumPoints(numPoints);
+                parent.setZoom(parent.getZoom());
+            }
+            parent = next;
+        }
+    }
+
+    /**
+     * remove an empty cluster from its zoom level, its parent and the clusters it has edges to
+     */
+    private void removeCluster(Cluster cluster, Set<Cluster> removed) {
+        trees[cluster.getZoom()].remove(cluster);
+        removed.add(cluster);
+        if (cluster.getParent() != null)
+            cluster.getParent().getChildren().removeIf(c -> c == cluster);
+        for (Cluster target : cluster.getTargetClusters()) {
+            // a cluster linked to itself is cleared below, not while iterating its targets
+            if (target != cluster)
+                target.getTargetClusters().remove(cluster);
+        }
+        cluster.getTargetClusters().clear();
+        for (Cluster child : cluster.getChildren()) {
+            child.setParent(null);
+        }
+        cluster.getChildren().clear();
+    }
+
     /**
      * insert one point into the tree
      *
@@ -481,10 +897,8 @@ public class Clustering {
                 trees[z].insert(c);
                 int rightCode = c.getGridLocation();
                 clusters[1] = c;
-                if (!clusters[1].getTargetClusters().contains(neighbors[0]))
-                    clusters[1].getTargetClusters().add(neighbors[0]);
-                if (!neighbors[0].getTargetClusters().contains(clusters[1]))
-                    neighbors[0].getTargetClusters().add(clusters[1]);
+                clusters[1].getTargetClusters().add(neighbors[0]);
+                neighbors[0].getTargetClusters().add(clusters[1]);
                 HyperEdge hyperEdge = new HyperEdge(neighbors[0], c, zoomRadius);
                 BucketCode key = new BucketCode(leftCode, rightCode);
                 if (!hyperEdges[z].containsKey(key))
@@ -577,23 +991,15 @@ public class Clustering {
     private boolean haveCommonNeighborsOtherEnd(Cluster[] chosenNeighbor,
                                                 List<Cluster> neighbors,
                                                 Cluster cluster) {
-        double count;
-        List<Cluster> thisTargetClusters = cluster.getTargetClusters();
+        ClusterSet thisTargetClusters = cluster.getTargetClusters();
         Cluster neighbor;
         for (int i = 0; i < neighbors.size(); i++) {
             neighbor = neighbors.get(i);
             if (neighbor == cluster)
                 continue;
-            count = 0;
-            List<Cluster> otherTargetClusters = neighbor.getTargetClusters();
-            for (Cluster occurrence : otherTargetClusters) {
-                if (thisTargetClusters.contains(occurrence)) {
-                    count++;
-                    if ((count / Math.min(thisTargetClusters.size(), otherTargetClusters.size())) > PERCENTAGE_OF_SAME_DIRECTION_EDGES) {
-                        chosenNeighbor[0] = neighbor;
-                        return true;
-                    }
-                }
+            if (thisTargetClusters.overlapsMoreThan(neighbor.getTargetClusters(), PERCENTAGE_OF_SAME_DIRECTION_EDGES)) {
+                chosenNeighbor[0] = neighbor;
+                return true;
             }
         }
         return false;
@@ -606,19 +1012,26 @@ public class Clustering {
      * @param neighbor
      */
     private void mergeTwoClusters(Cluster cluster, Cluster neighbor) {
+        // the edges under neighbor move to the ancestors of cluster in the meta-edge tables
+        List<LeafEdge> moved = leafEdgesUnder(neighbor);
+        for (LeafEdge leafEdge : moved) {
+            updateMetaEdges(leafEdge, -leafEdge.weight);
+        }
         //update the coordinate of cluster
         mergeTwoPoints(neighbor, cluster);
         //add cluster to all neighbors's out/in edges
         for (Cluster neighborTarget : neighbor.getTargetClusters()) {
             if (neighborTarget == neighbor)
                 continue;
-            if (!neighborTarget.getTargetClusters().contains(cluster))
-                neighborTarget.getTargetClusters().add(cluster);
-            if (!neighborTarget.equals(neighbor))
-                neighborTarget.getTargetClusters().remove(neighbor);
+            // the edges between the two clusters now end within cluster, which is not linked to itself
+            if (neighborTarget == cluster) {
+                cluster.getTargetClusters().remove(neighbor);
+                continue;
+            }
+            neighborTarget.getTargetClusters().add(cluster);
+            neighborTarget.getTargetClusters().remove(neighbor);
             //add all neighbor's out/in edges to cluster
-            if (!cluster.getTargetClusters().contains(neighborTarget))
-                cluster.getTargetClusters().add(neighborTarget);
+            cluster.getTargetClusters().add(neighborTarget);
         }
         //let neighbor's children point to cluster
         for (Cluster child : neighbor.getChildren()) {
@@ -627,7 +1040,125 @@ public class Clustering {
         }
         if(neighbor.getParent() != null)
         neighbor.getParent().getChildren().remove(neighbor);
-        trees[neighbor.getZoom()].delete(neighbor);
+        // by identity, the merges moved the centroid of neighbor away from the cell it was indexed in
+        trees[neighbor.getZoom()].remove(neighbor);
+        for (LeafEdge leafEdge : moved) {
+            updateMetaEdges(leafEdge, leafEdge.weight);
+        }
+    }
+
+    /**
+     * get the loaded edges with a point under a cluster, if any zoom level keeps its meta-edges.
+     * The tables are dropped, to be rebuilt when drawn, if the cluster holds too many edges to update them
+     *
+     * @param cluster the cluster
+     * @return the edges
+     */
+    private List<LeafEdge> leafEdgesUnder(Cluster cluster) {
+        List<LeafEdge> result = new ArrayList<>();
+        boolean tracked = false;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            tracked |= metaEdges[z] != null;
+        }
+        if (!tracked)
+            return result;
+        if (cluster.getNumPoints() > META_EDGES_REBUILD_FRACTION * leafEdges.size()) {
+            Arrays.fill(metaEdges, null);
+            return result;
+        }
+        Set<LeafEdge> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Cluster> stack = new ArrayDeque<>();
+        stack.push(cluster);
+        while (!stack.isEmpty()) {
+            Cluster c = stack.pop();
+            LeafEdge leafEdge = leafEdges.get(c);
+            if (leafEdge != null && seen.add(leafEdge))
+                result.add(leafEdge);
+            for (Cluster child : c.getChildren()) {
+                stack.push(child);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * add the weight of an edge to the meta-edge between the ancestors of its points in each zoom level drawn so far
+     *
+     * @param leafEdge the edge
+     * @param weight   the weight to add, negative to take it out
+     */
+    private void updateMetaEdges(LeafEdge leafEdge, int weight) {
+        for (int z = minZoom; z <= maxZoom; z++) {
+            if (metaEdges[z] != null)
+                metaEdges[z].update(ancestor(leafEdge.from, z), ancestor(leafEdge.to, z), weight);
+        }
+    }
+
+    /**
+     * @param cluster a cluster
+     * @param zoom    a zoom level
+     * @return the ancestor of the cluster in the zoom level
+     */
+    private static Cluster ancestor(Cluster cluster, int zoom) {
+        Cluster c = cluster;
+        while (c != null && c.getZoom() != zoom) {
+            c = c.getParent();
+        }
+        return c;
+    }
+
+    /**
+     * get the meta-edges, the loaded edges aggregated between the clusters of a zoom level,
+     * that have a cluster within certain window.
+     * The table of a zoom level is built from the loaded edges when it is first drawn,
+     * and then kept up to date as edges are loaded, removed and clusters merged
+     *
+     * @param bbox the bounding box of the window
+     * @param zoom the zoom level, up to the max zoom level
+     * @return the meta-edges between the clusters, with their weights
+     */
+    public HashMap<Edge, Integer> getMetaEdges(double[] bbox, int zoom) {
+        return getMetaEdges(bbox, zoom, true);
+    }
+
+    /**
+     * get the meta-edges that have a cluster within certain window
+     *
+     * @param bbox the bounding box of the window
+     * @param zoom the zoom level, up to the max zoom level
+     * @param keep whether the table of the zoom level, if not built yet, is kept up to date for the next calls,
+     *             or only built for this call
+     * @return the meta-edges between the clusters, with their weights
+     */
+    public synchronized HashMap<Edge, Integer> getMetaEdges(double[] bbox, int zoom, boolean keep) {
+        int z = Math.max(minZoom, Math.min(zoom, maxZoom));
+        MetaEdgeTable table = metaEdges[z];
+        if (table == null) {
+            table = new MetaEdgeTable();
+            for (LeafEdge leafEdge : new HashSet<>(leafEdges.values())) {
+                table.update(ancestor(leafEdge.from, z), ancestor(leafEdge.to, z), leafEdge.weight);
+            }
+            if (keep)
+                metaEdges[z] = table;
+        }
+        // the clusters keep being indexed where they were created while their centroids move,
+        // so the window is searched with a margin
+        double margin = getZoomRadius(max_radius, z) * 2;
+        Set<Cluster> visible = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (double[] range : mercatorRanges(bbox)) {
+            visible.addAll(trees[z].range(new Point(range[0] - margin, range[1] - margin), new Point(range[2] + margin, range[3] + margin)));
+        }
+        HashMap<Edge, Integer> result = new HashMap<>();
+        for (Cluster cluster : visible) {
+            for (Map.Entry<Cluster, int[]> target : table.out.getOrDefault(cluster, new IdentityHashMap<>()).entrySet()) {
+                result.merge(new Edge(cluster, target.getKey()), target.getValue()[0], Integer::sum);
+            }
+            for (Map.Entry<Cluster, int[]> source : table.in.getOrDefault(cluster, new IdentityHashMap<>()).entrySet()) {
+                if (!visible.contains(source.getKey()))
+                    result.merge(new Edge(source.getKey(), cluster), source.getValue()[0], Integer::sum);
+            }
+        }
+        return result;
     }
 
     /**
@@ -650,10 +1181,8 @@ public class Clustering {
                     hyperEdges[z].put(code[0], new ArrayList<>());
                 if (!hyperEdges[z].get(code[0]).contains(newEdge))
                     hyperEdges[z].get(code[0]).add(newEdge);
-                if (!fromNeighbor.getTargetClusters().contains(toNeighbor))
-                    fromNeighbor.getTargetClusters().add(toNeighbor);
-                if (!toNeighbor.getTargetClusters().contains(fromNeighbor))
-                    toNeighbor.getTargetClusters().add(fromNeighbor);
+                fromNeighbor.getTargetClusters().add(toNeighbor);
+                toNeighbor.getTargetClusters().add(fromNeighbor);
                 toNeighbor = toNeighbor.getParent();
                 fromNeighbor = fromNeighbor.getParent();
             } else {
@@ -682,7 +1211,23 @@ public class Clustering {
      * @param zoom the zoom level
      * @return all the clusters within this bounding box and this zoom level
      */
+    @Override
     public List<Cluster> getClusters(double[] bbox, int zoom) {
+        List<Cluster> results = new ArrayList<>();
+        for (double[] range : mercatorRanges(bbox)) {
+            results.addAll(trees[limitZoom(zoom)].range(new Point(range[0], range[1]), new Point(range[2], range[3])));
+        }
+        return results;
+    }
+
+    /**
+     * normalize a bounding box to the spherical mercator ranges it covers,
+     * two ranges if it crosses the antimeridian
+     *
+     * @param bbox the bounding box of the window in longitude and latitude
+     * @return the {left, top, right, bottom} corners of each range in [0..1]
+     */
+    static List<double[]> mercatorRanges(double[] bbox) {
         double minLongitude = ((bbox[0] + MAX_LONGITUDE) % (MAX_LONGITUDE * 2) + MAX_LONGITUDE * 2) % (MAX_LONGITUDE * 2) - MAX_LONGITUDE;
         double minLatitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, bbox[1]));
         double maxLongitude = bbox[2] == MAX_LONGITUDE ? MAX_LONGITUDE : ((bbox[2] + MAX_LONGITUDE) % (MAX_LONGITUDE * 2) + (MAX_LONGITUDE * 2)) % (MAX_LONGITUDE * 2) - MAX_LONGITUDE;
@@ -693,14 +1238,14 @@ public class Clustering {
             maxLongitude = MAX_LONGITUDE;
             // if the range of longitude is negative, set the range to be [-180, max longitude] and [min longitude, 180]
         } else if (minLongitude > maxLongitude) {
-            List<Cluster> results = getClusters(new double[]{minLongitude, minLatitude, MAX_LONGITUDE, maxLatitude}, zoom);
-            results.addAll(getClusters(new double[]{-MAX_LONGITUDE, minLatitude, maxLongitude, maxLatitude}, zoom));
-            return results;
+            List<double[]> ranges = mercatorRanges(new double[]{minLongitude, minLatitude, MAX_LONGITUDE, maxLatitude});
+            ranges.addAll(mercatorRanges(new double[]{-MAX_LONGITUDE, minLatitude, maxLongitude, maxLatitude}));
+            return ranges;
         }
-//List<Cluster> result = new ArrayList<>();
-return trees[limitZoom(zoom)].range(new Point(lngX(minLongitude), latY(maxLatitude)), new Point(lngX(maxLongitude), latY(minLatitude)));//.values().forEach(list -> result.addAll(list));
-//return result;    
-}
+        List<double[]> ranges = new ArrayList<>();
+        ranges.add(new double[]{lngX(minLongitude), latY(maxLatitude), lngX(maxLongitude), latY(minLatitude)});
+        return ranges;
+    }
 
     private int limitZoom(int z) {
         return Math.max(minZoom, Math.min(z, maxZoom + 1));
@@ -713,6 +1258,7 @@ return trees[limitZoom(zoom)].range(new Point(lngX(minLongitude), latY(maxLatitu
      * @param zoom    the zoom level of its parent
      * @return the parent drawPoints of this drawPoints
      */
+    @Override
     public Cluster parentCluster(Cluster cluster, int zoom) {
         Cluster c = trees[maxZoom + 1].findPoint(cluster);//, getZoomRadius(radius, zoom));
         while (c != null) {
@@ -723,4 +1269,33 @@ return trees[limitZoom(zoom)].range(new Point(lngX(minLongitude), latY(maxLatitu
         }
         return c;
     }
+
+    /**
+     * get the parent drawPoints in certain zoom level of a point given in longitude and latitude,
+     * found by hashing instead of searching the max zoom level.
+     * The ancestor is remembered until the hierarchy changes,
+     * so projecting all the edges to the zoom level of the screen walks each parent chain once
+     * and then costs a lookup per edge
+     *
+     * @param point the longitude and latitude of a point of the edges
+     * @param zoom  the zoom level of its parent
+     * @return the parent drawPoints of this point
+     */
+    @Override
+    public Cluster parentCluster(Point point, int zoom) {
+        Leaf leaf = leaves.get(point);
+        if (leaf == null)
+            return ClusterHierarchy.super.parentCluster(point, zoom);
+        if (leaf.version == version && leaf.zoom == zoom)
+            return leaf.ancestor;
+        // zooming out continues from the ancestor of the last zoom level
+        Cluster c = leaf.version == version && leaf.zoom > zoom && leaf.ancestor != null ? leaf.ancestor : leaf.point;
+        while (c != null && c.getZoom() != zoom) {
+            c = c.getParent();
+        }
+        leaf.ancestor = c;
+        leaf.zoom = zoom;
+        leaf.version = version;
+        return c;
+    }
 }
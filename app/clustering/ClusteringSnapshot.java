@@ -0,0 +1,422 @@
+package clustering;
+
+import models.Cluster;
+import models.Edge;
+import models.Point;
+import utils.PropertiesUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A completed HGC hierarchy and the edges it was built from, saved to a binary file and memory-mapped back.
+ * The clusters get int ids level by level. Each level is cut into vertical strips, about the square root
+ * of its number of clusters, and sorted by strip, then y, then x,
+ * so a window is a binary search and a scan of its y-range in each strip it overlaps,
+ * and a point is a binary search in the last level.
+ * Clusters are only materialized, with their chain of parents, when a query touches them.
+ * <p>
+ * Layout, big-endian:
+ * header: magic, version, lastDate, radius, minZoom, maxZoom, query, number of clusters, targets and edges
+ * levels: first id of each level from minZoom to maxZoom + 1, followed by the number of clusters,
+ * then the number of strips of each level
+ * clusters: x[], y[], numPoints[], parent[] (-1 for a root), targetOffsets[n + 1], targets[]
+ * edges: fromLongitude[], fromLatitude[], toLongitude[], toLatitude[], weight[]
+ */
+public class ClusteringSnapshot implements ClusterHierarchy {
+    private static final int MAGIC = 0x48474353;
+    private static final int VERSION = 2;
+    // snapshots already mapped, shared by the sessions
+    private static final Map<File, ClusteringSnapshot> opened = new ConcurrentHashMap<>();
+
+    private final long lastModified;
+    private final int minZoom;
+    private final int maxZoom;
+    private final int[] levelStart;
+    private final int[] levelStrips;
+    private final DoubleBuffer xs;
+    private final DoubleBuffer ys;
+    private final IntBuffer numPoints;
+    private final IntBuffer parents;
+    private final IntBuffer targetOffsets;
+    private final IntBuffer targets;
+    private final DoubleBuffer fromLongitudes;
+    private final DoubleBuffer fromLatitudes;
+    private final DoubleBuffer toLongitudes;
+    private final DoubleBuffer toLatitudes;
+    private final IntBuffer weights;
+    // clusters materialized so far
+    private final Map<Integer, Cluster> clusters = new ConcurrentHashMap<>();
+
+    private ClusteringSnapshot(MappedByteBuffer buffer, int minZoom, int maxZoom, int clusterCount, int targetCount,
+                               int edgeCount, long lastModified) {
+        this.lastModified = lastModified;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        levelStart = new int[maxZoom + 3 - minZoom];
+        for (int i = 0; i < levelStart.length; i++) {
+            levelStart[i] = buffer.getInt();
+        }
+        levelStrips = new int[levelStart.length - 1];
+        for (int i = 0; i < levelStrips.length; i++) {
+            levelStrips[i] = buffer.getInt();
+        }
+        xs = doubles(buffer, clusterCount);
+        ys = doubles(buffer, clusterCount);
+        numPoints = ints(buffer, clusterCount);
+        parents = ints(buffer, clusterCount);
+        targetOffsets = ints(buffer, clusterCount + 1);
+        targets = ints(buffer, targetCount);
+        fromLongitudes = doubles(buffer, edgeCount);
+        fromLatitudes = doubles(buffer, edgeCount);
+        toLongitudes = doubles(buffer, edgeCount);
+        toLatitudes = doubles(buffer, edgeCount);
+        weights = ints(buffer, edgeCount);
+    }
+
+    /**
+     * the snapshot file of a query, null if snapshots are disabled
+     *
+     * @param query  query keyword
+     * @param radius range search radius of the clustering
+     */
+    public static File file(String query, double radius) {
+        return file(query, radius, ".hgc");
+    }
+
+    /**
+     * the file of the bundled edges precomputed for a zoom level of a query, null if snapshots are disabled
+     *
+     * @param query  query keyword
+     * @param radius range search radius of the clustering
+     * @param zoom   zoom level of the bundling
+     */
+    public static File bundlingFile(String query, double radius, int zoom) {
+        return file(query, radius, "-z" + zoom + ".json");
+    }
+
+    private static File file(String query, double radius, String suffix) {
+        String dir = PropertiesUtil.getSnapshotDir();
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        return new File(dir, PropertiesUtil.getDataset() + "-" + Integer.toHexString(Objects.hash(query, radius)) + suffix);
+    }
+
+    /**
+     * save a completed hierarchy, replacing the previous snapshot of the query
+     *
+     * @param clustering the hierarchy built from the edges
+     * @param edges      the edges of the query with their weights
+     * @param query      query keyword
+     */
+    public static void write(Clustering clustering, HashMap<Edge, Integer> edges, String query) {
+        File file = file(query, clustering.getRadius());
+        if (file == null) {
+            return;
+        }
+        // give ids level by level, sorted by strip, then y, then x within a level
+        List<Cluster> ordered = new ArrayList<>();
+        List<Integer> levelStart = new ArrayList<>();
+        List<Integer> levelStrips = new ArrayList<>();
+        for (int z = clustering.getMinZoom(); z <= clustering.getMaxZoom() + 1; z++) {
+            levelStart.add(ordered.size());
+            List<Cluster> level = clustering.getClusters(z);
+            int strips = Math.max(1, (int) Math.ceil(Math.sqrt(level.size())));
+            levelStrips.add(strips);
+            level.sort(Comparator.<Cluster>comparingInt(cluster -> strip(cluster.getX(), strips))
+                    .thenComparingDouble(Cluster::getY).thenComparingDouble(Cluster::getX));
+            ordered.addAll(level);
+        }
+        levelStart.add(ordered.size());
+        Map<Cluster, Integer> ids = new IdentityHashMap<>(ordered.size());
+        for (Cluster cluster : ordered) {
+            ids.put(cluster, ids.size());
+        }
+        int targetCount = 0;
+        for (Cluster cluster : ordered) {
+            for (Cluster target : cluster.getTargetClusters()) {
+                if (ids.containsKey(target))
+                    targetCount++;
+            }
+        }
+        byte[] queryBytes = query.getBytes(StandardCharsets.UTF_8);
+
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(PropertiesUtil.getLastDate().getMillis());
+                out.writeDouble(clustering.getRadius());
+                out.writeInt(clustering.getMinZoom());
+                out.writeInt(clustering.getMaxZoom());
+                out.writeInt(queryBytes.length);
+                out.write(queryBytes);
+                out.writeInt(ordered.size());
+                out.writeInt(targetCount);
+                out.writeInt(edges.size());
+                for (int start : levelStart) {
+                    out.writeInt(start);
+                }
+                for (int strips : levelStrips) {
+                    out.writeInt(strips);
+                }
+                for (Cluster cluster : ordered) {
+                    out.writeDouble(cluster.getX());
+                }
+                for (Cluster cluster : ordered) {
+                    out.writeDouble(cluster.getY());
+                }
+                for (Cluster cluster : ordered) {
+                    out.writeInt(cluster.getNumPoints());
+                }
+                for (Cluster cluster : ordered) {
+                    Integer parent = cluster.getParent() == null ? null : ids.get(cluster.getParent());
+                    out.writeInt(parent == null ? -1 : parent);
+                }
+                int offset = 0;
+                for (Cluster cluster : ordered) {
+                    out.writeInt(offset);
+                    for (Cluster target : cluster.getTargetClusters()) {
+                        if (ids.containsKey(target))
+                            offset++;
+                    }
+                }
+                out.writeInt(offset);
+                for (Cluster cluster : ordered) {
+                    for (Cluster target : cluster.getTargetClusters()) {
+                        Integer id = ids.get(target);
+                        if (id != null)
+                            out.writeInt(id);
+                    }
+                }
+                for (Edge edge : edges.keySet()) {
+                    out.writeDouble(edge.getFromX());
+                }
+                for (Edge edge : edges.keySet()) {
+                    out.writeDouble(edge.getFromY());
+                }
+                for (Edge edge : edges.keySet()) {
+                    out.writeDouble(edge.getToX());
+                }
+                for (Edge edge : edges.keySet()) {
+                    out.writeDouble(edge.getToY());
+                }
+                for (int weight : edges.values()) {
+                    out.writeInt(weight);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            opened.remove(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    /**
+     * map the snapshot of a query
+     *
+     * @param query  query keyword
+     * @param radius range search radius of the clustering
+     * @return the snapshot, null if there is none for this query, radius and data
+     */
+    public static ClusteringSnapshot open(String query, double radius) {
+        File file = file(query, radius);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        ClusteringSnapshot snapshot = opened.get(file);
+        if (snapshot != null && snapshot.lastModified == file.lastModified()) {
+            return snapshot;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long lastModified = file.lastModified();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != PropertiesUtil.getLastDate().getMillis() || buffer.getDouble() != radius) {
+                return null;
+            }
+            int minZoom = buffer.getInt();
+            int maxZoom = buffer.getInt();
+            byte[] queryBytes = new byte[buffer.getInt()];
+            buffer.get(queryBytes);
+            if (!query.equals(new String(queryBytes, StandardCharsets.UTF_8))) {
+                return null;
+            }
+            snapshot = new ClusteringSnapshot(buffer, minZoom, maxZoom, buffer.getInt(), buffer.getInt(),
+                    buffer.getInt(), lastModified);
+            opened.put(file, snapshot);
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * get the edges the hierarchy was built from
+     *
+     * @return the edges in longitude and latitude with their weights
+     */
+    public HashMap<Edge, Integer> getEdges() {
+        HashMap<Edge, Integer> edges = new LinkedHashMap<>();
+        for (int i = 0; i < weights.limit(); i++) {
+            edges.put(new Edge(new Point(fromLongitudes.get(i), fromLatitudes.get(i)),
+                    new Point(toLongitudes.get(i), toLatitudes.get(i))), weights.get(i));
+        }
+        return edges;
+    }
+
+    @Override
+    public List<Cluster> getClusters(double[] bbox, int zoom) {
+        int level = limitZoom(zoom) - minZoom;
+        int strips = levelStrips[level];
+        List<Cluster> results = new ArrayList<>();
+        for (double[] range : Clustering.mercatorRanges(bbox)) {
+            for (int strip = strip(range[0], strips); strip <= strip(range[2], strips); strip++) {
+                // the range search of the kd-tree excludes the borders
+                int id = lowerBound(level, strip, range[1], Double.POSITIVE_INFINITY);
+                for (; id < levelStart[level + 1] && strip(xs.get(id), strips) == strip && ys.get(id) < range[3]; id++) {
+                    double x = xs.get(id);
+                    if (x > range[0] && x < range[2] && ys.get(id) > range[1]) {
+                        results.add(cluster(id));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the cluster of the last level at the position of a cluster, and then its ancestor in the zoom level,
+     * null if no point of the snapshot is at the position, e.g. a point loaded after the snapshot was saved
+     */
+    @Override
+    public Cluster parentCluster(Cluster cluster, int zoom) {
+        int level = maxZoom + 1 - minZoom;
+        int id = lowerBound(level, strip(cluster.getX(), levelStrips[level]), cluster.getY(), cluster.getX());
+        if (id == levelStart[level + 1] || xs.get(id) != cluster.getX() || ys.get(id) != cluster.getY()) {
+            return null;
+        }
+        while (id >= 0 && zoom(id) != zoom) {
+            id = parents.get(id);
+        }
+        return id < 0 ? null : cluster(id);
+    }
+
+    /**
+     * get the target clusters of a cluster
+     *
+     * @param id id of the cluster
+     * @return ids of the clusters it has edges to
+     */
+    public int[] getTargets(int id) {
+        int[] result = new int[targetOffsets.get(id + 1) - targetOffsets.get(id)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = targets.get(targetOffsets.get(id) + i);
+        }
+        return result;
+    }
+
+    /**
+     * materialize a cluster and its parents
+     */
+    private Cluster cluster(int id) {
+        Cluster cluster = clusters.get(id);
+        if (cluster != null) {
+            return cluster;
+        }
+        cluster = new Cluster(new Point(xs.get(id), ys.get(id)));
+        cluster.setNumPoints(numPoints.get(id));
+        cluster.setZoom(zoom(id));
+        int parent = parents.get(id);
+        if (parent >= 0) {
+            cluster.setParent(cluster(parent));
+        }
+        Cluster previous = clusters.putIfAbsent(id, cluster);
+        return previous == null ? cluster : previous;
+    }
+
+    private int zoom(int id) {
+        int level = 0;
+        while (levelStart[level + 1] <= id) {
+            level++;
+        }
+        return minZoom + level;
+    }
+
+    /**
+     * first id of a level at or after a position in the order of the level, by strip, then y, then x
+     *
+     * @param level index of the level from minZoom
+     * @param strip strip of the position
+     */
+    private int lowerBound(int level, int strip, double y, double x) {
+        int strips = levelStrips[level];
+        int from = levelStart[level];
+        int to = levelStart[level + 1];
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            int midStrip = strip(xs.get(mid), strips);
+            double midY = ys.get(mid);
+            if (midStrip < strip || (midStrip == strip && (midY < y || (midY == y && xs.get(mid) < x)))) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * the vertical strip of a level a x coordinate falls in, the strips split the mercator x range [0, 1] evenly
+     *
+     * @param x      mercator x coordinate
+     * @param strips number of strips of the level
+     */
+    private static int strip(double x, int strips) {
+        return Math.max(0, Math.min(strips - 1, (int) Math.floor(x * strips)));
+    }
+
+    private int limitZoom(int z) {
+        return Math.max(minZoom, Math.min(z, maxZoom + 1));
+    }
+
+    private static DoubleBuffer doubles(ByteBuffer buffer, int count) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(count * Double.BYTES);
+        buffer.position(buffer.position() + count * Double.BYTES);
+        return slice.asDoubleBuffer();
+    }
+
+    private static IntBuffer ints(ByteBuffer buffer, int count) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(count * Integer.BYTES);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return slice.asIntBuffer();
+    }
+}
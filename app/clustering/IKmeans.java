@@ -3,17 +3,18 @@ package clustering;
 import models.Edge;
 import models.Point;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Incremental K-Means Algorithm
  */
 public class IKmeans extends Kmeans {
-    // the list of clusters for all accumulated data
-    private List<List<Point>> allClusters;
+    // the weighted sums of the coordinates and the weights of each cluster for all accumulated data
+    private double[] allSums;
+    // the weighted sums of the coordinates and the weights of each cluster in the new batch
+    private double[] batchSums;
     // the count of points in all accumulated data
     private int pointsCnt;
 
@@ -26,10 +27,6 @@ public class IKmeans extends Kmeans {
         super(k);
     }
 
-    private List<List<Point>> getAllClusters() {
-        return allClusters;
-    }
-
     @Override
     public int getDataSetLength() {
         return pointsCnt;
@@ -38,7 +35,7 @@ public class IKmeans extends Kmeans {
     @Override
     public void setDataSet(List<Point> dataSet) {
         this.dataSet = dataSet;
-        pointsCnt += dataSet.size();
+        pointsCnt += weights == null ? dataSet.size() : Arrays.stream(weights).sum();
     }
 
     /**
@@ -46,42 +43,36 @@ public class IKmeans extends Kmeans {
      */
     @Override
     public void init() {
-        allClusters = new ArrayList<>();
-        for (int i = 0; i < k; i++) {
-            allClusters.add(new ArrayList<>());
-        }
+        allSums = new double[3 * k];
         initCenters();
-        initCluster();
     }
 
     /**
      * Add each point to its closest cluster
      */
-    @Override
-    void clusterSet() {
+    private void clusterSet() {
         int minLocation;
+        batchSums = new double[3 * k];
         for (int i = 0; i < dataSet.size(); i++) {
             minLocation = assignPoint(i);
-            Point point = new Point(dataSet.get(i).getX(), dataSet.get(i).getY());
-            parents.put(point, minLocation); // Map each point to the cluster it belongs to
+            batchSums[3 * minLocation] += weights[i] * dataSet.get(i).getX();
+            batchSums[3 * minLocation + 1] += weights[i] * dataSet.get(i).getY();
+            batchSums[3 * minLocation + 2] += weights[i];
         }
     }
 
     /**
      * Set the new center for each cluster
      */
-    @Override
-    void setNewCenter() {
+    private void setNewCenter() {
+        for (int i = 0; i < 3 * k; i++) {
+            allSums[i] += batchSums[i];
+        }
         for (int i = 0; i < k; i++) {
-            int n = clusters.get(i).size();
+            double n = allSums[3 * i + 2];
             if (n != 0) {
-                Point newCenter = initNewCenter(i, n);
-                // Calculate the average coordinate of all points in the cluster
-                newCenter.setX(newCenter.getX() + centers.get(i).getX() * allClusters.get(i).size());
-                newCenter.setX(newCenter.getX() / (n + allClusters.get(i).size()));
-                newCenter.setY(newCenter.getY() + centers.get(i).getY() * allClusters.get(i).size());
-                newCenter.setY(newCenter.getY() / (n + allClusters.get(i).size()));
-                centers.set(i, newCenter);
+                // Calculate the weighted average coordinate of all points in the cluster
+                centers.set(i, new Point(allSums[3 * i] / n, allSums[3 * i + 1] / n));
             }
         }
     }
@@ -93,11 +84,8 @@ public class IKmeans extends Kmeans {
      */
     @Override
     public void execute(HashMap<Edge, Integer> edges) {
-        List<Point> points = new ArrayList<>();
-        points.addAll(edges.entrySet().stream().map(entry -> entry.getKey().getFromPoint()).collect(Collectors.toList()));
-        points.addAll(edges.entrySet().stream().map(entry -> entry.getKey().getToPoint()).collect(Collectors.toList()));
         boolean isFirst = dataSet == null;
-        setDataSet(points);
+        setCoreset(edges);
         if (isFirst) {
             if (k > dataSet.size()) {
                 k = dataSet.size();
@@ -114,10 +102,7 @@ public class IKmeans extends Kmeans {
         if (k == 0) return;
         clusterSet();
         setNewCenter();
-        for (int j = 0; j < getK(); j++) {
-            allClusters.get(j).addAll(clusters.get(j));
-        }
-        initCluster();
+        centersMoved();
     }
 
     /**
@@ -128,7 +113,7 @@ public class IKmeans extends Kmeans {
     public HashMap<Point, Integer> getClustersMap() {
         HashMap<Point, Integer> clustersSizes = new HashMap<>();
         for (int i = 0; i < getK(); i++) {
-            clustersSizes.put(getCenters().get(i), getAllClusters().get(i).size());
+            clustersSizes.put(getCenters().get(i), (int) allSums[3 * i + 2]);
         }
         return clustersSizes;
     }
@@ -3,29 +3,43 @@ package clustering;
 import models.Edge;
 import models.Point;
 
+import utils.PropertiesUtil;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
 
 /**
- * K-Means algorithm
+ * K-Means algorithm, seeded with k-means++ and iterated with Hamerly's bounds,
+ * which skip the distances to the centers for the points that cannot have changed cluster,
+ * over chunks of points in parallel
  */
 public class Kmeans {
+    // number of points assigned by each parallel task
+    private static final int CHUNK_SIZE = 1 << 14;
     // the number of clusters desired
     int k;
-    // the dataset for clustering
+    // the dataset for clustering, the distinct endpoints of the edges
     List<Point> dataSet;
+    // the number of edge ends at each point of the dataset, summing the weights of the edges
+    int[] weights;
+    // the weighted size of each cluster
+    private long[] sizes;
     // the list of centers of clusters
     List<Point> centers;
-    // the list of clusters for the whole dataset
-    List<List<Point>> clusters;
-    // map of points and its cluster
-    HashMap<Point, Integer> parents;
-    // the last squared error sum for determining the algorithm's termination
-    private double lastSquaredErrorSum;
     // the number of iterations
     private int I;
+    // bumped whenever the centers move, for the callers caching what is derived from the clusters
+    private int version;
+    // kd-tree over the centers, the median center of each range of the array splits it alternately by x and y
+    private int[] centerTree = new int[0];
+    Random random = new Random();
 
     /**
      * Constructor for k
@@ -38,8 +52,6 @@ public class Kmeans {
         }
         this.k = k;
         centers = new ArrayList<>();
-        clusters = new ArrayList<>();
-        parents = new HashMap<>();
     }
 
     public List<Point> getCenters() {
@@ -66,8 +78,19 @@ public class Kmeans {
         this.dataSet = dataSet;
     }
 
-    public List<List<Point>> getClusters() {
-        return clusters;
+    /**
+     * Set the dataset to the distinct endpoints of the edges, each weighted by the edges ending at it
+     *
+     * @param edges the edges and their weights
+     */
+    void setCoreset(HashMap<Edge, Integer> edges) {
+        LinkedHashMap<Point, Integer> multiplicities = new LinkedHashMap<>();
+        for (Map.Entry<Edge, Integer> entry : edges.entrySet()) {
+            multiplicities.merge(entry.getKey().getFromPoint(), entry.getValue(), Integer::sum);
+            multiplicities.merge(entry.getKey().getToPoint(), entry.getValue(), Integer::sum);
+        }
+        weights = multiplicities.values().stream().mapToInt(Integer::intValue).toArray();
+        setDataSet(new ArrayList<>(multiplicities.keySet()));
     }
 
 
@@ -76,85 +99,67 @@ public class Kmeans {
      */
     public void init() {
         I = 0;
-        lastSquaredErrorSum = 0;
         initCenters();
-        initCluster();
     }
 
     /**
-     * Initialize the list of centers corresponding to each cluster
+     * Initialize the list of centers corresponding to each cluster with k-means++,
+     * picking each center with a probability proportional to its weight times its squared distance to the closest center picked
      */
     void initCenters() {
         centers.clear();
-        int[] randoms = new int[k];
-        boolean flag;
-        int temp = (int) (Math.random() * getDataSetLength());
-        randoms[0] = temp;
-        centers.add(dataSet.get(randoms[0]));
-        for (int i = 1; i < k; i++) {
-            flag = true;
-            while (flag) {
-                temp = (int) (Math.random() * getDataSetLength());
-                int j = 0;
-                while (j < i) {
-                    if (temp == randoms[j]) {
+        int n = dataSet.size();
+        double[] distances = new double[n];
+        Point center = dataSet.get(random.nextInt(n));
+        centers.add(center);
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            distances[i] = weights[i] * squaredDistance(dataSet.get(i), center);
+            total += distances[i];
+        }
+        for (int j = 1; j < k; j++) {
+            int picked = n - 1;
+            if (total > 0) {
+                double r = random.nextDouble() * total;
+                for (int i = 0; i < n; i++) {
+                    r -= distances[i];
+                    if (r < 0) {
+                        picked = i;
                         break;
                     }
-                    j++;
-                }
-                if (j == i) {
-                    flag = false;
                 }
+            } else {
+                // all the points are on the centers already
+                picked = random.nextInt(n);
+            }
+            center = dataSet.get(picked);
+            centers.add(center);
+            total = 0;
+            for (int i = 0; i < n; i++) {
+                distances[i] = Math.min(distances[i], weights[i] * squaredDistance(dataSet.get(i), center));
+                total += distances[i];
             }
-            randoms[i] = temp;
-            centers.add(dataSet.get(randoms[i]));
         }
     }
 
-    /**
-     * Initialize the set of clusters
-     */
-    void initCluster() {
-        clusters.clear();
-        for (int i = 0; i < k; i++) {
-            clusters.add(new ArrayList<>());
-        }
-
+    private static double squaredDistance(Point a, Point b) {
+        double dx = a.getX() - b.getX();
+        double dy = a.getY() - b.getY();
+        return dx * dx + dy * dy;
     }
 
     /**
-     * Calculate the distance between two points
-     *
-     * @param element points in dataset
-     * @param center  centers of clusters
-     * @return the computed distance
-     */
-    private double distance(Point element, Point center) {
-
-        return element.distanceTo(center);
-    }
-
-    /**
-     * Add all points to their closest clusters
-     */
-    void clusterSet() {
-        for (int i = 0; i < getDataSetLength(); i++) {
-            assignPoint(i);
-        }
-    }
-
-    /**
-     * Add each point to its closest cluster
+     * Find the closest cluster of a point
      *
      * @param pointIdx point index
      * @return closest cluster index
      */
     int assignPoint(int pointIdx) {
         double currentDistance;
-        double minDistance = distance(dataSet.get(pointIdx), centers.get(0));
+        double minDistance = squaredDistance(dataSet.get(pointIdx), centers.get(0));
         int minLocation = 0;
         for (int j = 1; j < k; j++) {
-            currentDistance = distance(dataSet.get(pointIdx), centers.get(j));
+            currentDistance = squaredDistance(dataSet.get(pointIdx), centers.get(j));
             if (currentDistance < minDistance) {
                 minDistance = currentDistance;
                 minLocation = j;
@@ -164,117 +169,251 @@ public class Kmeans {
                 }
             }
         }
-        clusters.get(minLocation).add(dataSet.get(pointIdx)); // add each point to its closest cluster
         return minLocation;
     }
 
     /**
-     * Map each point to the cluster it belongs to
+     * the core method of K-Means
      */
-    private void findParents() {
-        for (int i = 0; i < clusters.size(); i++) {
-            for (int j = 0; j < clusters.get(i).size(); j++) {
-                Point point = new Point(clusters.get(i).get(j).getX(), clusters.get(i).get(j).getY());
-                parents.put(point, i);
+    public void execute(HashMap<Edge, Integer> edges) {
+        setCoreset(edges);
+        if (k > getDataSetLength()) {
+            k = getDataSetLength();
+        }
+        if (dataSet == null || dataSet.size() == 0) {
+            return;
+        }
+        init();
+        int n = dataSet.size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = dataSet.get(i).getX();
+            ys[i] = dataSet.get(i).getY();
+        }
+        double[] centerXs = new double[k];
+        double[] centerYs = new double[k];
+        for (int j = 0; j < k; j++) {
+            centerXs[j] = centers.get(j).getX();
+            centerYs[j] = centers.get(j).getY();
+        }
+        int[] assignment = new int[n];
+        // distance to the assigned center is at most upper, to any other center at least lower
+        double[] upper = new double[n];
+        double[] lower = new double[n];
+        // weighted sums of the coordinates and weights of each cluster
+        double[] sums = new double[3 * k];
+        double[] halfSeparation = new double[k];
+        accumulate(sums, pass(xs, ys, centerXs, centerYs, halfSeparation, assignment, upper, lower, true));
+        int maxIterations = PropertiesUtil.getKmeansMaxIterations() > 0 ? PropertiesUtil.getKmeansMaxIterations() : 100;
+        double tolerance = PropertiesUtil.getKmeansTolerance();
+        double[] moves = new double[k];
+        // iterate until no point changes cluster, the centers move less than the tolerance, or the iterations run out
+        while (I < maxIterations) {
+            I++;
+            double maxMove = 0;
+            int farthest = 0;
+            double secondMove = 0;
+            for (int j = 0; j < k; j++) {
+                moves[j] = 0;
+                if (sums[3 * j + 2] > 0) {
+                    double x = sums[3 * j] / sums[3 * j + 2];
+                    double y = sums[3 * j + 1] / sums[3 * j + 2];
+                    moves[j] = Math.sqrt((x - centerXs[j]) * (x - centerXs[j]) + (y - centerYs[j]) * (y - centerYs[j]));
+                    centerXs[j] = x;
+                    centerYs[j] = y;
+                }
+                if (moves[j] > maxMove) {
+                    secondMove = maxMove;
+                    maxMove = moves[j];
+                    farthest = j;
+                } else if (moves[j] > secondMove) {
+                    secondMove = moves[j];
+                }
+            }
+            if (maxMove <= tolerance) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                upper[i] += moves[assignment[i]];
+                lower[i] -= assignment[i] == farthest ? secondMove : maxMove;
+            }
+            for (int j = 0; j < k; j++) {
+                double closest = Double.MAX_VALUE;
+                for (int other = 0; other < k; other++) {
+                    if (other != j) {
+                        double dx = centerXs[j] - centerXs[other];
+                        double dy = centerYs[j] - centerYs[other];
+                        closest = Math.min(closest, Math.sqrt(dx * dx + dy * dy));
+                    }
+                }
+                halfSeparation[j] = closest / 2;
+            }
+            double[] changes = pass(xs, ys, centerXs, centerYs, halfSeparation, assignment, upper, lower, false);
+            accumulate(sums, changes);
+            if (changes[3 * k] == 0) {
+                break;
             }
         }
+        for (int j = 0; j < k; j++) {
+            centers.set(j, new Point(centerXs[j], centerYs[j]));
+        }
+        sizes = new long[k];
+        for (int i = 0; i < n; i++) {
+            sizes[assignment[i]] += weights[i];
+        }
+        centersMoved();
     }
 
     /**
-     * Calculate the sum of the squared error
+     * Rebuild the kd-tree over the moved centers and bump the version
      */
-    private double countRule() {
-        double squaredErrorSum = 0;
-        for (int i = 0; i < clusters.size(); i++) {
-            for (int j = 0; j < clusters.get(i).size(); j++) {
-                squaredErrorSum += Math.pow(distance(clusters.get(i).get(j), centers.get(i)), 2);
-            }
+    void centersMoved() {
+        version++;
+        centerTree = new int[k];
+        for (int j = 0; j < k; j++) {
+            centerTree[j] = j;
         }
-        return squaredErrorSum;
+        buildCenterTree(0, k, 0);
     }
 
-    /**
-     * Set the new center for each cluster
-     */
-    void setNewCenter() {
-        for (int i = 0; i < k; i++) {
-            int n = clusters.get(i).size();
-            if (n != 0) {
-                Point newCenter = initNewCenter(i, n);
-                // Calculate the average coordinate of all points in the cluster
-                newCenter.setX(newCenter.getX() / n);
-                newCenter.setY(newCenter.getY() / n);
-                centers.set(i, newCenter);
-            }
+    private void buildCenterTree(int from, int to, int depth) {
+        if (to - from <= 1)
+            return;
+        Integer[] range = new Integer[to - from];
+        for (int i = from; i < to; i++) {
+            range[i - from] = centerTree[i];
+        }
+        Arrays.sort(range, Comparator.comparingDouble(j -> depth % 2 == 0 ? centers.get(j).getX() : centers.get(j).getY()));
+        for (int i = from; i < to; i++) {
+            centerTree[i] = range[i - from];
         }
+        int median = (from + to) >>> 1;
+        buildCenterTree(from, median, depth + 1);
+        buildCenterTree(median + 1, to, depth + 1);
     }
 
     /**
-     * Initialize the new position for the cluster
+     * find the closest center to a point in the range of the kd-tree
      *
-     * @param clusterIdx  the index of the cluster
-     * @param clusterSize the size of the cluster
-     * @return the initialized position for the cluster
+     * @param best the closest center found so far and its squared distance
      */
-    Point initNewCenter(int clusterIdx, int clusterSize) {
-        Point newCenter = new Point(0, 0);
-        for (int j = 0; j < clusterSize; j++) {
-            newCenter.setX(newCenter.getX() + clusters.get(clusterIdx).get(j).getX());
-            newCenter.setY(newCenter.getY() + clusters.get(clusterIdx).get(j).getY());
+    private void nearestCenter(Point point, int from, int to, int depth, double[] best) {
+        if (from >= to)
+            return;
+        int median = (from + to) >>> 1;
+        Point center = centers.get(centerTree[median]);
+        double d = squaredDistance(point, center);
+        if (d < best[1]) {
+            best[0] = centerTree[median];
+            best[1] = d;
+        }
+        double offset = depth % 2 == 0 ? point.getX() - center.getX() : point.getY() - center.getY();
+        if (offset < 0) {
+            nearestCenter(point, from, median, depth + 1, best);
+            if (offset * offset < best[1])
+                nearestCenter(point, median + 1, to, depth + 1, best);
+        } else {
+            nearestCenter(point, median + 1, to, depth + 1, best);
+            if (offset * offset < best[1])
+                nearestCenter(point, from, median, depth + 1, best);
         }
-        return newCenter;
     }
 
     /**
-     * the core method of K-Means
+     * Get the version of the clusters, which changes whenever their centers move
+     * @return the version of the clusters
      */
-    public void execute(HashMap<Edge, Integer> edges) {
-        List<Point> points = new ArrayList<>();
-        points.addAll(edges.entrySet().stream().map(entry -> entry.getKey().getFromPoint()).collect(Collectors.toList()));
-        points.addAll(edges.entrySet().stream().map(entry -> entry.getKey().getToPoint()).collect(Collectors.toList()));
-        setDataSet(points);
-        if (k > getDataSetLength()) {
-            k = getDataSetLength();
-        }
-        if (dataSet == null || dataSet.size() == 0) {
-            return;
-        }
-        init();
-        // iterate until no change in the sum of squared errors
-        double currentSquaredErrorSum;
-        while (true) {
-            clusterSet();
-            currentSquaredErrorSum = countRule();
-            if (I != 0) {
-                if (currentSquaredErrorSum == lastSquaredErrorSum) {
-                    findParents();
-                    break;
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * assign the points to their closest centers over chunks in parallel
+     *
+     * @param all whether to compute the distances of all the points, otherwise only of the ones whose bounds overlap
+     * @return the changes of the weighted sums of the coordinates and weights of each cluster, and the number of points that moved
+     */
+    private double[] pass(double[] xs, double[] ys, double[] centerXs, double[] centerYs, double[] halfSeparation,
+                          int[] assignment, double[] upper, double[] lower, boolean all) {
+        int n = xs.length;
+        return IntStream.range(0, (n + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().mapToObj(chunk -> {
+            double[] changes = new double[3 * k + 1];
+            for (int i = chunk * CHUNK_SIZE; i < Math.min(n, (chunk + 1) * CHUNK_SIZE); i++) {
+                int current = assignment[i];
+                if (!all) {
+                    double bound = Math.max(halfSeparation[current], lower[i]);
+                    if (upper[i] <= bound)
+                        continue;
+                    upper[i] = Math.sqrt((xs[i] - centerXs[current]) * (xs[i] - centerXs[current]) + (ys[i] - centerYs[current]) * (ys[i] - centerYs[current]));
+                    if (upper[i] <= bound)
+                        continue;
+                }
+                double first = Double.MAX_VALUE;
+                double second = Double.MAX_VALUE;
+                int closest = 0;
+                for (int j = 0; j < k; j++) {
+                    double d = (xs[i] - centerXs[j]) * (xs[i] - centerXs[j]) + (ys[i] - centerYs[j]) * (ys[i] - centerYs[j]);
+                    if (d < first) {
+                        second = first;
+                        first = d;
+                        closest = j;
+                    } else if (d < second) {
+                        second = d;
+                    }
+                }
+                upper[i] = Math.sqrt(first);
+                lower[i] = Math.sqrt(second);
+                if (all || closest != current) {
+                    if (!all) {
+                        changes[3 * current] -= weights[i] * xs[i];
+                        changes[3 * current + 1] -= weights[i] * ys[i];
+                        changes[3 * current + 2] -= weights[i];
+                    }
+                    changes[3 * closest] += weights[i] * xs[i];
+                    changes[3 * closest + 1] += weights[i] * ys[i];
+                    changes[3 * closest + 2] += weights[i];
+                    changes[3 * k]++;
+                    assignment[i] = closest;
                 }
             }
-            setNewCenter();
-            I++;
-            initCluster();
-            lastSquaredErrorSum = currentSquaredErrorSum;
+            return changes;
+        }).reduce(new double[3 * k + 1], (a, b) -> {
+            double[] sum = new double[a.length];
+            for (int j = 0; j < a.length; j++) {
+                sum[j] = a[j] + b[j];
+            }
+            return sum;
+        });
+    }
+
+    private void accumulate(double[] sums, double[] changes) {
+        for (int j = 0; j < sums.length; j++) {
+            sums[j] += changes[j];
         }
     }
 
     /**
-     * Get the cluster to which a point belongs
+     * Get the cluster to which a point belongs, the one with the closest center found in the kd-tree over the centers
      * @param point a given point
-     * @return the cluster to which the point belongs
+     * @return the cluster to which the point belongs, null if there are no clusters yet
      */
     public Point getParent(Point point) {
-        return centers.get(parents.get(point));
+        if (centerTree.length == 0)
+            return null;
+        double[] best = {0, Double.MAX_VALUE};
+        nearestCenter(point, 0, centerTree.length, 0, best);
+        return centers.get((int) best[0]);
     }
 
     /**
      * Get the map containing the clusters and their sizes
-     * @return the map containing the clusters and their sizes
+     * @return the map containing the clusters and their sizes, the number of edge ends in each
      */
     public HashMap<Point, Integer> getClustersMap() {
         HashMap<Point, Integer> clustersSizes = new HashMap<>();
         for (int i = 0; i < getK(); i++) {
-            clustersSizes.put(getCenters().get(i), getClusters().get(i).size());
+            clustersSizes.put(getCenters().get(i), sizes == null ? 0 : (int) sizes[i]);
         }
         return clustersSizes;
     }
@@ -24,8 +24,10 @@ public class Parser {
     private int clusteringAlgorithm = 0;
     // 0: no bundling, 1: do FDEB
     private int bundling = 0;
-    // 0: FDEB, 1: IFDEB
+    // 0: FDEB, 1: IFDEB, 2: FE on the client, 3: KDEEB
     private int bundlingAlgorithm = 0;
+    // 0: DRUM, 1: fixed interval, 2: viewport-first spatial, 3: term histogram, 4: random sample
+    private int slicingAlgorithm = 0;
     // the current zoom level
     private int zoom = 0;
     // 0: no treeCutting, 1: do treeCutting
@@ -36,6 +38,9 @@ public class Parser {
     private boolean newQuery;
     //the range search radius for clustering
     private double radius;
+    // the time window to display in milliseconds since epoch, 0 for the whole time range
+    private long windowStart = 0;
+    private long windowEnd = 0;
 
     public boolean getNewQuery(){
         return newQuery;
@@ -80,6 +85,10 @@ public class Parser {
         return bundlingAlgorithm;
     }
 
+    public int getSlicingAlgorithm() {
+        return slicingAlgorithm;
+    }
+
     public int getZoom() {
         return zoom;
     }
@@ -96,6 +105,14 @@ public class Parser {
         return radius;
     }
 
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    public long getWindowEnd() {
+        return windowEnd;
+    }
+
     /**
      * parse the JSON sent from frontend into variables in backend
      * @param query the JSON sent from frontend
@@ -124,6 +141,9 @@ public class Parser {
             if (jsonNode.has("bundlingAlgorithm")) {
                 bundlingAlgorithm = Integer.parseInt(jsonNode.get("bundlingAlgorithm").asText());
             }
+            if (jsonNode.has("slicingAlgorithm")) {
+                slicingAlgorithm = Integer.parseInt(jsonNode.get("slicingAlgorithm").asText());
+            }
             if (jsonNode.has("lowerLongitude"))
                 lowerLongitude = Double.parseDouble(jsonNode.get("lowerLongitude").asText());
             if (jsonNode.has("upperLongitude")) {
@@ -147,6 +167,10 @@ public class Parser {
                 newQuery = Boolean.parseBoolean(jsonNode.get("newQuery").asText());
             if (jsonNode.has("radius"))
                 radius = Double.parseDouble(jsonNode.get("radius").asText());
+            if (jsonNode.has("windowStart"))
+                windowStart = Long.parseLong(jsonNode.get("windowStart").asText());
+            if (jsonNode.has("windowEnd"))
+                windowEnd = Long.parseLong(jsonNode.get("windowEnd").asText());
 
         }
     }
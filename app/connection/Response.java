@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import models.Edge;
 import models.EdgeFeature;
 import models.Point;
+import slicing.SampleEstimate;
 
 import java.util.*;
 
@@ -33,6 +34,15 @@ public class Response {
     private int pointsCnt;
     // the number of clusters on the screen
     private int clustersCnt;
+    // the fraction of the replies read when the counts are estimated from a random sample, 1 if exact
+    private double sampledFraction = 1;
+    // 95% confidence interval of repliesCnt
+    private int repliesCntLower;
+    private int repliesCntUpper;
+    // the estimated weights of the edges on the screen with their confidence intervals, null if exact
+    private String edgeIntervalData;
+    // id of the query in the urls of its tiles, null if its clusters are not served as tiles
+    private String queryId;
 
     public void setPointStatus(int pointStatus) {
         this.pointStatus = pointStatus;
@@ -73,6 +83,46 @@ public class Response {
         return isolatedEdgesCnt;
     }
 
+    public double getSampledFraction() {
+        return sampledFraction;
+    }
+
+    public int getRepliesCntLower() {
+        return repliesCntLower;
+    }
+
+    public int getRepliesCntUpper() {
+        return repliesCntUpper;
+    }
+
+    public String getEdgeIntervalData() {
+        return edgeIntervalData;
+    }
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+    public void setQueryId(String queryId) {
+        this.queryId = queryId;
+    }
+
+    public void setSampledFraction(double sampledFraction) {
+        this.sampledFraction = sampledFraction;
+    }
+
+    public void setRepliesCntLower(int repliesCntLower) {
+        this.repliesCntLower = repliesCntLower;
+    }
+
+    public void setRepliesCntUpper(int repliesCntUpper) {
+        this.repliesCntUpper = repliesCntUpper;
+    }
+
+    public void setEdgeIntervalData(String edgeIntervalData) {
+        this.edgeIntervalData = edgeIntervalData;
+    }
+
     public void setClustersCnt(int clustersCnt) {
         this.clustersCnt = clustersCnt;
     }
@@ -130,6 +180,27 @@ public class Response {
         setEdgeData(arrayNode.toString());
     }
 
+    /**
+     * set the estimated weights of edges and their confidence intervals in JSON format
+     * @param edges edges stored in HashMap with their sampled weights
+     * @param fraction the fraction of the replies in the sample
+     */
+    public void setEdgeIntervals(HashMap<Edge, Integer> edges, double fraction) {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ArrayNode arrayNode = objectMapper.createArrayNode();
+        for (Map.Entry<Edge, Integer> entry : edges.entrySet()) {
+            double[] estimate = SampleEstimate.interval(entry.getValue(), fraction);
+            ObjectNode lineNode = objectMapper.createObjectNode();
+            lineNode.putArray("from").add(entry.getKey().getFromX()).add(entry.getKey().getFromY());
+            lineNode.putArray("to").add(entry.getKey().getToX()).add(entry.getKey().getToY());
+            lineNode.put("weight", Math.round(estimate[0]));
+            lineNode.put("lower", Math.round(estimate[1]));
+            lineNode.put("upper", Math.round(estimate[2]));
+            arrayNode.add(lineNode);
+        }
+        setEdgeIntervalData(arrayNode.toString());
+    }
+
     /**
      * set data as edges in JSON format
      * @param edges edges stored in HashMap
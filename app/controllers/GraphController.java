@@ -3,24 +3,42 @@ package controllers;
 import actors.WebSocketActor;
 import clustering.*;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import connection.Parser;
 import connection.Response;
 import edgeBundling.*;
 import models.*;
+import org.joda.time.Interval;
 import play.mvc.Controller;
+import precompute.QueryHistory;
 import slicing.FixedInterval;
+import slicing.HistogramSlicer;
 import slicing.MiniQueryGenerator;
+import slicing.SampleEstimate;
+import slicing.SamplingSlicer;
 import slicing.Slicer;
+import slicing.SpatialSlicer;
+import tiles.TileService;
 import treeCut.TreeCut;
 import utils.DatabaseUtils;
 import utils.PropertiesUtil;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This controller contains an action to handle HTTP requests to the
@@ -39,20 +57,71 @@ public class GraphController extends Controller {
     private static final int minimum_edges_confidence = 1000;
     // hierarchical structure for HGC algorithm
     private Clustering clustering = new Clustering(0, 17);
+    // hierarchy the clusters are drawn from, the HGC one or the snapshot of a completed query
+    private ClusterHierarchy hierarchy = clustering;
 
     private Kmeans kmeans;
+    // meta-edges between the K-means clusters, reused by the frames until the centers move or the edges change
+    private HashMap<Edge, Integer> kmeansEdges;
+    private int kmeansEdgesVersion;
+    private int kmeansEdgesTotalVersion;
     // Incremental edge data
     private HashMap<Edge, Integer> batchEdges = new LinkedHashMap<>();
     //total accumulated edges
     private HashMap<Edge, Integer> totalEdges = new LinkedHashMap<>();
+    //number of changes of the total edges, for the results derived from them to know when they are stale
+    private int totalEdgesVersion;
     //RGB for creating gradient effect for the edge direction
     private int max_RGB_color = 255;
     private ObjectMapper objectMapper = new ObjectMapper();
 
     private boolean incremental = false;
+    //fraction of the replies read so far when the slicer samples them, 1 if exact
+    private double sampledFraction = 1;
+    //results of the slices of the query indexed by time, and the ones aggregated in the current view
+    private SegmentIndex segments = new SegmentIndex();
+    private Set<Segment> viewSegments = new HashSet<>();
+    //time window of the current view, null for the whole time range
+    private Interval viewWindow;
+    //whether every slice of the query is a time range that can be retained as a segment
+    private boolean segmented = true;
     private Parser parser = new Parser();
     private Response response = new Response();
     private final int K = 17;
+    // number of bundled views prefetched for a session
+    private static final int PREFETCH_CACHE_SIZE = 12;
+    // low priority threads bundling the views the sessions are likely to ask for next, created on the first prefetch
+    private static ExecutorService prefetchExecutor;
+    // bundled views prefetched for this session, most recent last
+    private final LinkedList<BundledView> prefetched = new LinkedList<>();
+    // running prefetch of this session, cancelled by the next request
+    private Future<?> prefetchJob;
+    // bundled views of the whole map read from the precomputed files, by file and last date of the data
+    private static final Map<String, BundledView> precomputedBundlings = new ConcurrentHashMap<>();
+
+    /**
+     * FDEB result of the edges of a zoom level with an end within a bounding box, for a version of the HGC data
+     */
+    private static class BundledView {
+        private final double[] bbox;
+        private final int zoom;
+        private final long version;
+        private HashMap<Edge, Integer> edges;
+        private int isolatedEdgesCnt;
+        private Set<Edge> isolatedEdges;
+
+        private BundledView(double[] bbox, int zoom, long version, HashMap<Edge, Integer> edges) {
+            this.bbox = bbox;
+            this.zoom = zoom;
+            this.version = version;
+            this.edges = edges;
+        }
+
+        private boolean covers(double[] window, int zoom, long version) {
+            return this.zoom == zoom && this.version == version
+                    && bbox[0] <= window[0] && bbox[1] <= window[1] && window[2] <= bbox[2] && window[3] <= bbox[3];
+        }
+    }
 
     /**
      * Dispatcher for the request message.
@@ -70,62 +139,382 @@ public class GraphController extends Controller {
         if (query.isEmpty()) {
             return;
         }
+        cancelPrefetch();
         //set the radius of the range search for clustering
         // Parse the request message with JSON structure
         clustering.setRadius(parser.getRadius());
         if (parser.getNewQuery()) {
             clearPreviousResult();
             PropertiesUtil.loadProperties();
+            QueryHistory.record(parser.getQuery());
             if (parser.getClusteringAlgorithm() == 2) {
                 if (kmeans == null)
                     kmeans = new Kmeans(K);
+                // the whole result is loaded at once, there are no slices to select a time window from
+                segmented = false;
                 doQuery();
                 loadKmeans();
                 processData(actor);
                 response.setFlag(finished);
+            } else if (parser.getClusteringAlgorithm() == 0 && attachSnapshot()) {
+                response.setFlag(finished);
+                processData(actor);
             } else {
-                Slicer progressive = new MiniQueryGenerator();//either DRUM or Fixed interval
+                registerTiles(false);
+                Slicer progressive = createSlicer();
                 HashMap<Edge, Integer> resultSet = progressive.init(parser.getQuery());
                 if (resultSet != null) {
 
-                    loadData(resultSet);
-                    processData(actor);
+                    loadSlice(resultSet, progressive);
+                    processSlice(actor, progressive);
 
                 }
                 ResultSetReturn result = progressive.askSlice();
-                loadData(result.getResultSet());
+                loadSlice(result.getResultSet(), progressive);
                 if (result.isDone()) {
                     response.setFlag(finished);
-                    processData(actor);
+                    processSlice(actor, progressive);
                 }
                 response.setFlag(unfinished);
-                processData(actor);
+                processSlice(actor, progressive);
                 while (!result.isDone()) {
                     result = progressive.askSlice();
-                    loadData(result.getResultSet());
+                    loadSlice(result.getResultSet(), progressive);
                     response.setFlag(unfinished);
                     if (result.isDone()) {
                         response.setFlag(finished);
                     }
-                    processData(actor);
+                    processSlice(actor, progressive);
                 }
+                saveSnapshot();
+                registerTiles(true);
+                prefetch();
             }
         } else {
             processOldData(actor);
+            prefetch();
+        }
+
+    }
+
+    /**
+     * build the hierarchy of a query without a session and save its snapshot,
+     * along with the bundled edges of the whole map at a zoom level, for the sessions that issue it later
+     *
+     * @param query  query keyword
+     * @param radius range search radius of the clustering
+     * @param zoom   zoom level of the bundling
+     */
+    public void precompute(String query, double radius, int zoom) {
+        ObjectNode request = objectMapper.createObjectNode();
+        request.put("query", query).put("radius", radius).put("zoom", zoom)
+                .put("clusteringAlgorithm", 0).put("slicingAlgorithm", 0).put("bundlingAlgorithm", 0)
+                .put("clustering", 1).put("bundling", 1).put("treeCut", 0)
+                .put("lowerLongitude", -180).put("upperLongitude", 180)
+                .put("lowerLatitude", -90).put("upperLatitude", 90);
+        parser.parse(request.toString());
+        clearPreviousResult();
+        Slicer progressive = createSlicer();
+        HashMap<Edge, Integer> resultSet = progressive.init(query);
+        if (resultSet != null) {
+            loadSlice(resultSet, progressive);
+            loadClusters();
+        }
+        ResultSetReturn result;
+        do {
+            result = progressive.askSlice();
+            long start = System.currentTimeMillis();
+            loadSlice(result.getResultSet(), progressive);
+            loadClusters();
+            progressive.reportDownstream(System.currentTimeMillis() - start);
+        } while (!result.isDone());
+        saveSnapshot();
+        File file = ClusteringSnapshot.bundlingFile(query, radius, zoom);
+        if (file == null || totalEdges.isEmpty()) {
+            return;
+        }
+        double[] bbox = {-180, -90, 180, 90};
+        HashMap<Edge, Integer> edges = new HashMap<>();
+        generateMetaEdgeSet(edges, new HashSet<>(), bbox, zoom);
+        BundledView view = new BundledView(bbox, zoom, 0, toLongLat(edges));
+        if (!bundle(view, Long.MAX_VALUE)) {
+            // interrupted, the bundling is left to the next run
+            return;
+        }
+        // the edges are saved whole, so that a view of the zoom level keeps the edges with an end on its screen
+        ObjectNode bundling = objectMapper.createObjectNode();
+        bundling.put("lastDate", PropertiesUtil.getLastDate().getMillis());
+        ArrayNode edgesNode = bundling.putArray("edges");
+        for (Map.Entry<Edge, Integer> entry : view.edges.entrySet()) {
+            ObjectNode edgeNode = edgesNode.addObject();
+            ArrayNode pointsNode = edgeNode.putArray("points");
+            for (Point point : entry.getKey().getSubdivisionPoints()) {
+                pointsNode.addArray().add(point.getX()).add(point.getY());
+            }
+            edgeNode.put("width", entry.getValue());
+            edgeNode.put("isolated", view.isolatedEdges.contains(entry.getKey()));
+        }
+        try {
+            Files.write(file.toPath(), objectMapper.writeValueAsBytes(bundling));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * serve the edges bundled by the precomputation at the zoom level of the view on the snapshot of the query,
+     * keeping the edges with an end on the screen
+     *
+     * @return whether precomputed edges were found
+     */
+    private boolean loadPrecomputedBundling() {
+        if (!(hierarchy instanceof ClusteringSnapshot) || parser.getClustering() != 1 || parser.getTreeCutting() != 0) {
+            return false;
+        }
+        File file = ClusteringSnapshot.bundlingFile(parser.getQuery(), parser.getRadius(), parser.getZoom());
+        if (file == null || !file.exists()) {
+            return false;
+        }
+        String key = file.getPath() + "@" + PropertiesUtil.getLastDate().getMillis();
+        BundledView view = precomputedBundlings.get(key);
+        // the file is parsed again once the precomputation replaced it
+        if (view == null || view.version != file.lastModified()) {
+            view = readPrecomputedBundling(file);
+            if (view == null) {
+                return false;
+            }
+            precomputedBundlings.put(key, view);
+        }
+        double[] bbox = {parser.getLowerLongitude(), parser.getLowerLatitude(), parser.getUpperLongitude(), parser.getUpperLatitude()};
+        respondBundledView(view, bbox);
+        return true;
+    }
+
+    /**
+     * read the bundled edges of the whole map saved by the precomputation
+     *
+     * @param file the file of the precomputed bundling
+     * @return the bundled view, versioned by the modification time of the file,
+     * null if the file is of older data or could not be read
+     */
+    private BundledView readPrecomputedBundling(File file) {
+        long modified = file.lastModified();
+        try {
+            JsonNode bundling = objectMapper.readTree(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            if (bundling.get("lastDate").asLong() != PropertiesUtil.getLastDate().getMillis() || !bundling.has("edges")) {
+                return null;
+            }
+            HashMap<Edge, Integer> edges = new HashMap<>();
+            Set<Edge> isolatedEdges = new HashSet<>();
+            for (JsonNode edgeNode : bundling.get("edges")) {
+                List<Point> subdivisionPoints = new ArrayList<>();
+                for (JsonNode pointNode : edgeNode.get("points")) {
+                    subdivisionPoints.add(new Point(pointNode.get(0).asDouble(), pointNode.get(1).asDouble()));
+                }
+                Edge edge = new Edge(subdivisionPoints.get(0), subdivisionPoints.get(subdivisionPoints.size() - 1));
+                edge.setSubdivisionPoints(subdivisionPoints);
+                edges.put(edge, edgeNode.get("width").asInt());
+                if (edgeNode.get("isolated").asBoolean()) {
+                    isolatedEdges.add(edge);
+                }
+            }
+            BundledView view = new BundledView(new double[]{-180, -90, 180, 90}, parser.getZoom(), modified, edges);
+            view.isolatedEdges = isolatedEdges;
+            return view;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
         }
+    }
 
+    /**
+     * draw the bundled edges of a view with an end on the screen, and count the isolated ones among them
+     *
+     * @param view the bundled view covering the screen
+     * @param bbox the bounding box of the screen
+     */
+    private void respondBundledView(BundledView view, double[] bbox) {
+        HashMap<Edge, Integer> edges = new HashMap<>();
+        int isolatedEdgesCnt = 0;
+        for (Map.Entry<Edge, Integer> entry : view.edges.entrySet()) {
+            Edge edge = entry.getKey();
+            if (within(edge.getFromPoint(), bbox) || within(edge.getToPoint(), bbox)) {
+                edges.put(edge, entry.getValue());
+                if (view.isolatedEdges.contains(edge)) {
+                    isolatedEdgesCnt++;
+                }
+            }
+        }
+        response.setBundledEdges(toBundledEdges(edges));
+        response.setIsolatedEdgesCnt(isolatedEdgesCnt);
+    }
+
+    /**
+     * create the slicer of the progressive query chosen by the frontend
+     *
+     * @return either DRUM, fixed interval, viewport-first spatial, histogram or sampling slicer
+     */
+    private Slicer createSlicer() {
+        Slicer slicer;
+        if (parser.getSlicingAlgorithm() == 1) {
+            slicer = new FixedInterval();
+        } else if (parser.getSlicingAlgorithm() == 2) {
+            slicer = new SpatialSlicer(parser.getLowerLongitude(), parser.getLowerLatitude(), parser.getUpperLongitude(), parser.getUpperLatitude());
+        } else if (parser.getSlicingAlgorithm() == 3) {
+            slicer = new HistogramSlicer();
+        } else if (parser.getSlicingAlgorithm() == 4) {
+            slicer = new SamplingSlicer();
+        } else {
+            slicer = new MiniQueryGenerator();
+        }
+        // replies closer than the range search radius of the max zoom level are merged into one cluster anyway
+        slicer.setSnapStep(Clustering.getZoomRadius(parser.getRadius(), clustering.getMaxZoom()) * 360);
+        return slicer;
     }
 
     private void clearPreviousResult() {
         kmeans = null;
+        kmeansEdges = null;
+        synchronized (prefetched) {
+            prefetched.clear();
+        }
+        clustering = new Clustering(0, 17);
+        clustering.setRadius(parser.getRadius());
+        hierarchy = clustering;
+        response.setQueryId(null);
+        sampledFraction = 1;
         totalEdges.clear();
+        totalEdgesVersion++;
         batchEdges.clear();
+        segments.clear();
+        viewSegments.clear();
+        viewWindow = null;
+        segmented = true;
+    }
+
+    /**
+     * serve the query from the snapshot of its completed hierarchy, if one was saved
+     *
+     * @return whether a snapshot was found
+     */
+    private boolean attachSnapshot() {
+        ClusteringSnapshot snapshot = ClusteringSnapshot.open(parser.getQuery(), parser.getRadius());
+        if (snapshot == null) {
+            return false;
+        }
+        hierarchy = snapshot;
+        // the snapshot is a single batch, there are no slices to select a time window from
+        segmented = false;
+        loadData(snapshot.getEdges());
+        return true;
+    }
+
+    /**
+     * save the completed hierarchy of the query so that it is mapped back the next time it is issued
+     */
+    private void saveSnapshot() {
+        if (parser.getClusteringAlgorithm() == 0 && sampledFraction >= 1) {
+            ClusteringSnapshot.write(clustering, totalEdges, parser.getQuery());
+        }
+    }
+
+    /**
+     * serve the tiles of the query from its HGC hierarchy while it is loaded
+     *
+     * @param complete whether all the slices of the query are loaded
+     */
+    private void registerTiles(boolean complete) {
+        if (parser.getClusteringAlgorithm() == 0 && hierarchy == clustering) {
+            String queryId = TileService.queryId(parser.getQuery(), parser.getRadius());
+            TileService.register(queryId, clustering, complete);
+            response.setQueryId(queryId);
+        }
+    }
+
+    /**
+     * load the result of a slice and retain it as a segment of the timeline
+     *
+     * @param resultSet   edges of the slice
+     * @param progressive slicer of the running query
+     */
+    private void loadSlice(HashMap<Edge, Integer> resultSet, Slicer progressive) {
+        sampledFraction = progressive.getSampledFraction();
+        loadData(resultSet);
+        Interval interval = progressive.getLastInterval();
+        if (interval == null) {
+            segmented = false;
+        } else if (segmented) {
+            Segment segment = new Segment(interval, resultSet);
+            segments.add(segment);
+            viewSegments.add(segment);
+        }
+    }
+
+    /**
+     * re-aggregate the edges and clusters of the time window chosen by the frontend from the retained segments.
+     * The added segments are loaded incrementally, the segments that left the window are removed from HGC,
+     * other clusterings are rebuilt.
+     */
+    private void applyWindow() {
+        Interval window = parser.getWindowStart() < parser.getWindowEnd()
+                ? new Interval(parser.getWindowStart(), parser.getWindowEnd()) : null;
+        if (!segmented || segments.isEmpty() || Objects.equals(window, viewWindow)) {
+            return;
+        }
+        List<Segment> selected = segments.select(window);
+        if (parser.getClusteringAlgorithm() == 0 && hierarchy == clustering) {
+            Set<Segment> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+            kept.addAll(selected);
+            Iterator<Segment> iterator = viewSegments.iterator();
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                if (!kept.contains(segment)) {
+                    HashMap<Edge, Integer> edges = segment.getEdges();
+                    clustering.remove(edges);
+                    for (Map.Entry<Edge, Integer> entry : edges.entrySet()) {
+                        removeEdgeFromMap(totalEdges, entry.getKey(), entry.getValue());
+                    }
+                    totalEdgesVersion++;
+                    iterator.remove();
+                    // the bundled edges of the incremental FDEB include the removed ones
+                    centerEdges = null;
+                    incremental = false;
+                }
+            }
+        } else if (!selected.containsAll(viewSegments)) {
+            totalEdges.clear();
+            totalEdgesVersion++;
+            viewSegments.clear();
+            clustering = new Clustering(0, 17);
+            clustering.setRadius(parser.getRadius());
+            hierarchy = clustering;
+            registerTiles(false);
+            kmeans = null;
+            kmeansEdges = null;
+            centerEdges = null;
+            incremental = false;
+        }
+        batchEdges.clear();
+        for (Segment segment : selected) {
+            if (viewSegments.add(segment)) {
+                for (Map.Entry<Edge, Integer> entry : segment.getEdges().entrySet()) {
+                    putEdgeIntoMap(batchEdges, entry.getKey(), entry.getValue());
+                    putEdgeIntoMap(totalEdges, entry.getKey(), entry.getValue());
+                }
+                totalEdgesVersion++;
+            }
+        }
+        if (!batchEdges.isEmpty()) {
+            loadClusters();
+        }
+        viewWindow = window;
     }
 
     private void processOldData(WebSocketActor actor) {
+        applyWindow();
         if (parser.getBundlingAlgorithm() == 2) {
             response.setEdgesCnt(totalEdges.size());
-            response.setRepliesCnt(getTotalEdgesSize());
+            setRepliesEstimate();
             response.setUnbundled(totalEdges);
         } else {
             if (parser.getPointStatus() == 1) {
@@ -144,17 +533,24 @@ public class GraphController extends Controller {
         }
     }
 
+    /**
+     * process the result of a slice and report the time spent on clustering, bundling and serialization
+     * back to the slicer, so that it paces the whole frame and not only the mini query
+     *
+     * @param actor       WebSocket actor to return response.
+     * @param progressive slicer of the running query
+     */
+    private void processSlice(WebSocketActor actor, Slicer progressive) {
+        long start = System.currentTimeMillis();
+        processData(actor);
+        progressive.reportDownstream(System.currentTimeMillis() - start);
+    }
+
     private void processData(WebSocketActor actor) {
-        if (parser.getClusteringAlgorithm() == 0) {
-            loadHGC();
-        } else if (parser.getClusteringAlgorithm() == 1) {
-            if (kmeans == null)
-                kmeans = new IKmeans(K);
-            loadKmeans();
-        }
+        loadClusters();
         if (parser.getBundlingAlgorithm() == 2) {
             response.setEdgesCnt(totalEdges.size());
-            response.setRepliesCnt(getTotalEdgesSize());
+            setRepliesEstimate();
             response.setUnbundled(totalEdges);
         } else {
             if (parser.getPointStatus() == 1) {
@@ -186,6 +582,7 @@ public class GraphController extends Controller {
                     Edge currentEdge = new Edge(from, to);
                     putEdgeIntoMap(totalEdges, currentEdge, 1);
                 }
+                totalEdgesVersion++;
             }
             resultSet.close();
             state.close();
@@ -201,6 +598,20 @@ public class GraphController extends Controller {
             putEdgeIntoMap(batchEdges, entry.getKey(), entry.getValue());
             putEdgeIntoMap(totalEdges, entry.getKey(), entry.getValue());
         }
+        totalEdgesVersion++;
+    }
+
+    /**
+     * add the edges of the last batch to the incremental clustering
+     */
+    private void loadClusters() {
+        if (parser.getClusteringAlgorithm() == 0) {
+            loadHGC();
+        } else if (parser.getClusteringAlgorithm() == 1) {
+            if (kmeans == null)
+                kmeans = new IKmeans(K);
+            loadKmeans();
+        }
     }
 
     private void loadKmeans() {
@@ -211,8 +622,29 @@ public class GraphController extends Controller {
         }
     }
 
+    /**
+     * aggregate the edges between the K-means clusters, only again once the centers moved or the edges changed
+     */
+    private HashMap<Edge, Integer> getKmeansEdges() {
+        if (kmeansEdges == null || kmeansEdgesVersion != kmeans.getVersion() || kmeansEdgesTotalVersion != totalEdgesVersion) {
+            kmeansEdges = new HashMap<>();
+            for (Map.Entry<Edge, Integer> entry : totalEdges.entrySet()) {
+                Edge edge = entry.getKey();
+                Point from = kmeans.getParent(edge.getFromPoint());
+                Point to = kmeans.getParent(edge.getToPoint());
+                if (from == null || to == null)
+                    break;
+                putEdgeIntoMap(kmeansEdges, new Edge(from, to), entry.getValue());
+            }
+            kmeansEdgesVersion = kmeans.getVersion();
+            kmeansEdgesTotalVersion = totalEdgesVersion;
+        }
+        return kmeansEdges;
+    }
+
     private void loadHGC() {
-        clustering.load(batchEdges);
+        if (hierarchy == clustering)
+            clustering.load(batchEdges);
     }
 
 
@@ -229,7 +661,7 @@ public class GraphController extends Controller {
         } else {
             if (parser.getClusteringAlgorithm() == 0) {
                 //so it always redraws all batches from scratch though they were added incrementally
-                List<Cluster> clusters = this.clustering.getClusters(new double[]{parser.getLowerLongitude(), parser.getLowerLatitude(), parser.getUpperLongitude(), parser.getUpperLatitude()}, parser.getZoom());
+                List<Cluster> clusters = this.hierarchy.getClusters(new double[]{parser.getLowerLongitude(), parser.getLowerLatitude(), parser.getUpperLongitude(), parser.getUpperLatitude()}, parser.getZoom());
 //                List<model.Cluster> clusters = Arrays.asList(iSuperCluster.getClusters(parser.getLowerLongitude(), parser.getLowerLatitude(), parser.getUpperLongitude(), parser.getUpperLatitude(), parser.getZoom()));
 //                pointsMap = clusters.stream().collect(HashMap::new, (point, cluster) -> {
 //                    point.put(new Point(cluster.getX(), cluster.getY()), cluster.getNumPoints());
@@ -248,7 +680,7 @@ public class GraphController extends Controller {
         response.setPoints(pointsMap);
         response.setPointsCnt(getTotalPointsSize());
         response.setClustersCnt(pointsMap.size());
-        response.setRepliesCnt(getTotalEdgesSize());
+        setRepliesEstimate();
     }
 
     /**
@@ -261,25 +693,33 @@ public class GraphController extends Controller {
         HashSet<Cluster> internalCluster = new HashSet<>();
         int zoomLevel = 18;
         if (parser.getClustering() == 1 && parser.getClusteringAlgorithm() != 0) {
-            for (Edge edge : totalEdges.keySet()) {
-                putEdgeIntoMap(edges, new Edge(kmeans.getParent(edge.getFromPoint()), kmeans.getParent(edge.getToPoint())), totalEdges.get(edge));
-            }
+            edges.putAll(getKmeansEdges());
         } else {
             if (parser.getClustering() != 0)
                 zoomLevel = parser.getZoom();
             generateEdgeSet(edges, externalEdgeSet, externalCluster, internalCluster, zoomLevel);
             if (parser.getTreeCutting() == 1) {
                 TreeCut treeCutInstance = new TreeCut();
-                treeCutInstance.execute(this.clustering, parser.getLowerLongitude(), parser.getUpperLongitude(), parser.getLowerLatitude(), parser.getUpperLatitude(), parser.getZoom(), edges, externalEdgeSet, externalCluster, internalCluster);
+                treeCutInstance.execute(this.hierarchy, parser.getLowerLongitude(), parser.getUpperLongitude(), parser.getLowerLatitude(), parser.getUpperLatitude(), parser.getZoom(), edges, externalEdgeSet, externalCluster, internalCluster);
             }
         }
         int edgeCnt = edges.size();
         response.setEdgesCnt(edgeCnt);
+        if (sampledFraction < 1) {
+            response.setEdgeIntervals(toLongLat(edges), sampledFraction);
+            // the edges are drawn at their estimated weights rather than the sampled ones
+            edges.replaceAll((edge, weight) -> (int) Math.round(weight / sampledFraction));
+        } else {
+            response.setEdgeIntervalData(null);
+        }
         if (parser.getBundling() == 0) {
             noBundling(edges);
         } else {
             if (parser.getBundlingAlgorithm() == 0) {
-                runFDEB(edges);
+                if (!loadPrecomputedBundling() && !loadPrefetchedBundling())
+                    runFDEB(edges);
+            } else if (parser.getBundlingAlgorithm() == 3) {
+                runKDEEB(edges);
             } else {
                 if (!incremental) {
                     runFDEB(edges);
@@ -288,7 +728,18 @@ public class GraphController extends Controller {
                 }
             }
         }
-        response.setRepliesCnt(getTotalEdgesSize());
+        setRepliesEstimate();
+    }
+
+    /**
+     * set the number of replies, estimated with its confidence interval when the slices are a random sample
+     */
+    private void setRepliesEstimate() {
+        double[] estimate = SampleEstimate.interval(getTotalEdgesSize(), sampledFraction);
+        response.setRepliesCnt((int) Math.round(estimate[0]));
+        response.setRepliesCntLower((int) Math.round(estimate[1]));
+        response.setRepliesCntUpper((int) Math.round(estimate[2]));
+        response.setSampledFraction(sampledFraction);
     }
 
     /**
@@ -332,37 +783,76 @@ public class GraphController extends Controller {
             edgesMap = batchEdges;
         if (parser.getBundlingAlgorithm() == 1 && totalEdges.size() > minimum_edges_confidence)
             incremental = true;
+        // without tree cut, all the edges of a clustered zoom level come from the meta-edges of the clusters on screen
+        double[] bbox = {parser.getLowerLongitude(), parser.getLowerLatitude(), parser.getUpperLongitude(), parser.getUpperLatitude()};
+        if (edgesMap == totalEdges && hierarchy == clustering && parser.getTreeCutting() == 0 && zoom <= clustering.getMaxZoom()) {
+            generateMetaEdgeSet(edges, internalCluster, bbox, zoom);
+            return;
+        }
         for (Edge edge : edgesMap.keySet()) {
-            Cluster fromCluster = clustering.parentCluster(new Cluster(new Point(Clustering.lngX(edge.getFromX()), Clustering.latY(edge.getFromY()))), zoom);
-            Cluster toCluster = clustering.parentCluster(new Cluster(new Point(Clustering.lngX(edge.getToX()), Clustering.latY(edge.getToY()))), zoom);
-            double fromLongitude = Clustering.xLng(fromCluster.getX());
-            double fromLatitude = Clustering.yLat(fromCluster.getY());
-            double toLongitude = Clustering.xLng(toCluster.getX());
-            double toLatitude = Clustering.yLat(toCluster.getY());
-            boolean fromWithinRange = parser.getLowerLongitude() <= fromLongitude && fromLongitude <= parser.getUpperLongitude()
-                    && parser.getLowerLatitude() <= fromLatitude && fromLatitude <= parser.getUpperLatitude();
-            boolean toWithinRange = parser.getLowerLongitude() <= toLongitude && toLongitude <= parser.getUpperLongitude()
-                    && parser.getLowerLatitude() <= toLatitude && toLatitude <= parser.getUpperLatitude();
-            Edge e = new Edge(fromCluster, toCluster);
-            if (Math.pow(e.length(), 2) <= 0.001)
+            Cluster fromCluster = hierarchy.parentCluster(edge.getFromPoint(), zoom);
+            Cluster toCluster = hierarchy.parentCluster(edge.getToPoint(), zoom);
+            // a point the hierarchy does not hold, e.g. loaded after its snapshot was saved, has no cluster to draw
+            if (fromCluster == null || toCluster == null)
                 continue;
-            if (fromWithinRange && toWithinRange) {
-                putEdgeIntoMap(edges, e, edgesMap.get(edge));
-                internalCluster.add(fromCluster);
-                internalCluster.add(toCluster);
-            } else if (fromWithinRange || toWithinRange) {
-                if (parser.getTreeCutting() == 0) {
-                    putEdgeIntoMap(edges, e, edgesMap.get(edge));
+            projectEdge(edges, externalEdgeSet, externalCluster, internalCluster, bbox, edge, fromCluster, toCluster, edgesMap.get(edge));
+        }
+    }
+
+    /**
+     * prepares the edge set of a window from the meta-edges of the HGC clusters within it, without tree cut
+     *
+     * @param edges           the returning edge set
+     * @param internalCluster inside screen clusters
+     * @param bbox            the bounding box of the window
+     * @param zoom            the zoom level
+     */
+    private void generateMetaEdgeSet(HashMap<Edge, Integer> edges, HashSet<Cluster> internalCluster, double[] bbox, int zoom) {
+        HashMap<Edge, Integer> metaEdges = clustering.getMetaEdges(bbox, zoom);
+        for (Map.Entry<Edge, Integer> metaEdge : metaEdges.entrySet()) {
+            projectEdge(edges, null, null, internalCluster, bbox, metaEdge.getKey(),
+                    (Cluster) metaEdge.getKey().getFromPoint(), (Cluster) metaEdge.getKey().getToPoint(), metaEdge.getValue());
+        }
+    }
+
+    /**
+     * add the edge between the clusters of both ends of an edge to the edge sets, depending on whether they are on screen
+     *
+     * @param bbox        the bounding box of the screen
+     * @param edge        the edge
+     * @param fromCluster the cluster of its source
+     * @param toCluster   the cluster of its target
+     * @param weight      weight of the edge
+     */
+    private void projectEdge(HashMap<Edge, Integer> edges, HashSet<Edge> externalEdgeSet, HashSet<Cluster> externalCluster,
+                             HashSet<Cluster> internalCluster, double[] bbox, Edge edge, Cluster fromCluster, Cluster toCluster, int weight) {
+        double fromLongitude = Clustering.xLng(fromCluster.getX());
+        double fromLatitude = Clustering.yLat(fromCluster.getY());
+        double toLongitude = Clustering.xLng(toCluster.getX());
+        double toLatitude = Clustering.yLat(toCluster.getY());
+        boolean fromWithinRange = bbox[0] <= fromLongitude && fromLongitude <= bbox[2]
+                && bbox[1] <= fromLatitude && fromLatitude <= bbox[3];
+        boolean toWithinRange = bbox[0] <= toLongitude && toLongitude <= bbox[2]
+                && bbox[1] <= toLatitude && toLatitude <= bbox[3];
+        Edge e = new Edge(fromCluster, toCluster);
+        if (Math.pow(e.length(), 2) <= 0.001)
+            return;
+        if (fromWithinRange && toWithinRange) {
+            putEdgeIntoMap(edges, e, weight);
+            internalCluster.add(fromCluster);
+            internalCluster.add(toCluster);
+        } else if (fromWithinRange || toWithinRange) {
+            if (parser.getTreeCutting() == 0) {
+                putEdgeIntoMap(edges, e, weight);
+            } else {
+                if (fromWithinRange) {
+                    externalCluster.add(toCluster);
                 } else {
-                    if (fromWithinRange) {
-                        externalCluster.add(toCluster);
-                    } else {
-                        externalCluster.add(fromCluster);
-                    }
-                    externalEdgeSet.add(edge);
+                    externalCluster.add(fromCluster);
                 }
-
+                externalEdgeSet.add(edge);
             }
+
         }
     }
 
@@ -383,6 +873,24 @@ public class GraphController extends Controller {
         }
     }
 
+    /**
+     * take the weight of an edge out of a map, removing the edge once its weight is zero
+     *
+     * @param edges  map of edges and width
+     * @param edge   edge
+     * @param weight weight of edge
+     */
+    private void removeEdgeFromMap(HashMap<Edge, Integer> edges, Edge edge, int weight) {
+        Integer current = edges.get(edge);
+        if (current == null)
+            return;
+        if (current <= weight) {
+            edges.remove(edge);
+        } else {
+            edges.put(edge, current - weight);
+        }
+    }
+
     /**
      * put edge into map
      *
@@ -406,28 +914,188 @@ public class GraphController extends Controller {
      * @param edges input edges
      */
     private void runFDEB(HashMap<Edge, Integer> edges) {
-        HashMap<Edge, Integer> edgesLongLat = edges.entrySet().stream().collect(HashMap::new, (edge, cluster) -> {
-            edge.put(new Edge(new Point(Clustering.xLng(cluster.getKey().getFromX()),
-                            Clustering.yLat(cluster.getKey().getFromY())),
-                            new Point(Clustering.xLng(cluster.getKey().getToX()),
-                                    Clustering.yLat(cluster.getKey().getToY())))
-                    , cluster.getValue());
-        }, HashMap::putAll);
-        ForceBundling forceBundling = new ForceBundling(edgesLongLat.keySet());
-        forceBundling.setS(parser.getZoom());
+        BundledView view = new BundledView(null, parser.getZoom(), 0, toLongLat(edges));
+        bundle(view, Long.MAX_VALUE);
+        response.setBundledEdges(toBundledEdges(view.edges));
+        response.setIsolatedEdgesCnt(view.isolatedEdgesCnt);
+    }
+
+    /**
+     * run FDEB on the edges of a view
+     *
+     * @param view     the view with its edges in longitude/latitude, which are bundled in place
+     * @param deadline time in milliseconds after which the bundling is abandoned
+     * @return whether the bundling completed, neither interrupted nor past the deadline
+     */
+    private boolean bundle(BundledView view, long deadline) {
+        ForceBundling forceBundling = new ForceBundling(view.edges.keySet());
+        forceBundling.setS(view.zoom);
+        forceBundling.setDeadline(deadline);
         forceBundling.forceBundle();
-        int isolatedEdgesCnt = forceBundling.getIsolatedEdgesCnt();
+        if (forceBundling.isAbandoned()) {
+            return false;
+        }
+        view.isolatedEdgesCnt = forceBundling.getIsolatedEdgesCnt();
+        view.isolatedEdges = new HashSet<>();
+        for (Edge edge : view.edges.keySet()) {
+            if (ForceBundling.isIsolated(edge)) {
+                view.isolatedEdges.add(edge);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * run KDEEB on the edges, in time linear in the edges and the size of its density grid
+     *
+     * @param edges input edges
+     */
+    private void runKDEEB(HashMap<Edge, Integer> edges) {
+        edges = toLongLat(edges);
+        KernelDensityBundling kernelDensityBundling = new KernelDensityBundling(edges);
+        kernelDensityBundling.bundle();
+        response.setBundledEdges(toBundledEdges(edges));
+        response.setIsolatedEdgesCnt(kernelDensityBundling.getIsolatedEdgesCnt());
+    }
+
+    /**
+     * split the bundled edges into their segments, colored from source to target
+     *
+     * @param edges bundled edges and their weights
+     * @return the segments and their features
+     */
+    private HashMap<Edge, EdgeFeature> toBundledEdges(HashMap<Edge, Integer> edges) {
         HashMap<Edge, EdgeFeature> edgesData = new HashMap<>();
         double percentage;
-        for (Edge edge : edgesLongLat.keySet()) {
+        for (Edge edge : edges.keySet()) {
             for (int j = 0; j < edge.getSubdivisionPoints().size() - 1; j++) {
                 percentage = (float) j / edge.getSubdivisionPoints().size();
                 int[] color = {(int) Math.round(percentage * max_RGB_color), 0, (int) Math.round((1 - percentage) * max_RGB_color)};
-                putBundledEdgesIntoMap(edgesData, new Edge(edge.getSubdivisionPoints().get(j), edge.getSubdivisionPoints().get(j + 1)), new EdgeFeature(color, edgesLongLat.get(edge)));
+                putBundledEdgesIntoMap(edgesData, new Edge(edge.getSubdivisionPoints().get(j), edge.getSubdivisionPoints().get(j + 1)), new EdgeFeature(color, edges.get(edge)));
             }
         }
-        response.setBundledEdges(edgesData);
-        response.setIsolatedEdgesCnt(isolatedEdgesCnt);
+        return edgesData;
+    }
+
+    /**
+     * bundle in the background the views most likely asked for next around the current one:
+     * zooming in anywhere on the screen, panning half a screen in each direction, and zooming out.
+     * Only the FDEB of HGC clusters without tree cut is prefetched, the edge sets are prepared
+     * from the meta-edges before returning and the bundling stops at the next request or once over the CPU budget
+     */
+    private void prefetch() {
+        if (!PropertiesUtil.getPrefetch() || hierarchy != clustering || parser.getClusteringAlgorithm() != 0
+                || parser.getClustering() != 1 || parser.getTreeCutting() != 0 || parser.getEdgeStatus() != 1
+                || parser.getBundling() != 1 || parser.getBundlingAlgorithm() != 0 || totalEdges.isEmpty()) {
+            return;
+        }
+        double[] bbox = {parser.getLowerLongitude(), parser.getLowerLatitude(), parser.getUpperLongitude(), parser.getUpperLatitude()};
+        double width = bbox[2] - bbox[0];
+        double height = bbox[3] - bbox[1];
+        int zoom = parser.getZoom();
+        long version = clustering.getDataVersion();
+        List<BundledView> views = new ArrayList<>();
+        // a view zoomed in anywhere on the screen is within it, a view zoomed out around any point is within a screen around it
+        addView(views, bbox, zoom + 1, version);
+        addView(views, new double[]{bbox[0], bbox[1], bbox[2] + width / 2, bbox[3]}, zoom, version);
+        addView(views, new double[]{bbox[0] - width / 2, bbox[1], bbox[2], bbox[3]}, zoom, version);
+        addView(views, new double[]{bbox[0], bbox[1], bbox[2], bbox[3] + height / 2}, zoom, version);
+        addView(views, new double[]{bbox[0], bbox[1] - height / 2, bbox[2], bbox[3]}, zoom, version);
+        addView(views, new double[]{bbox[0] - width, bbox[1] - height, bbox[2] + width, bbox[3] + height}, zoom - 1, version);
+        if (views.isEmpty()) {
+            return;
+        }
+        long budget = PropertiesUtil.getPrefetchBudgetMs();
+        prefetchJob = prefetchExecutor().submit(() -> {
+            // the budget also stops a view in the middle of its bundling
+            long deadline = System.currentTimeMillis() + budget;
+            for (BundledView view : views) {
+                if (!bundle(view, deadline)) {
+                    return;
+                }
+                synchronized (prefetched) {
+                    prefetched.addLast(view);
+                    if (prefetched.size() > PREFETCH_CACHE_SIZE) {
+                        prefetched.removeFirst();
+                    }
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService prefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newFixedThreadPool(Math.max(1, PropertiesUtil.getPrefetchThreads()), runnable -> {
+                Thread thread = new Thread(runnable, "prefetch");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * prepare the edges of a view to prefetch, unless it is out of the zoom levels or already prefetched
+     */
+    private void addView(List<BundledView> views, double[] bbox, int zoom, long version) {
+        if (zoom < 0 || zoom > clustering.getMaxZoom()) {
+            return;
+        }
+        synchronized (prefetched) {
+            for (BundledView view : prefetched) {
+                if (view.covers(bbox, zoom, version)) {
+                    return;
+                }
+            }
+        }
+        HashMap<Edge, Integer> edges = new HashMap<>();
+        generateMetaEdgeSet(edges, new HashSet<>(), bbox, zoom);
+        if (!edges.isEmpty()) {
+            views.add(new BundledView(bbox, zoom, version, toLongLat(edges)));
+        }
+    }
+
+    /**
+     * stop bundling the views prefetched after the previous request
+     */
+    private void cancelPrefetch() {
+        if (prefetchJob != null) {
+            prefetchJob.cancel(true);
+            prefetchJob = null;
+        }
+    }
+
+    /**
+     * draw the bundled edges of the screen from a prefetched view covering it, keeping the bundled edges with an end on the screen,
+     * the edges a direct FDEB of the screen would bundle, and counting the isolated ones among them.
+     * The bundles may still differ slightly, as the edges of the view off the screen took part in the bundling
+     *
+     * @return whether a prefetched view was found
+     */
+    private boolean loadPrefetchedBundling() {
+        if (hierarchy != clustering || parser.getClustering() != 1 || parser.getTreeCutting() != 0) {
+            return false;
+        }
+        double[] bbox = {parser.getLowerLongitude(), parser.getLowerLatitude(), parser.getUpperLongitude(), parser.getUpperLatitude()};
+        long version = clustering.getDataVersion();
+        BundledView found = null;
+        synchronized (prefetched) {
+            for (BundledView view : prefetched) {
+                if (view.covers(bbox, parser.getZoom(), version)) {
+                    found = view;
+                }
+            }
+        }
+        if (found == null) {
+            return false;
+        }
+        respondBundledView(found, bbox);
+        return true;
+    }
+
+    private static boolean within(Point point, double[] bbox) {
+        return bbox[0] <= point.getX() && point.getX() <= bbox[2] && bbox[1] <= point.getY() && point.getY() <= bbox[3];
     }
 
     /**
@@ -460,14 +1128,24 @@ public class GraphController extends Controller {
      * @param edges input edges
      */
     private void noBundling(HashMap<Edge, Integer> edges) {
-        edges = edges.entrySet().stream().collect(HashMap::new, (edge, cluster) -> {
+        edges = toLongLat(edges);
+        response.setEdges(edges);
+        response.setIsolatedEdgesCnt(edges.size());
+    }
+
+    /**
+     * convert the clustered edges from the mercator projection of HGC to longitude/latitude
+     *
+     * @param edges input edges
+     * @return edges between longitude/latitude points
+     */
+    private HashMap<Edge, Integer> toLongLat(HashMap<Edge, Integer> edges) {
+        return edges.entrySet().stream().collect(HashMap::new, (edge, cluster) -> {
             edge.put(new Edge(new Point(Clustering.xLng(cluster.getKey().getFromX()),
                             Clustering.yLat(cluster.getKey().getFromY())),
                             new Point(Clustering.xLng(cluster.getKey().getToX()),
                                     Clustering.yLat(cluster.getKey().getToY())))
                     , cluster.getValue());
         }, HashMap::putAll);
-        response.setEdges(edges);
-        response.setIsolatedEdgesCnt(edges.size());
     }
 }
@@ -0,0 +1,38 @@
+package controllers;
+
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import tiles.TileService;
+
+/**
+ * This controller serves the slippy map tiles of the clusters and meta-edges of a query,
+ * so that panning only fetches the new tiles and the browser revalidates the others by their ETag.
+ */
+public class TileController extends Controller {
+
+    /**
+     * An action that returns the tile z/x/y of a query in JSON format,
+     * or 304 when the client already has the tile of the current data version.
+     */
+    public Result tile(Http.Request request, String query, int z, int x, int y) {
+        if (!TileService.isValidQueryId(query)) {
+            return badRequest();
+        }
+        String version = TileService.version(query);
+        if (version == null) {
+            return notFound();
+        }
+        String etag = "\"" + version + "\"";
+        if (request.header(Http.HeaderNames.IF_NONE_MATCH).map(etag::equals).orElse(false)) {
+            return status(NOT_MODIFIED).withHeader(Http.HeaderNames.ETAG, etag);
+        }
+        TileService.Tile tile = TileService.tile(query, z, x, y);
+        if (tile == null) {
+            return notFound();
+        }
+        return ok(tile.getData()).as("application/json")
+                .withHeader(Http.HeaderNames.ETAG, "\"" + tile.getVersion() + "\"")
+                .withHeader(Http.HeaderNames.CACHE_CONTROL, "no-cache");
+    }
+}
@@ -40,6 +40,8 @@ public class ForceBundling {
     private final double eps = 1e-6;
     // isolatedEdgesCnt: unbundled edge count
     private int isolatedEdgesCnt = 0;
+    // time in milliseconds after which a speculative bundling is abandoned
+    private long deadline = Long.MAX_VALUE;
 
     /**
      * Constructor of fdeb algorithm.
@@ -85,6 +87,31 @@ public class ForceBundling {
         return isolatedEdgesCnt;
     }
 
+    /**
+     * whether a bundled edge is counted as isolated, compatible with no other edge
+     *
+     * @param edge the edge
+     */
+    public static boolean isIsolated(Edge edge) {
+        return edge.getCompatibilityList() == null && edge.getCompatibleNodes() == null;
+    }
+
+    /**
+     * Abandons the bundling once the time is past the deadline, leaving the edges partly bundled.
+     *
+     * @param deadline time in milliseconds, as of System.currentTimeMillis()
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * whether a speculative bundling is abandoned, its thread interrupted or its deadline passed
+     */
+    public boolean isAbandoned() {
+        return Thread.currentThread().isInterrupted() || System.currentTimeMillis() > deadline;
+    }
+
     /**
      * Sets different moving distance to each zoom level.
      *
@@ -265,6 +292,8 @@ public class ForceBundling {
         double compatibilityThreshold;
         Edge edge;
         for (int e_ind = 0; e_ind < dataEdges.size(); e_ind++) {
+            if (isAbandoned())
+                return;
             if (P == 1) {
                 edge = dataEdges.get(e_ind);
                 compatibilityThreshold = compatibility_threshold;
@@ -278,7 +307,7 @@ public class ForceBundling {
                         dataEdges.get(oe).getCompatibilityList().add(e_ind);
                     }
                 }
-                if (edge.getCompatibilityList() == null && edge.getCompatibleNodes() == null) {
+                if (isIsolated(edge)) {
                     isolatedEdgesCnt++;
                 }
             } else {
@@ -409,6 +438,8 @@ public class ForceBundling {
         ArrayList<ArrayList<Point>> forces = new ArrayList<>();
         for (int cycle = 0; cycle < C; cycle++) {
             for (int iteration = 0; iteration < I; iteration++) {
+                if (isAbandoned())
+                    return;
                 forces.clear();
                 for (int edge = 0; edge < dataEdges.size(); edge++) {
                     forces.add(applyResultingForcesOnSubdivisionPoints(edge, P, S));
@@ -0,0 +1,293 @@
+package edgeBundling;
+
+import models.Edge;
+import models.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Kernel Density Estimation Edge Bundling Algorithm.
+ * The subdivision points of all the edges are splatted into a density grid blurred with a separable kernel,
+ * and each point moves up the gradient of the density, so that the edges are attracted to each other
+ * without comparing them pairwise: an iteration costs the number of points plus the size of the grid.
+ */
+public class KernelDensityBundling {
+
+    // All the data edges
+    private final ArrayList<Edge> dataEdges = new ArrayList<>();
+    // the weight of each data edge, the density its points add
+    private final int[] weights;
+    // Algorithm parameters
+    // resolution: number of cells of the density grid along the longer side of the edges
+    private final int resolution = 256;
+    // P: number of segments of each edge
+    private final int P = 32;
+    // I: number of iterations
+    private final int I = 10;
+    // h_initial: init. kernel radius, as a fraction of the resolution
+    private final double h_initial = 0.05;
+    // h_rate: rate at which the kernel radius decreases
+    private final double h_rate = 0.75;
+    // step: distance moved along the gradient per iteration, as a fraction of the kernel radius
+    private final double step = 0.25;
+    // smoothing: weight of the neighbors when smoothing the paths after each iteration
+    private final double smoothing = 0.5;
+    // number of points moved by each parallel task, a splatting task gets at least as many
+    private final int chunkSize = 1 << 14;
+    // isolatedEdgesCnt: edges that moved less than a cell away from their straight line
+    private int isolatedEdgesCnt = 0;
+
+    // origin, cell size and cells of the density grid
+    private double minX;
+    private double minY;
+    private double cell;
+    private int width;
+    private int height;
+    // coordinates of the subdivision points, P + 1 per edge
+    private double[] xs;
+    private double[] ys;
+    // density grid of each parallel splatting task, reused by the iterations, the first one receives the sum
+    private double[][] grids;
+
+    /**
+     * Constructor of kdeeb algorithm.
+     *
+     * @param dataEdges incoming data edges and their weights.
+     */
+    public KernelDensityBundling(Map<Edge, Integer> dataEdges) {
+        weights = new int[dataEdges.size()];
+        for (Map.Entry<Edge, Integer> entry : dataEdges.entrySet()) {
+            weights[this.dataEdges.size()] = entry.getValue();
+            this.dataEdges.add(entry.getKey());
+        }
+    }
+
+    public int getIsolatedEdgesCnt() {
+        return isolatedEdgesCnt;
+    }
+
+    /**
+     * Runs the edge bundling, setting the subdivision points of the data edges.
+     */
+    public void bundle() {
+        int n = dataEdges.size();
+        xs = new double[n * (P + 1)];
+        ys = new double[n * (P + 1)];
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        minX = Double.MAX_VALUE;
+        minY = Double.MAX_VALUE;
+        for (int e = 0; e < n; e++) {
+            Edge edge = dataEdges.get(e);
+            for (int j = 0; j <= P; j++) {
+                xs[e * (P + 1) + j] = edge.getFromX() + (edge.getToX() - edge.getFromX()) * j / P;
+                ys[e * (P + 1) + j] = edge.getFromY() + (edge.getToY() - edge.getFromY()) * j / P;
+            }
+            minX = Math.min(minX, Math.min(edge.getFromX(), edge.getToX()));
+            minY = Math.min(minY, Math.min(edge.getFromY(), edge.getToY()));
+            maxX = Math.max(maxX, Math.max(edge.getFromX(), edge.getToX()));
+            maxY = Math.max(maxY, Math.max(edge.getFromY(), edge.getToY()));
+        }
+        double span = Math.max(maxX - minX, maxY - minY);
+        if (n > 0 && span > 0) {
+            cell = span / resolution;
+            double h = Math.max(1, h_initial * resolution);
+            // the grid is padded by the largest kernel so that no density is cut at the borders
+            int margin = (int) Math.ceil(h) + 2;
+            minX -= margin * cell;
+            minY -= margin * cell;
+            width = (int) Math.ceil((maxX - minX) / cell) + margin + 1;
+            height = (int) Math.ceil((maxY - minY) / cell) + margin + 1;
+            int tasks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), (xs.length + chunkSize - 1) / chunkSize));
+            grids = new double[tasks][width * height];
+            for (int iteration = 0; iteration < I; iteration++) {
+                // a bundling is abandoned once its thread is interrupted
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                double[] density = splat();
+                blur(density, h);
+                advect(density, step * h * cell);
+                IntStream.range(0, n).parallel().forEach(this::smooth);
+                h = Math.max(1, h * h_rate);
+            }
+            grids = null;
+        }
+        isolatedEdgesCnt = 0;
+        for (int e = 0; e < n; e++) {
+            Edge edge = dataEdges.get(e);
+            List<Point> subdivisionPoints = new ArrayList<>(P + 1);
+            double displacement = 0;
+            for (int j = 0; j <= P; j++) {
+                int i = e * (P + 1) + j;
+                subdivisionPoints.add(new Point(xs[i], ys[i]));
+                double x = edge.getFromX() + (edge.getToX() - edge.getFromX()) * j / P;
+                double y = edge.getFromY() + (edge.getToY() - edge.getFromY()) * j / P;
+                displacement = Math.max(displacement, Math.hypot(xs[i] - x, ys[i] - y));
+            }
+            edge.setSubdivisionPoints(subdivisionPoints);
+            if (displacement < cell)
+                isolatedEdgesCnt++;
+        }
+    }
+
+    /**
+     * splat the subdivision points into the density grid, each over the four closest cells,
+     * every parallel task into its own grid, then sum the grids into the first one
+     *
+     * @return the density of each cell, row by row
+     */
+    private double[] splat() {
+        int points = xs.length;
+        int tasks = grids.length;
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            double[] density = grids[task];
+            Arrays.fill(density, 0);
+            for (int i = (int) ((long) points * task / tasks); i < (int) ((long) points * (task + 1) / tasks); i++) {
+                double gx = (xs[i] - minX) / cell;
+                double gy = (ys[i] - minY) / cell;
+                int cx = Math.max(0, Math.min(width - 2, (int) gx));
+                int cy = Math.max(0, Math.min(height - 2, (int) gy));
+                double fx = Math.max(0, Math.min(1, gx - cx));
+                double fy = Math.max(0, Math.min(1, gy - cy));
+                double weight = weights[i / (P + 1)];
+                density[cy * width + cx] += weight * (1 - fx) * (1 - fy);
+                density[cy * width + cx + 1] += weight * fx * (1 - fy);
+                density[(cy + 1) * width + cx] += weight * (1 - fx) * fy;
+                density[(cy + 1) * width + cx + 1] += weight * fx * fy;
+            }
+        });
+        double[] density = grids[0];
+        if (tasks > 1) {
+            IntStream.range(0, height).parallel().forEach(y -> {
+                for (int task = 1; task < tasks; task++) {
+                    for (int c = y * width; c < (y + 1) * width; c++) {
+                        density[c] += grids[task][c];
+                    }
+                }
+            });
+        }
+        return density;
+    }
+
+    /**
+     * blur the density with a normalized gaussian kernel, first along the rows then along the columns,
+     * so that the total density stays the same whatever the radius
+     *
+     * @param density density grid
+     * @param h       radius of the kernel in cells
+     */
+    private void blur(double[] density, double h) {
+        int radius = (int) Math.ceil(h);
+        double sigma = h / 2;
+        double[] kernel = new double[2 * radius + 1];
+        double total = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+            total += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= total;
+        }
+        double[] rows = new double[density.length];
+        IntStream.range(0, height).parallel().forEach(y -> {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int i = Math.max(-radius, -x); i <= Math.min(radius, width - 1 - x); i++) {
+                    sum += kernel[i + radius] * density[y * width + x + i];
+                }
+                rows[y * width + x] = sum;
+            }
+        });
+        IntStream.range(0, width).parallel().forEach(x -> {
+            for (int y = 0; y < height; y++) {
+                double sum = 0;
+                for (int i = Math.max(-radius, -y); i <= Math.min(radius, height - 1 - y); i++) {
+                    sum += kernel[i + radius] * rows[(y + i) * width + x];
+                }
+                density[y * width + x] = sum;
+            }
+        });
+    }
+
+    /**
+     * move the inner subdivision points of every edge a fixed distance up the gradient of the density,
+     * interpolated between the central differences of the four closest cells
+     *
+     * @param density  blurred density grid
+     * @param distance distance to move
+     */
+    private void advect(double[] density, double distance) {
+        double[] gradientX = new double[density.length];
+        double[] gradientY = new double[density.length];
+        IntStream.range(1, height - 1).parallel().forEach(y -> {
+            for (int x = 1; x < width - 1; x++) {
+                gradientX[y * width + x] = density[y * width + x + 1] - density[y * width + x - 1];
+                gradientY[y * width + x] = density[(y + 1) * width + x] - density[(y - 1) * width + x];
+            }
+        });
+        int points = xs.length;
+        IntStream.range(0, (points + chunkSize - 1) / chunkSize).parallel().forEach(chunk -> {
+            for (int i = chunk * chunkSize; i < Math.min(points, (chunk + 1) * chunkSize); i++) {
+                int j = i % (P + 1);
+                if (j == 0 || j == P)
+                    continue;
+                double gx = (xs[i] - minX) / cell;
+                double gy = (ys[i] - minY) / cell;
+                int cx = Math.max(0, Math.min(width - 2, (int) gx));
+                int cy = Math.max(0, Math.min(height - 2, (int) gy));
+                double fx = Math.max(0, Math.min(1, gx - cx));
+                double fy = Math.max(0, Math.min(1, gy - cy));
+                int c = cy * width + cx;
+                double dx = (gradientX[c] * (1 - fx) + gradientX[c + 1] * fx) * (1 - fy)
+                        + (gradientX[c + width] * (1 - fx) + gradientX[c + width + 1] * fx) * fy;
+                double dy = (gradientY[c] * (1 - fx) + gradientY[c + 1] * fx) * (1 - fy)
+                        + (gradientY[c + width] * (1 - fx) + gradientY[c + width + 1] * fx) * fy;
+                double length = Math.sqrt(dx * dx + dy * dy);
+                if (length > 0) {
+                    xs[i] += distance * dx / length;
+                    ys[i] += distance * dy / length;
+                }
+            }
+        });
+    }
+
+    /**
+     * smooth the path of an edge towards its neighboring points, then resample it into segments of equal length
+     *
+     * @param e the index of the edge
+     */
+    private void smooth(int e) {
+        int first = e * (P + 1);
+        double[] x = new double[P + 1];
+        double[] y = new double[P + 1];
+        x[0] = xs[first];
+        y[0] = ys[first];
+        x[P] = xs[first + P];
+        y[P] = ys[first + P];
+        for (int j = 1; j < P; j++) {
+            x[j] = (1 - smoothing) * xs[first + j] + smoothing * (xs[first + j - 1] + xs[first + j + 1]) / 2;
+            y[j] = (1 - smoothing) * ys[first + j] + smoothing * (ys[first + j - 1] + ys[first + j + 1]) / 2;
+        }
+        double[] lengths = new double[P + 1];
+        for (int j = 1; j <= P; j++) {
+            lengths[j] = lengths[j - 1] + Math.sqrt((x[j] - x[j - 1]) * (x[j] - x[j - 1]) + (y[j] - y[j - 1]) * (y[j] - y[j - 1]));
+        }
+        if (lengths[P] <= 0) {
+            return;
+        }
+        int segment = 1;
+        for (int j = 1; j < P; j++) {
+            double target = lengths[P] * j / P;
+            while (segment < P && lengths[segment] < target)
+                segment++;
+            double segmentLength = lengths[segment] - lengths[segment - 1];
+            double t = segmentLength > 0 ? (target - lengths[segment - 1]) / segmentLength : 0;
+            xs[first + j] = x[segment - 1] + t * (x[segment] - x[segment - 1]);
+            ys[first + j] = y[segment - 1] + t * (y[segment] - y[segment - 1]);
+        }
+    }
+}
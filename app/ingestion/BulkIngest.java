@@ -0,0 +1,336 @@
+package ingestion;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.joda.time.LocalDate;
+import org.postgresql.copy.CopyIn;
+import slicing.EdgeCube;
+import slicing.TermHistogram;
+import utils.DatabaseUtils;
+import utils.PropertiesUtil;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads JSON dumps of replies into the replies table created by data/setup_bulk_ingest.sql,
+ * replacing data/json_to_csv.py and \copy.
+ * One thread reads the dumps, parser threads turn batches of lines into rows of a binary COPY,
+ * each streaming over its own connection into a staging table and inserting every ingestBatchSize rows,
+ * skipping the replies already loaded.
+ * The monthly partitions between firstDate and lastDate are created before loading,
+ * the term histogram and the edge cube are refreshed after it when configured.
+ * The hours replies were inserted into are recorded, so that the refresh counts again the hours
+ * that were already aggregated, for replies backfilled before the latest one.
+ * Usage: sbt "runMain ingestion.BulkIngest user_id.json [more.json ...]"
+ */
+public class BulkIngest {
+    // lines handed to a parser thread at once
+    private static final int LINES_PER_TASK = 1000;
+    // bytes buffered before they are sent to the copy
+    private static final int FLUSH_BYTES = 1 << 20;
+    // marks the end of the dumps for a parser thread
+    private static final List<String> END = Collections.emptyList();
+
+    private final BlockingQueue<List<String>> tasks;
+    private final int threads = Math.max(1, PropertiesUtil.getIngestThreads());
+    private final int batchSize = Math.max(1, PropertiesUtil.getIngestBatchSize());
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private BulkIngest() {
+        tasks = new ArrayBlockingQueue<>(threads * 4);
+    }
+
+    /**
+     * load the given dumps
+     *
+     * @param files JSON dumps, one reply per line
+     */
+    private void ingest(String[] files) throws InterruptedException {
+        createPartitions();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            pool.execute(this::load);
+        }
+        for (String file : files) {
+            read(file);
+        }
+        for (int i = 0; i < threads; i++) {
+            tasks.put(END);
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        System.out.println("loaded " + loaded.get() + " replies, skipped " + skipped.get() + " lines, "
+                + duplicates.get() + " replies already loaded, " + failed.get() + " replies failed");
+    }
+
+    private void read(String file) throws InterruptedException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            List<String> lines = new ArrayList<>(LINES_PER_TASK);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+                if (lines.size() == LINES_PER_TASK) {
+                    tasks.put(lines);
+                    lines = new ArrayList<>(LINES_PER_TASK);
+                }
+            }
+            if (!lines.isEmpty()) {
+                tasks.put(lines);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * parse the lines handed to this thread and stream them to the database over its own connection,
+     * each batch copied into the staging table of the connection and inserted in one transaction
+     */
+    private void load() {
+        ObjectMapper mapper = new ObjectMapper();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(FLUSH_BYTES + (1 << 16));
+        DataOutputStream out = new DataOutputStream(buffer);
+        CopyIn copyIn = null;
+        int rows = 0;
+        try (Connection conn = DatabaseUtils.newConnection()) {
+            if (conn == null) {
+                drain();
+                return;
+            }
+            try (PreparedStatement staging = DatabaseUtils.prepareStagingTableStatement(conn)) {
+                staging.executeUpdate();
+            }
+            conn.setAutoCommit(false);
+            while (true) {
+                List<String> lines = tasks.take();
+                if (lines == END) {
+                    break;
+                }
+                for (String line : lines) {
+                    ReplyRecord record;
+                    try {
+                        record = ReplyRecord.parse(line, mapper);
+                    } catch (IOException | RuntimeException e) {
+                        record = null;
+                    }
+                    if (record == null) {
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    if (copyIn == null) {
+                        copyIn = DatabaseUtils.prepareCopyIn(conn);
+                        if (copyIn == null) {
+                            failed.incrementAndGet();
+                            continue;
+                        }
+                        ReplyRecord.writeHeader(out);
+                    }
+                    record.write(out);
+                    rows++;
+                    if (buffer.size() >= FLUSH_BYTES) {
+                        copyIn = flush(conn, copyIn, buffer, rows);
+                        if (copyIn == null) {
+                            // the failed rows are counted, the next row starts a new copy
+                            rows = 0;
+                            continue;
+                        }
+                    }
+                    if (rows >= batchSize) {
+                        ReplyRecord.writeTrailer(out);
+                        CopyIn ending = copyIn;
+                        copyIn = null;
+                        end(conn, ending, buffer, rows);
+                        rows = 0;
+                    }
+                }
+            }
+            if (copyIn != null) {
+                ReplyRecord.writeTrailer(out);
+                CopyIn ending = copyIn;
+                copyIn = null;
+                end(conn, ending, buffer, rows);
+            }
+        } catch (InterruptedException | IOException | SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (copyIn != null) {
+                cancel(copyIn);
+                failed.addAndGet(rows);
+            }
+        }
+    }
+
+    /**
+     * take the tasks of a thread without a connection until the end of the dumps, counting their lines as failed
+     */
+    private void drain() throws InterruptedException {
+        while (true) {
+            List<String> lines = tasks.take();
+            if (lines == END) {
+                return;
+            }
+            failed.addAndGet(lines.size());
+        }
+    }
+
+    /**
+     * send the buffered rows to the copy
+     *
+     * @return the copy, or null if it failed and the rows of its transaction are lost
+     */
+    private CopyIn flush(Connection conn, CopyIn copyIn, ByteArrayOutputStream buffer, int rows) {
+        if (copyIn != null) {
+            try {
+                copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+            } catch (SQLException e) {
+                e.printStackTrace();
+                cancel(copyIn);
+                rollback(conn);
+                failed.addAndGet(rows);
+                copyIn = null;
+            }
+        }
+        buffer.reset();
+        return copyIn;
+    }
+
+    /**
+     * send the remaining rows, insert the staged rows that are not loaded yet and commit the transaction,
+     * the replies already loaded are counted as duplicates
+     */
+    private void end(Connection conn, CopyIn copyIn, ByteArrayOutputStream buffer, int rows) {
+        copyIn = flush(conn, copyIn, buffer, rows);
+        if (copyIn == null) {
+            return;
+        }
+        try {
+            copyIn.endCopy();
+            long inserted = 0;
+            try (PreparedStatement state = DatabaseUtils.prepareInsertStagedStatement(conn);
+                 ResultSet resultSet = state.executeQuery()) {
+                if (resultSet.next()) {
+                    inserted = resultSet.getLong("inserted");
+                }
+            }
+            conn.commit();
+            loaded.addAndGet(inserted);
+            duplicates.addAndGet(rows - inserted);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            cancel(copyIn);
+            rollback(conn);
+            failed.addAndGet(rows);
+        }
+    }
+
+    private void cancel(CopyIn copyIn) {
+        try {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void rollback(Connection conn) {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * create the monthly partitions between firstDate and lastDate,
+     * before the copies start since creating a partition waits for the copies into the parent.
+     * The default partition is detached meanwhile, and its replies within the months moved to their partitions,
+     * since a partition cannot be created for a range the default partition holds rows of
+     */
+    private static void createPartitions() {
+        LocalDate first = PropertiesUtil.getFirstDate().toLocalDate().withDayOfMonth(1);
+        LocalDate last = PropertiesUtil.getLastDate().toLocalDate();
+        try (Connection conn = DatabaseUtils.newConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement state = DatabaseUtils.prepareDefaultPartitionStatement(conn, false)) {
+                    state.executeUpdate();
+                }
+                LocalDate month = first;
+                while (!month.isAfter(last)) {
+                    try (PreparedStatement state = DatabaseUtils.preparePartitionStatement(conn, month)) {
+                        state.executeUpdate();
+                    }
+                    month = month.plusMonths(1);
+                }
+                try (PreparedStatement state = DatabaseUtils.prepareMoveDefaultStatement(conn, first, month)) {
+                    state.executeUpdate();
+                }
+                try (PreparedStatement state = DatabaseUtils.prepareDefaultPartitionStatement(conn, true)) {
+                    state.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void clearIngestedHours() {
+        try (PreparedStatement state = DatabaseUtils.prepareClearIngestedHoursStatement(DatabaseUtils.getConnection())) {
+            state.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * load JSON dumps of replies
+     *
+     * @param args paths of the dumps
+     */
+    public static void main(String[] args) throws InterruptedException {
+        PropertiesUtil.loadProperties();
+        if (args.length == 0) {
+            System.out.println("usage: ingestion.BulkIngest dump.json [more.json ...]");
+            return;
+        }
+        new BulkIngest().ingest(args);
+        if (PropertiesUtil.isIngestHistogram()) {
+            TermHistogram.recountIngested();
+            TermHistogram.build();
+        }
+        if (PropertiesUtil.isEdgeCube()) {
+            EdgeCube.recountIngested();
+            EdgeCube.refresh();
+        }
+        // the hours are kept for the next ingestion while an aggregate is not refreshed, counting them again is idempotent
+        if (PropertiesUtil.isIngestHistogram() && PropertiesUtil.isEdgeCube()) {
+            clearIngestedHours();
+        }
+    }
+}
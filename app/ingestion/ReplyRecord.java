@@ -0,0 +1,174 @@
+package ingestion;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One reply of a JSON dump, with its coordinates computed as data/json_to_csv.py does:
+ * the exact coordinate of each side if present, otherwise the center of its bounding box.
+ */
+class ReplyRecord {
+    // for float comparison
+    private static final double eps = 1e-5;
+    // number of columns of a row of the binary COPY
+    private static final short COLUMNS = 10;
+    // postgres timestamps are microseconds since 2000-01-01
+    private static final long POSTGRES_EPOCH_MS = new LocalDateTime(2000, 1, 1, 0, 0).toDateTime(DateTimeZone.UTC).getMillis();
+    private static final DateTimeFormatter dateParser = ISODateTimeFormat.dateTimeParser().withOffsetParsed();
+
+    long tweetFrom;
+    LocalDateTime fromCreateAt;
+    String fromText;
+    double fromLongitude;
+    double fromLatitude;
+    long tweetTo;
+    LocalDateTime toCreateAt;
+    String toText;
+    double toLongitude;
+    double toLatitude;
+
+    /**
+     * parse one line of a dump
+     *
+     * @param line   line of the dump, an element of a JSON array possibly with its brackets or separating comma
+     * @param mapper JSON parser
+     * @return the reply, null if the line holds no reply, lacks a location or has the same source and target
+     * @throws IOException if the line is not valid JSON
+     */
+    static ReplyRecord parse(String line, ObjectMapper mapper) throws IOException {
+        JsonNode data = mapper.readTree(lineStrip(line));
+        if (data == null || data.size() == 0) {
+            return null;
+        }
+        JsonNode reply = data.get(0).get("ds_tweet_reply_graph");
+        if (reply == null) {
+            return null;
+        }
+        double[] source = location(reply, "from");
+        double[] target = location(reply, "to");
+        // if source and target are the same, don't add the record
+        if (source == null || target == null
+                || (Math.abs(source[0] - target[0]) <= eps && Math.abs(source[1] - target[1]) <= eps)) {
+            return null;
+        }
+        ReplyRecord record = new ReplyRecord();
+        record.tweetFrom = reply.get("tweet_from").asLong();
+        record.fromCreateAt = parseDate(reply.get("from_create_at").asText());
+        record.fromText = cleanText(reply.get("from_text").asText());
+        record.fromLongitude = source[0];
+        record.fromLatitude = source[1];
+        record.tweetTo = reply.get("tweet_to").asLong();
+        record.toCreateAt = parseDate(reply.get("to_create_at").asText());
+        record.toText = cleanText(reply.get("to_text").asText());
+        record.toLongitude = target[0];
+        record.toLatitude = target[1];
+        return record;
+    }
+
+    /**
+     * write the reply as a row of a binary COPY
+     *
+     * @param out stream of the copy
+     * @throws IOException if the stream fails
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeShort(COLUMNS);
+        writeLong(out, tweetFrom);
+        writeLong(out, micros(fromCreateAt));
+        writeText(out, fromText);
+        writeDouble(out, fromLongitude);
+        writeDouble(out, fromLatitude);
+        writeLong(out, tweetTo);
+        writeLong(out, micros(toCreateAt));
+        writeText(out, toText);
+        writeDouble(out, toLongitude);
+        writeDouble(out, toLatitude);
+    }
+
+    /**
+     * write the signature, flags and header extension of a binary COPY
+     */
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeBytes("PGCOPY\n");
+        out.write(new byte[]{(byte) 0xff, '\r', '\n', 0});
+        out.writeInt(0);
+        out.writeInt(0);
+    }
+
+    static void writeTrailer(DataOutputStream out) throws IOException {
+        out.writeShort(-1);
+    }
+
+    // strip out extra white spaces, commas and brackets
+    private static String lineStrip(String line) {
+        line = line.trim();
+        if (line.startsWith("[")) {
+            line = line.substring(1);
+        }
+        if (line.startsWith(",")) {
+            line = line.substring(1);
+        }
+        if (line.endsWith("]")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        return "[" + line + "]";
+    }
+
+    /**
+     * the coordinate of one side of the reply, or the center of its bounding box
+     *
+     * @param reply reply node
+     * @param side  from or to
+     * @return {longitude, latitude}, null if the reply has neither
+     */
+    private static double[] location(JsonNode reply, String side) {
+        JsonNode coordinate = reply.get(side + "_coordinate");
+        if (coordinate != null && !coordinate.isNull()) {
+            return new double[]{coordinate.get(0).asDouble(), coordinate.get(1).asDouble()};
+        }
+        JsonNode box = reply.get(side + "_bounding_box");
+        if (box == null || box.isNull()) {
+            return null;
+        }
+        return new double[]{(box.get(0).get(0).asDouble() + box.get(1).get(0).asDouble()) / 2,
+                (box.get(0).get(1).asDouble() + box.get(1).get(1).asDouble()) / 2};
+    }
+
+    // ignore "\n" and "|" in texts like the csv loading, and the NUL characters postgres rejects
+    private static String cleanText(String text) {
+        return text.replace("\n", " ").replace("|", " ").replace("\u0000", "");
+    }
+
+    // a timestamp without time zone keeps the local fields and ignores the offset, like postgres
+    private static LocalDateTime parseDate(String date) {
+        return dateParser.parseDateTime(date.trim().replace(' ', 'T')).toLocalDateTime();
+    }
+
+    private static long micros(LocalDateTime date) {
+        return (date.toDateTime(DateTimeZone.UTC).getMillis() - POSTGRES_EPOCH_MS) * 1000;
+    }
+
+    private static void writeLong(DataOutputStream out, long value) throws IOException {
+        out.writeInt(8);
+        out.writeLong(value);
+    }
+
+    private static void writeDouble(DataOutputStream out, double value) throws IOException {
+        out.writeInt(8);
+        out.writeDouble(value);
+    }
+
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
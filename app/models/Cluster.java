@@ -10,7 +10,7 @@ public class Cluster extends Point {
     private int zoom;
     private Cluster parent;
     private List<Cluster> children;
-    private List<Cluster> targetClusters;
+    private ClusterSet targetClusters;
     private boolean shifted;
     private Point original;
     private int gridLocation;
@@ -32,7 +32,7 @@ public class Cluster extends Point {
             this.numPoints = ((Cluster) point).getNumPoints();
         this.parent = null;
         this.zoom = Integer.MAX_VALUE;
-        this.targetClusters = new ArrayList<>();
+        this.targetClusters = new ClusterSet();
         this.shifted = false;
         this.original = new Point(point.getX(), point.getY());
         this.gridLocation = -1;
@@ -123,11 +123,11 @@ public class Cluster extends Point {
         this.numPoints = numPoints;
     }
 
-    public List<Cluster> getTargetClusters() {
+    public ClusterSet getTargetClusters() {
         return targetClusters;
     }
 
-    public void setTargetClusters(List<Cluster> targetClusters) {
+    public void setTargetClusters(ClusterSet targetClusters) {
         this.targetClusters = targetClusters;
     }
 
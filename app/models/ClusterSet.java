@@ -0,0 +1,194 @@
+package models;
+
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of clusters compared by identity, stored in an open-addressing table with linear probing,
+ * so that the clusters a hub links to are looked up in constant time instead of scanning a list.
+ */
+public class ClusterSet extends AbstractSet<Cluster> {
+    private static final Object[] EMPTY = new Object[0];
+    // marks the slot of a removed cluster, so that the probes go on past it
+    private static final Object REMOVED = new Object();
+    private Object[] table = EMPTY;
+    private int size;
+    // number of slots marked as removed
+    private int removed;
+    private int modifications;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o != null && table.length > 0 && table[slot(o)] == o;
+    }
+
+    @Override
+    public boolean add(Cluster cluster) {
+        if (cluster == null)
+            throw new NullPointerException();
+        if ((size + removed + 1) * 4 > table.length * 3)
+            resize(size + 1);
+        int mask = table.length - 1;
+        int firstRemoved = -1;
+        for (int i = hash(cluster) & mask; ; i = (i + 1) & mask) {
+            Object o = table[i];
+            if (o == cluster)
+                return false;
+            if (o == REMOVED) {
+                if (firstRemoved < 0)
+                    firstRemoved = i;
+            } else if (o == null) {
+                if (firstRemoved >= 0) {
+                    i = firstRemoved;
+                    removed--;
+                }
+                table[i] = cluster;
+                size++;
+                modifications++;
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null || table.length == 0)
+            return false;
+        int i = slot(o);
+        if (table[i] != o)
+            return false;
+        removeAt(i);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        table = EMPTY;
+        size = 0;
+        removed = 0;
+        modifications++;
+    }
+
+    @Override
+    public Iterator<Cluster> iterator() {
+        return new Iterator<Cluster>() {
+            private int next = advance(0);
+            private int last = -1;
+            private int expected = modifications;
+
+            private int advance(int i) {
+                while (i < table.length && (table[i] == null || table[i] == REMOVED))
+                    i++;
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < table.length;
+            }
+
+            @Override
+            public Cluster next() {
+                if (expected != modifications)
+                    throw new ConcurrentModificationException();
+                if (next >= table.length)
+                    throw new NoSuchElementException();
+                last = next;
+                next = advance(next + 1);
+                return (Cluster) table[last];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0)
+                    throw new IllegalStateException();
+                if (expected != modifications)
+                    throw new ConcurrentModificationException();
+                removeAt(last);
+                expected = modifications;
+                last = -1;
+            }
+        };
+    }
+
+    /**
+     * check whether more than a fraction of the clusters of the smaller set are in the other set,
+     * probing the larger set with the clusters of the smaller one and stopping as soon as the answer is known
+     *
+     * @param other    the other set
+     * @param fraction the fraction of the smaller set
+     * @return true if the common clusters are more than the fraction of the smaller set
+     */
+    public boolean overlapsMoreThan(ClusterSet other, double fraction) {
+        ClusterSet smaller = size <= other.size ? this : other;
+        ClusterSet larger = smaller == this ? other : this;
+        if (smaller.size == 0)
+            return false;
+        // number of common clusters the answer turns true above
+        double needed = fraction * smaller.size;
+        int count = 0;
+        int left = smaller.size;
+        for (Object o : smaller.table) {
+            if (o == null || o == REMOVED)
+                continue;
+            if (larger.contains(o) && ++count > needed)
+                return true;
+            // the remaining clusters can no longer reach it
+            if (count + --left <= needed)
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * @return the slot of a cluster, or the empty slot ending its probe
+     */
+    private int slot(Object o) {
+        int mask = table.length - 1;
+        int i = hash(o) & mask;
+        while (table[i] != null && table[i] != o)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void removeAt(int i) {
+        table[i] = REMOVED;
+        size--;
+        removed++;
+        modifications++;
+        if (size == 0) {
+            table = EMPTY;
+            removed = 0;
+        }
+    }
+
+    private void resize(int capacity) {
+        int length = 2;
+        while (length * 3 < capacity * 4 + 4)
+            length <<= 1;
+        Object[] old = table;
+        table = new Object[length];
+        removed = 0;
+        int mask = length - 1;
+        for (Object o : old) {
+            if (o == null || o == REMOVED)
+                continue;
+            int i = hash(o) & mask;
+            while (table[i] != null)
+                i = (i + 1) & mask;
+            table[i] = o;
+        }
+    }
+
+    private static int hash(Object o) {
+        int h = System.identityHashCode(o);
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,168 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sparse grid index: only the non-empty cells are allocated, in a hash map keyed by their (i, j) packed in a long.
+ * With cells the size of the search radius of a zoom level, a radius search reads 3 x 3 cells
+ * at any resolution, where GridIndex allocates every cell and is capped at MAX_RESOLUTION.
+ */
+public class HashGridIndex implements SpatialIndex {
+
+    // side of a cell
+    private final double step;
+    // the points of the non-empty cells
+    private final HashMap<Long, List<Cluster>> cells = new HashMap<>();
+    // the cell holding each point, to remove points that moved since they were inserted
+    private final Map<Cluster, Long> keys = new IdentityHashMap<>();
+    private int size;
+
+    public HashGridIndex(double step) {
+        this.step = step;
+    }
+
+    private int locate(double v) {
+        return (int) Math.floor(v / step);
+    }
+
+    private static long key(int i, int j) {
+        return ((long) i << 32) | (j & 0xffffffffL);
+    }
+
+    public void insert(Cluster point) {
+        long key = key(locate(point.getX()), locate(point.getY()));
+        cells.computeIfAbsent(key, k -> new ArrayList<>()).add(point);
+        keys.put(point, key);
+        size++;
+    }
+
+    public void delete(Cluster point) {
+        long key = key(locate(point.getX()), locate(point.getY()));
+        List<Cluster> cell = cells.get(key);
+        if (cell == null) {
+            return;
+        }
+        for (int k = 0; k < cell.size(); k++) {
+            if (cell.get(k).equals(point)) {
+                keys.remove(cell.remove(k));
+                if (cell.isEmpty()) {
+                    cells.remove(key);
+                }
+                size--;
+                return;
+            }
+        }
+    }
+
+    public boolean remove(Cluster point) {
+        Long key = keys.remove(point);
+        if (key == null) {
+            return false;
+        }
+        List<Cluster> cell = cells.get(key);
+        cell.removeIf(c -> c == point);
+        if (cell.isEmpty()) {
+            cells.remove(key);
+        }
+        size--;
+        return true;
+    }
+
+    public Map<Integer, List<Cluster>> within(Point center, double radius) {
+        List<Cluster> candidates = new ArrayList<>();
+        int right = locate(center.getX() + radius);
+        int top = locate(center.getY() + radius);
+        for (int i = locate(center.getX() - radius); i <= right; i++) {
+            for (int j = locate(center.getY() - radius); j <= top; j++) {
+                List<Cluster> cell = cells.get(key(i, j));
+                if (cell == null) {
+                    continue;
+                }
+                for (Cluster c : cell) {
+                    if (c.distanceTo(center) <= radius) {
+                        candidates.add(c);
+                    }
+                }
+            }
+        }
+        return SpatialIndex.nearestByGridLocation(center, candidates);
+    }
+
+    public List<Cluster> range(Point leftBottom, Point rightTop) {
+        List<Cluster> result = new ArrayList<>();
+        int left = locate(leftBottom.getX());
+        int bottom = locate(leftBottom.getY());
+        int right = locate(rightTop.getX());
+        int top = locate(rightTop.getY());
+        // visit the cells of the rectangle, or the non-empty cells if there are fewer of them
+        if ((double) (right - left + 1) * (top - bottom + 1) <= cells.size()) {
+            for (int i = left; i <= right; i++) {
+                for (int j = bottom; j <= top; j++) {
+                    List<Cluster> cell = cells.get(key(i, j));
+                    if (cell != null) {
+                        addInside(result, cell, leftBottom, rightTop);
+                    }
+                }
+            }
+        } else {
+            for (List<Cluster> cell : cells.values()) {
+                addInside(result, cell, leftBottom, rightTop);
+            }
+        }
+        return result;
+    }
+
+    private static void addInside(List<Cluster> result, List<Cluster> cell, Point leftBottom, Point rightTop) {
+        for (Cluster c : cell) {
+            if (c.rightAbove(leftBottom) && c.leftBelow(rightTop)) {
+                result.add(c);
+            }
+        }
+    }
+
+    public Cluster findPoint(Cluster point) {
+        List<Cluster> cell = cells.get(key(locate(point.getX()), locate(point.getY())));
+        if (cell != null) {
+            for (Cluster c : cell) {
+                if (c.equals(point)) {
+                    return c;
+                }
+            }
+        }
+        return null;
+    }
+
+    public List<Cluster> findAll(Cluster point) {
+        List<Cluster> result = new ArrayList<>();
+        List<Cluster> cell = cells.get(key(locate(point.getX()), locate(point.getY())));
+        if (cell != null) {
+            for (Cluster c : cell) {
+                if (c.equals(point)) {
+                    result.add(c);
+                }
+            }
+        }
+        return result;
+    }
+
+    public List<Cluster> values() {
+        List<Cluster> result = new ArrayList<>(size);
+        cells.values().forEach(result::addAll);
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of non-empty cells
+     */
+    public int cellCount() {
+        return cells.size();
+    }
+}
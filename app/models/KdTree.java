@@ -3,7 +3,7 @@ package models;
 import java.util.*;
 import java.util.stream.Collectors;
 
-public class KdTree {
+public class KdTree implements SpatialIndex {
 
     /**
      * node in kd-tree
@@ -53,6 +53,10 @@ public class KdTree {
     private int height = 0;
     // the number of nodes
     private int size;
+    // the number of deleted nodes still splitting the space
+    private int deleted;
+    // the node holding each point, to remove points that moved since they were inserted
+    private final Map<Cluster, Node> nodes = new IdentityHashMap<>();
 
     /**
      * return an instance of kd tree
@@ -91,6 +95,7 @@ public class KdTree {
         // empty tree
         if (root == null) {
             root = new Node(point, true, 0);
+            nodes.put(point, root);
             height = 1;
             return;
         }
@@ -106,6 +111,7 @@ public class KdTree {
             // duplicate
             if (currentPoint.equals(point)) {
                 currentNode.addDuplicate(point);
+                nodes.put(point, currentNode);
                 return;
             } else {
                 // check x
@@ -137,6 +143,7 @@ public class KdTree {
         }
         // parentNode clusters to the parent of new node
         currentNode = new Node(point, align, parentNode.depth + 1);
+        nodes.put(point, currentNode);
         if (currentNode.depth + 1 > height) {
             height = currentNode.depth + 1;
         }
@@ -149,11 +156,9 @@ public class KdTree {
 
 
     public Map<Integer, List<Cluster>> within(Point center, double radius) {
-        HashMap<Integer, List<Cluster>> result = new HashMap<>();
-        Pair newPair = new Pair(center);
-        PriorityQueue<Pair> temp = new PriorityQueue<>();
+        List<Cluster> candidates = new ArrayList<>();
         if (root == null) {
-            return result;//temp.stream().map(pair -> pair.getCluster()).collect(Collectors.toList());
+            return new HashMap<>();
         }
         Queue<Node> queue = new LinkedList<>();
         queue.add(root);
@@ -164,10 +169,10 @@ public class KdTree {
             // if current node within range, put it into result, and put both children to queue
             if (currentPoint.distanceTo(center) <= radius) {
                 if (!currentNode.deleted)
-                    temp.add(new Pair(currentPoint));
+                    candidates.add(currentPoint);
                 // also add duplicates inside current node
                 for (Cluster duplicate : currentNode.getDuplicates()) {
-                    temp.add(new Pair(duplicate));
+                    candidates.add(duplicate);
                 }
                 if (currentNode.left != null) {
                     queue.add(currentNode.left);
@@ -210,16 +215,8 @@ public class KdTree {
                 }
             }
         }
-        temp.forEach(pair -> {
-            Cluster c = pair.getCluster();
-            int code = c.getGridLocation();
-            if (!result.containsKey(code)) {
-                result.put(code, new ArrayList<>());
-               // if (!result.get(code).contains(c))
-                    result.get(code).add(c);
-            }
-        });
-        return result;
+        // keep the nearest cluster of each grid location
+        return SpatialIndex.nearestByGridLocation(center, candidates);
     }
 
     public List<Cluster> range(Point leftBottom, Point rightTop) {
@@ -316,10 +313,12 @@ public class KdTree {
                 // if hit the node's point
                 if (!currentNode.deleted) {
                     currentNode.deleted = true;
+                    deleted++;
+                    nodes.remove(currentPoint);
                 }
                 // else hit the node's duplicate point
                 else {
-                    currentNode.duplicates.remove(0);
+                    nodes.remove(currentNode.duplicates.remove(0));
                 }
                 size--;
                 return;
@@ -346,6 +345,95 @@ public class KdTree {
         // didn't find the point
     }
 
+    /**
+     * remove a point by identity, unlike delete it finds the point even if it moved since it was inserted.
+     * The tree is rebuilt from its remaining points once more than half of its nodes are deleted
+     *
+     * @param point the point to remove
+     * @return whether the point was in the tree
+     */
+    public boolean remove(Cluster point) {
+        Node node = nodes.remove(point);
+        if (node == null) {
+            return false;
+        }
+        if (node.getPoint() == point && !node.deleted) {
+            // keep the node to split the space
+            node.deleted = true;
+            deleted++;
+        } else {
+            node.getDuplicates().removeIf(duplicate -> duplicate == point);
+        }
+        size--;
+        if (deleted > size) {
+            rebuild();
+        }
+        return true;
+    }
+
+    /**
+     * get the points at a position
+     *
+     * @param point the position
+     * @return the point of the node at this position if not deleted, followed by its duplicates
+     */
+    public List<Cluster> findAll(Cluster point) {
+        List<Cluster> result = new ArrayList<>();
+        Node currentNode = root;
+        while (currentNode != null) {
+            if (currentNode.getPoint().equals(point)) {
+                if (!currentNode.deleted)
+                    result.add(currentNode.getPoint());
+                result.addAll(currentNode.getDuplicates());
+                return result;
+            }
+            currentNode = isSmaller(point, currentNode) ? currentNode.left : currentNode.right;
+        }
+        return result;
+    }
+
+    /**
+     * insert the remaining points into a new tree, at their current positions
+     */
+    private void rebuild() {
+        List<Cluster> points = values();
+        root = null;
+        height = 0;
+        size = 0;
+        deleted = 0;
+        nodes.clear();
+        for (Cluster point : points) {
+            insert(point);
+        }
+    }
+
+    /**
+     * get all the points in the tree
+     *
+     * @return the points of every node followed by their duplicates, in breadth-first order
+     */
+    public List<Cluster> values() {
+        List<Cluster> result = new ArrayList<>(size);
+        if (root == null) {
+            return result;
+        }
+        Queue<Node> queue = new LinkedList<>();
+        queue.add(root);
+        while (queue.size() > 0) {
+            Node currentNode = queue.poll();
+            if (!currentNode.deleted)
+                result.add(currentNode.getPoint());
+            result.addAll(currentNode.getDuplicates());
+            if (currentNode.left != null) {
+                queue.add(currentNode.left);
+            }
+            if (currentNode.right != null) {
+                queue.add(currentNode.right);
+            }
+        }
+        return result;
+    }
+
     public Cluster findPoint(Cluster point) {
         Cluster result = null;
         if (root == null) {
@@ -357,7 +445,9 @@ public class KdTree {
             Node currentNode = queue.poll();
             Cluster currentPoint = currentNode.getPoint();
             if (currentPoint.equals(point)) {
-                return currentPoint;
+                if (!currentNode.deleted)
+                    return currentPoint;
+                return currentNode.getDuplicates().isEmpty() ? null : currentNode.getDuplicates().get(0);
             }
             if (isSmaller(point, currentNode)) {
                 if (currentNode.left != null)
@@ -0,0 +1,57 @@
+package models;
+
+import org.joda.time.Interval;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable result of one slice of a progressive query: the time interval of the slice
+ * and its weighted edges, kept as flat arrays instead of a map of edge objects.
+ */
+public final class Segment {
+    // time range of the slice
+    private final Interval interval;
+    // fromX, fromY, toX, toY of every edge
+    private final double[] coordinates;
+    // weight of every edge
+    private final int[] weights;
+
+    public Segment(Interval interval, Map<Edge, Integer> edges) {
+        this.interval = interval;
+        this.coordinates = new double[edges.size() * 4];
+        this.weights = new int[edges.size()];
+        int i = 0;
+        for (Map.Entry<Edge, Integer> entry : edges.entrySet()) {
+            Edge edge = entry.getKey();
+            coordinates[i * 4] = edge.getFromX();
+            coordinates[i * 4 + 1] = edge.getFromY();
+            coordinates[i * 4 + 2] = edge.getToX();
+            coordinates[i * 4 + 3] = edge.getToY();
+            weights[i++] = entry.getValue();
+        }
+    }
+
+    public Interval getInterval() {
+        return interval;
+    }
+
+    public int size() {
+        return weights.length;
+    }
+
+    /**
+     * rebuild the weighted edges of the slice
+     *
+     * @return map of edges and their weights
+     */
+    public HashMap<Edge, Integer> getEdges() {
+        HashMap<Edge, Integer> edges = new LinkedHashMap<>();
+        for (int i = 0; i < weights.length; i++) {
+            edges.put(new Edge(new Point(coordinates[i * 4], coordinates[i * 4 + 1]),
+                    new Point(coordinates[i * 4 + 2], coordinates[i * 4 + 3])), weights[i]);
+        }
+        return edges;
+    }
+}
@@ -0,0 +1,48 @@
+package models;
+
+import org.joda.time.Interval;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Segments of a progressive query indexed by the start of their interval,
+ * so that a time window can be re-aggregated from the slices it covers without querying the database again.
+ * The slices of one query do not overlap, a window selects the slices it fully contains,
+ * so it is snapped inward to the slice boundaries.
+ */
+public class SegmentIndex {
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    public void add(Segment segment) {
+        segments.put(segment.getInterval().getStartMillis(), segment);
+    }
+
+    public void clear() {
+        segments.clear();
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * the segments within a time window
+     *
+     * @param window time window, null for all segments
+     * @return segments whose interval is contained in the window, in time order
+     */
+    public List<Segment> select(Interval window) {
+        if (window == null) {
+            return new ArrayList<>(segments.values());
+        }
+        List<Segment> result = new ArrayList<>();
+        for (Segment segment : segments.subMap(window.getStartMillis(), true, window.getEndMillis(), false).values()) {
+            if (window.contains(segment.getInterval())) {
+                result.add(segment);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the clusters of one zoom level, in spherical mercator coordinates.
+ */
+public interface SpatialIndex {
+
+    /**
+     * insert a point
+     *
+     * @param point the point
+     */
+    void insert(Cluster point);
+
+    /**
+     * delete a point at the position of the given one
+     *
+     * @param point the point
+     */
+    void delete(Cluster point);
+
+    /**
+     * remove a point by identity, even if it moved since it was inserted
+     *
+     * @param point the point
+     * @return whether the point was in the index
+     */
+    boolean remove(Cluster point);
+
+    /**
+     * get the points within a radius
+     *
+     * @param center the center of the search
+     * @param radius the radius of the search
+     * @return the nearest point of each grid location within the radius, keyed by the grid location
+     */
+    Map<Integer, List<Cluster>> within(Point center, double radius);
+
+    /**
+     * get the points strictly inside a rectangle
+     *
+     * @param leftBottom the corner with the smallest coordinates
+     * @param rightTop   the corner with the largest coordinates
+     * @return the points inside the rectangle
+     */
+    List<Cluster> range(Point leftBottom, Point rightTop);
+
+    /**
+     * @param point the position
+     * @return a point at the position, null if there is none
+     */
+    Cluster findPoint(Cluster point);
+
+    /**
+     * @param point the position
+     * @return all the points at the position
+     */
+    List<Cluster> findAll(Cluster point);
+
+    /**
+     * @return all the points
+     */
+    List<Cluster> values();
+
+    /**
+     * @return the number of points
+     */
+    int size();
+
+    /**
+     * keep the nearest of the points of each grid location, the result of a radius search
+     *
+     * @param center     the center of the search
+     * @param candidates the points within the radius
+     * @return the nearest point of each grid location, keyed by the grid location
+     */
+    static Map<Integer, List<Cluster>> nearestByGridLocation(Point center, Collection<Cluster> candidates) {
+        List<Cluster> sorted = new ArrayList<>(candidates);
+        sorted.sort(Comparator.comparingDouble(c -> c.distanceTo(center)));
+        Map<Integer, List<Cluster>> result = new HashMap<>();
+        for (Cluster c : sorted) {
+            if (!result.containsKey(c.getGridLocation())) {
+                List<Cluster> list = new ArrayList<>();
+                list.add(c);
+                result.put(c.getGridLocation(), list);
+            }
+        }
+        return result;
+    }
+}
@@ -22,6 +22,16 @@ public class Tree {
         //score of the node with the incoming new edge
         double score;
         boolean isLeaf;
+        // the endpoints of the leaf when it was indexed, the clusters at its ends may move afterwards
+        LeafKey key;
+        // the cell of the node grid the node is in, null for the leaves of the data edges
+        GridCell cell;
+        // the midpoint, length and direction of the node when it was last indexed
+        double midX;
+        double midY;
+        double nodeLength;
+        double unitX;
+        double unitY;
 
         public Node(Edge edge, List<Node> children, int weight, Node parent) {
             super(edge);
@@ -63,6 +73,7 @@ public class Tree {
                 parent.getFromPoint().setY((parent.getFromY() * parent.getWeight() + fromLat) / (parent.getWeight() + 1));
                 parent.getToPoint().setX((parent.getToX() * parent.getWeight() + toLong) / (parent.getWeight() + 1));
                 parent.getToPoint().setY((parent.getToY() * parent.getWeight() + toLat) / (parent.getWeight() + 1));
+                indexNode(parent);
                 parent = parent.getParent();
             }
         }
@@ -91,6 +102,7 @@ public class Tree {
             //if this is a leaf, let its children point(parent) to another copy of this
             if (isLeaf) {
                 Node copy = new Node(new Edge(new Point(getFromPoint()), new Point(getToPoint())), new ArrayList<>(), weight, this);
+                indexNode(copy);
                 children.forEach(child -> child.setParent(copy));
                 copy.setChildren(new ArrayList<>(children));
                 this.setLeafFlag(false);
@@ -145,6 +157,8 @@ public class Tree {
             mostCompatibleSibling.getToPoint().setY((mostCompatibleSibling.getToY() * mostCompatibleSibling.getWeight() + getToY() * getWeight()) / (getWeight() + mostCompatibleSibling.getWeight()));
 
             mostCompatibleSibling.setWeight(mostCompatibleSibling.getWeight() + this.getWeight());
+            indexNode(mostCompatibleSibling);
+            unindexNode(this);
             //update the children's pointer
             for (Node child : this.getChildren()) {
                 child.setParent(mostCompatibleSibling);
@@ -197,6 +211,8 @@ public class Tree {
                     child.setParent(rightNode);
                 }
             }
+            indexNode(leftNode);
+            indexNode(rightNode);
             setLeafFlag(false);
             //children now point to these two nodes
             children = new ArrayList<>();
@@ -210,6 +226,7 @@ public class Tree {
             getToPoint().setX((getToX() * weight + edge.getToX() * edgeWeight) / (weight + edgeWeight));
             getToPoint().setY((getToY() * weight + edge.getToY() * edgeWeight) / (weight + edgeWeight));
             weight += edgeWeight;
+            indexNode(this);
             Node parent = this.parent;
             if (parent != null)
                 parent.updateNode(edge, edgeWeight);
@@ -223,15 +240,135 @@ public class Tree {
         }
     }
 
+    /**
+     * nodes of similar length and direction, in a grid of their midpoints with cells a fraction of their length
+     */
+    private static class NodeGroup {
+        private final long key;
+        // range of the lengths and directions of the nodes, the directions within [0, PI)
+        private final double minLength;
+        private final double maxLength;
+        private final double minAngle;
+        private final double maxAngle;
+        private final double cellSize;
+        private final HashMap<Long, GridCell> cells = new HashMap<>();
+        // the range of the cells that held nodes
+        private int minCellX = Integer.MAX_VALUE;
+        private int maxCellX = Integer.MIN_VALUE;
+        private int minCellY = Integer.MAX_VALUE;
+        private int maxCellY = Integer.MIN_VALUE;
+        // the highest score of a node of the group in the current search
+        private double bound;
+
+        NodeGroup(long key, int lengthBucket, int angleBucket) {
+            this.key = key;
+            minLength = Math.pow(lengthRate, lengthBucket);
+            maxLength = minLength * lengthRate;
+            minAngle = Math.PI * angleBucket / angleBuckets;
+            maxAngle = Math.PI * (angleBucket + 1) / angleBuckets;
+            cellSize = minLength * cellFraction;
+        }
+    }
+
+    /**
+     * cell of the grid of a node group
+     */
+    private static class GridCell {
+        private final NodeGroup group;
+        private final int x;
+        private final int y;
+        private final List<Node> nodes = new ArrayList<>();
+
+        GridCell(NodeGroup group, int x, int y) {
+            this.group = group;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * cells of a node group at the same distance from the midpoint of a searched edge,
+     * with the highest score their nodes may have
+     */
+    private static class Ring implements Comparable<Ring> {
+        private final NodeGroup group;
+        private final int radius;
+        private final double bound;
+
+        Ring(NodeGroup group, int radius, double bound) {
+            this.group = group;
+            this.radius = radius;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(Ring o) {
+            return Double.compare(o.bound, bound);
+        }
+    }
+
+    /**
+     * receives the nodes met by a search of the node grid
+     */
+    private interface NodeVisitor {
+        /**
+         * @return the score the remaining nodes have to exceed to be visited
+         */
+        double visit(Node node, double score);
+    }
+
+    /**
+     * endpoints of an edge in either direction, whatever the class of its points
+     */
+    private static class LeafKey {
+        private final double fromX;
+        private final double fromY;
+        private final double toX;
+        private final double toY;
+
+        LeafKey(Edge edge) {
+            boolean swap = edge.getFromX() > edge.getToX() || (edge.getFromX() == edge.getToX() && edge.getFromY() > edge.getToY());
+            fromX = swap ? edge.getToX() : edge.getFromX();
+            fromY = swap ? edge.getToY() : edge.getFromY();
+            toX = swap ? edge.getFromX() : edge.getToX();
+            toY = swap ? edge.getFromY() : edge.getToY();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LeafKey))
+                return false;
+            LeafKey key = (LeafKey) o;
+            return fromX == key.fromX && fromY == key.fromY && toX == key.toX && toY == key.toY;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fromX, fromY, toX, toY);
+        }
+    }
+
     // the root of tree
     private List<Node> root;
     private ForceBundling fb = new ForceBundling();
     private int size;
-    private final double minimum_compatibility = 0.3;
+    private static final double eps = 1e-6;
     //branching factor(size of list or children or root)
     final int branchingFactor = 50;
     private final int treeSizeThreshold = 16400;
     private List<Node> leaves;
+    // leaves by their endpoints when they were indexed
+    private HashMap<LeafKey, Node> leafIndex;
+    // leaves by the identity of their endpoints, finding the leaves whose endpoints moved since they were indexed
+    private IdentityHashMap<Point, List<Node>> leavesByEndpoint;
+    // the nodes of the tree grouped by length and direction, each group in a grid of the midpoints of its nodes
+    private HashMap<Long, NodeGroup> nodeGroups;
+    // ratio of the longest to the shortest length of a node group
+    private static final double lengthRate = Math.sqrt(2);
+    // number of node groups splitting the directions
+    private static final int angleBuckets = 16;
+    // side of the cells of the grid of a node group, as a fraction of the shortest length of the group
+    private static final double cellFraction = 0.5;
 
     /**
      * return an instance of tree
@@ -240,6 +377,9 @@ public class Tree {
         root = null;
         size = 0;
         leaves = new ArrayList<>();
+        leafIndex = new HashMap<>();
+        leavesByEndpoint = new IdentityHashMap<>();
+        nodeGroups = new HashMap<>();
     }
 
     /**
@@ -266,9 +406,8 @@ public class Tree {
 
     public void filter(List<Edge> edges) {
         edges.removeIf(leaf -> {
-            if (this.leaves.contains(leaf)) {
-                int indx = this.leaves.indexOf(leaf);
-                Node n = this.leaves.get(indx);
+            Node n = findLeaf(leaf);
+            if (n != null) {
                 n.setWeight(n.getWeight() + 1);
                 return true;
             }
@@ -276,6 +415,44 @@ public class Tree {
         });
     }
 
+    /**
+     * find the leaf equal to an edge, in the index by endpoints,
+     * or among the leaves sharing an endpoint with it in case the endpoint moved since it was indexed
+     *
+     * @param edge the edge
+     * @return the leaf, null if the edge is not a leaf
+     */
+    private Node findLeaf(Edge edge) {
+        Node n = leafIndex.get(new LeafKey(edge));
+        if (n != null && n.equals(edge)) {
+            return n;
+        }
+        for (Point endpoint : new Point[]{edge.getFromPoint(), edge.getToPoint()}) {
+            for (Node leaf : leavesByEndpoint.getOrDefault(endpoint, Collections.emptyList())) {
+                if (leaf.equals(edge)) {
+                    indexLeaf(leaf);
+                    return leaf;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * index a leaf by its current endpoints
+     */
+    private void indexLeaf(Node leaf) {
+        if (leaf.key != null) {
+            leafIndex.remove(leaf.key, leaf);
+        } else {
+            leavesByEndpoint.computeIfAbsent(leaf.getFromPoint(), p -> new ArrayList<>()).add(leaf);
+            if (leaf.getToPoint() != leaf.getFromPoint())
+                leavesByEndpoint.computeIfAbsent(leaf.getToPoint(), p -> new ArrayList<>()).add(leaf);
+        }
+        leaf.key = new LeafKey(leaf);
+        leafIndex.put(leaf.key, leaf);
+    }
+
     public List<Edge> getChangedEdges() {
         List<Edge> changed = new ArrayList<>();
         for (Edge e : leaves) {
@@ -304,21 +481,19 @@ public class Tree {
      * @param edge
      */
     public int insert(Edge edge, List<Edge> leaves) {
-        double maxScore = -1;
-        //poll the first and add its children,
-        //do the same until the deepest child most compatible
-        //either add a node to the child and merge if branching factor is reached or split
+        //find the most compatible node in the grid of the nodes,
+        //either add a node to it and merge if the tree is too large or split if branching factor is reached
         Node node = new Node(edge, new ArrayList<>(), leaves.size(), null);
         List<Node> nodesLeaves = leaves.stream().map(leaf -> new Node(leaf, null, 1, node)).collect(Collectors.toList());
         //first construct the node
         node.setChildren(nodesLeaves);
         nodesLeaves.forEach(leaf -> {
-            if (this.leaves.contains(leaf)) {
-                int indx = this.leaves.indexOf(leaf);
-                Node n = this.leaves.get(indx);
+            Node n = findLeaf(leaf);
+            if (n != null) {
                 n.setWeight(n.getWeight() + 1);
             } else {
                 this.leaves.add(leaf);
+                indexLeaf(leaf);
             }
         });
         // base case: empty tree
@@ -328,76 +503,206 @@ public class Tree {
         // if didn't reach threshold of branching, then insert it in the node
         if (root.size() < branchingFactor) {
             root.add(node);
+            indexNode(node);
             size++;
             return 0;
         }
-        //insert all the root to the priority queue
-        PriorityQueue<Node> queue = new PriorityQueue<>();
-        queue.addAll(root.stream().map(e -> {
-            e.setScore(fb.compatibilityScore(e.getEdge(), edge));
-            return e;
-        }).collect(Collectors.toList()));
-        root.forEach(n -> queue.addAll(n.getChildren().stream().map(child -> {
-            child.setScore(fb.compatibilityScore(child.getEdge(), edge));
-            return child;
-        }).collect(Collectors.toList())));
-        //keep polling as long as there are more children that are more compatible
-        Node otherNode = null;
-        while (queue.peek().score > maxScore) {
-            otherNode = queue.poll();
-            //either stop here or insert its children if it has any
-            if (otherNode.hasChildren()) {
-                //if its children are in the queue, insert the grand children
-                if (queue.containsAll(otherNode.getChildren()))
-                    otherNode.getChildren().forEach(n -> queue.addAll(n.getChildren().stream().map(child -> {
-                        child.setScore(fb.compatibilityScore(child.getEdge(), edge));
-                        return child;
-                    }).collect(Collectors.toList())));
-                    //otherwise, insert the children
-                else
-                    queue.addAll(otherNode.getChildren().stream().map(e -> {
-                        e.setScore(fb.compatibilityScore(e.getEdge(), edge));
-                        return e;
-                    }).collect(Collectors.toList()));
+        //find the most compatible node of the tree, from the closest midpoints outwards
+        Node[] mostCompatible = new Node[1];
+        double[] maxScore = {-1};
+        int explored = search(edge, -1, (other, score) -> {
+            if (score > maxScore[0]) {
+                maxScore[0] = score;
+                mostCompatible[0] = other;
             }
-            maxScore = otherNode.score;
+            return maxScore[0];
+        });
+        indexNode(node);
+        if (mostCompatible[0] == null) {
+            root.add(node);
+        } else {
+            mostCompatible[0].addToChildren(node);
         }
-        otherNode.addToChildren(node);
         size++;
-        return queue.size();
+        return explored;
     }
 
     /**
-     * find all the nodes this edge is compatible with in the tree
+     * score the nodes of the tree against an edge, best-first: the rings of cells of each node group around the midpoint of the edge
+     * by the highest score their nodes may have, until no node of the next ring can score above the visitor's threshold.
+     * The compatibility of two edges is at most the product of their angle, scale and position compatibilities,
+     * which are bounded from the ranges of directions and lengths of a group and the distance to a cell
      *
-     * @param edge
+     * @param edge     edge
+     * @param minScore the score the nodes have to exceed at first
+     * @param visitor  receives the nodes scoring above the threshold
+     * @return the number of scored nodes
      */
-    public int traverse(Edge edge) {
-        // while queue has elements,
-        // if node is compatible, add it to the result,
-        // check if parent is not incompatible, explore the children
-        int explored = 0;
-        if (root == null) {
-            return explored;
+    private int search(Edge edge, double minScore, NodeVisitor visitor) {
+        Point mid = edge.edgeMidPoint();
+        double length = Math.max(edge.length(), eps);
+        double angle = angle(edge);
+        double unitX = (edge.getToX() - edge.getFromX()) / length;
+        double unitY = (edge.getToY() - edge.getFromY()) / length;
+        // rings of cells of the groups by the highest score of their nodes
+        PriorityQueue<Ring> rings = new PriorityQueue<>();
+        for (NodeGroup group : nodeGroups.values()) {
+            // the closest direction of the group to the edge's, on the circle of the directions
+            double angleDistance = angle < group.minAngle ? Math.min(group.minAngle - angle, angle + Math.PI - group.maxAngle)
+                    : angle > group.maxAngle ? Math.min(angle - group.maxAngle, group.minAngle + Math.PI - angle) : 0;
+            double closestLength = Math.max(group.minLength, Math.min(group.maxLength, length));
+            group.bound = Math.cos(Math.min(angleDistance, Math.PI / 2)) * scaleCompatibility(length, closestLength);
+            if (group.bound > minScore)
+                rings.add(new Ring(group, 0, group.bound));
         }
-        Queue<Node> queue = new ArrayDeque<>();
-        queue.addAll(root);
-        while (!queue.isEmpty()) {
-            Edge node = queue.poll();
-            explored++;
-            if (fb.areCompatible(node.getEdge(), edge, fb.compatibility_threshold)) {
-                if (edge.getCompatibleNodes() == null) {
-                    edge.setCompatibleNodes(new ArrayList<>());
+        double threshold = minScore;
+        int explored = 0;
+        while (!rings.isEmpty() && rings.peek().bound > threshold) {
+            Ring ring = rings.poll();
+            NodeGroup group = ring.group;
+            int r = ring.radius;
+            double cellSize = group.cellSize;
+            int cx = (int) Math.floor(mid.getX() / cellSize);
+            int cy = (int) Math.floor(mid.getY() / cellSize);
+            int extent = Math.max(Math.max(cx - group.minCellX, group.maxCellX - cx), Math.max(cy - group.minCellY, group.maxCellY - cy));
+            List<GridCell> cells = new ArrayList<>();
+            if (8.0 * r > group.cells.size()) {
+                // the ring has more cells than the group holds, take all the cells of the group from the ring outwards
+                for (GridCell cell : group.cells.values()) {
+                    if (Math.max(Math.abs(cell.x - cx), Math.abs(cell.y - cy)) >= r)
+                        cells.add(cell);
                 }
-                edge.getCompatibleNodes().add(node);
+                extent = r;
             } else {
-                if (fb.compatibilityScore(node.getEdge(), edge) > minimum_compatibility)
-                    queue.addAll(((Node) node).getChildren());
+                for (int x = cx - r; x <= cx + r; x++) {
+                    // the first and last columns of the ring are whole, the others only have their top and bottom cells
+                    int step = x == cx - r || x == cx + r ? 1 : Math.max(1, 2 * r);
+                    for (int y = cy - r; y <= cy + r; y += step) {
+                        GridCell cell = group.cells.get(cellKey(x, y));
+                        if (cell != null)
+                            cells.add(cell);
+                    }
+                }
+            }
+            for (GridCell cell : cells) {
+                double dx = Math.max(0, Math.max(cell.x * cellSize - mid.getX(), mid.getX() - (cell.x + 1) * cellSize));
+                double dy = Math.max(0, Math.max(cell.y * cellSize - mid.getY(), mid.getY() - (cell.y + 1) * cellSize));
+                if (group.bound * positionCompatibility(length, group.maxLength, Math.sqrt(dx * dx + dy * dy)) <= threshold)
+                    continue;
+                for (Node node : cell.nodes) {
+                    // the angle, scale and position compatibilities of the node before its visibility
+                    double cos = node.unitX * unitX + node.unitY * unitY;
+                    double distance = Math.sqrt((node.midX - mid.getX()) * (node.midX - mid.getX()) + (node.midY - mid.getY()) * (node.midY - mid.getY()));
+                    if (Math.abs(cos) * scaleCompatibility(length, node.nodeLength) * positionCompatibility(length, node.nodeLength, distance) <= threshold)
+                        continue;
+                    double score = fb.compatibilityScore(node.getEdge(), edge);
+                    explored++;
+                    if (score > threshold)
+                        threshold = visitor.visit(node, score);
+                }
+            }
+            if (r < extent) {
+                // the cells of the next ring are at least a ring of cells away from the midpoint
+                rings.add(new Ring(group, r + 1, group.bound * positionCompatibility(length, group.maxLength, r * cellSize)));
             }
         }
         return explored;
     }
 
+    /**
+     * the position compatibility of two edges from their lengths and the distance of their midpoints
+     */
+    private static double positionCompatibility(double length, double otherLength, double distance) {
+        double lavg = (length + otherLength) / 2;
+        return lavg / (lavg + distance);
+    }
+
+    /**
+     * the scale compatibility of two edges from their lengths
+     */
+    private static double scaleCompatibility(double length, double otherLength) {
+        double lavg = (length + otherLength) / 2;
+        return 2 / (lavg / Math.min(length, otherLength) + Math.max(length, otherLength) / lavg);
+    }
+
+    /**
+     * @return the direction of an edge within [0, PI)
+     */
+    private static double angle(Edge edge) {
+        double angle = Math.atan2(edge.getToY() - edge.getFromY(), edge.getToX() - edge.getFromX());
+        if (angle < 0)
+            angle += Math.PI;
+        return angle >= Math.PI ? 0 : angle;
+    }
+
+    /**
+     * @return a key unique to a cell, its bits mixed since the hash of a long only folds its halves together
+     */
+    private static long cellKey(int x, int y) {
+        long key = ((long) x << 32) | (y & 0xffffffffL);
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        return key ^ (key >>> 33);
+    }
+
+    /**
+     * put a node in the group of its current length and direction, in the cell of its current midpoint
+     */
+    private void indexNode(Node node) {
+        double length = Math.max(node.length(), eps);
+        node.midX = (node.getFromX() + node.getToX()) / 2;
+        node.midY = (node.getFromY() + node.getToY()) / 2;
+        node.nodeLength = length;
+        node.unitX = (node.getToX() - node.getFromX()) / length;
+        node.unitY = (node.getToY() - node.getFromY()) / length;
+        int lengthBucket = (int) Math.floor(Math.log(length) / Math.log(lengthRate));
+        int angleBucket = Math.min(angleBuckets - 1, (int) (angle(node) / Math.PI * angleBuckets));
+        long key = cellKey(lengthBucket, angleBucket);
+        NodeGroup group = nodeGroups.computeIfAbsent(key, k -> new NodeGroup(k, lengthBucket, angleBucket));
+        int x = (int) Math.floor(node.midX / group.cellSize);
+        int y = (int) Math.floor(node.midY / group.cellSize);
+        if (node.cell != null) {
+            if (node.cell.group == group && node.cell.x == x && node.cell.y == y)
+                return;
+            unindexNode(node);
+        }
+        GridCell cell = group.cells.computeIfAbsent(cellKey(x, y), k -> new GridCell(group, x, y));
+        cell.nodes.add(node);
+        node.cell = cell;
+        group.minCellX = Math.min(group.minCellX, x);
+        group.maxCellX = Math.max(group.maxCellX, x);
+        group.minCellY = Math.min(group.minCellY, y);
+        group.maxCellY = Math.max(group.maxCellY, y);
+    }
+
+    /**
+     * check that every node of the node grid is in the cell it was last indexed in
+     */
+    boolean isIndexConsistent() {
+        for (NodeGroup group : nodeGroups.values()) {
+            for (GridCell cell : group.cells.values()) {
+                for (Node node : cell.nodes) {
+                    if (node.cell != cell)
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void unindexNode(Node node) {
+        if (node.cell == null)
+            return;
+        GridCell cell = node.cell;
+        // by identity, the copy of a split leaf has the same endpoints as the original
+        cell.nodes.removeIf(n -> n == node);
+        if (cell.nodes.isEmpty()) {
+            cell.group.cells.remove(cellKey(cell.x, cell.y));
+            if (cell.group.cells.isEmpty())
+                nodeGroups.remove(cell.group.key);
+        }
+        node.cell = null;
+    }
+
     /**
      * function to initialize all the control points
      */
@@ -0,0 +1,14 @@
+package precompute;
+
+import com.google.inject.AbstractModule;
+
+/**
+ * Starts the background precomputation with the application, enabled in application.conf.
+ */
+public class PrecomputeModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(PrecomputeService.class).asEagerSingleton();
+    }
+}
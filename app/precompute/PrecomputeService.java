@@ -0,0 +1,125 @@
+package precompute;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import clustering.ClusteringSnapshot;
+import controllers.GraphController;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+import utils.DatabaseUtils;
+import utils.PropertiesUtil;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds and snapshots the hierarchies of hot queries off-peak, so that the sessions issuing them attach to
+ * a ready snapshot instead of running the progressive query.
+ * The hot queries are the configured ones followed by the most issued ones of the query history.
+ * The work runs every day at precomputeHour, and at startup if configured,
+ * one query at a time on a single low priority thread to bound the CPU it takes from the live sessions,
+ * with its own database connection.
+ */
+@Singleton
+public class PrecomputeService {
+
+    private static final Logger.ALogger logger = Logger.of(PrecomputeService.class);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "precompute");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    // whether a run is queued or running, a run is skipped while the previous one is not over
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @Inject
+    public PrecomputeService(ActorSystem actorSystem, ApplicationLifecycle lifecycle) {
+        PropertiesUtil.loadProperties();
+        if (PropertiesUtil.getSnapshotDir() == null || PropertiesUtil.getSnapshotDir().isEmpty()) {
+            return;
+        }
+        Cancellable daily = null;
+        int hour = PropertiesUtil.getPrecomputeHour();
+        if (hour >= 0) {
+            LocalDateTime now = LocalDateTime.now();
+            LocalDateTime next = now.toLocalDate().atTime(hour % 24, 0);
+            if (!next.isAfter(now)) {
+                next = next.plusDays(1);
+            }
+            daily = actorSystem.scheduler().scheduleAtFixedRate(Duration.between(now, next), Duration.ofDays(1),
+                    this::submit, actorSystem.dispatcher());
+        }
+        if (PropertiesUtil.isPrecomputeAtStartup()) {
+            submit();
+        }
+        Cancellable scheduled = daily;
+        lifecycle.addStopHook(() -> {
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+            executor.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private void submit() {
+        if (running.compareAndSet(false, true)) {
+            executor.execute(this::run);
+        }
+    }
+
+    /**
+     * precompute the hot queries that have no snapshot of the current data yet
+     */
+    private void run() {
+        Connection conn = DatabaseUtils.newConnection();
+        DatabaseUtils.setThreadConnection(conn);
+        try {
+            double radius = PropertiesUtil.getPrecomputeRadius();
+            Set<String> queries = new LinkedHashSet<>();
+            Arrays.stream(PropertiesUtil.getPrecomputeQueries().split(","))
+                    .map(String::trim)
+                    .filter(query -> !query.isEmpty())
+                    .forEach(queries::add);
+            queries.addAll(QueryHistory.top(PropertiesUtil.getPrecomputeHistory()));
+            for (String query : queries) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                if (ClusteringSnapshot.open(query, radius) != null) {
+                    continue;
+                }
+                try {
+                    long start = System.currentTimeMillis();
+                    new GraphController().precompute(query, radius, PropertiesUtil.getPrecomputeZoom());
+                    logger.info("precomputed \"{}\" in {} ms", query, System.currentTimeMillis() - start);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            DatabaseUtils.setThreadConnection(null);
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            running.set(false);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package precompute;
+
+import utils.PropertiesUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Number of times each query was issued, persisted across restarts,
+ * so that the most popular ones are precomputed before the users ask for them.
+ * The file is written on a background thread, once for all the queries counted while a write was queued.
+ */
+public class QueryHistory {
+
+    private static Properties history;
+    // whether a write is queued and not started yet
+    private static boolean writePending;
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "query-history");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * count a new query
+     *
+     * @param query query keyword
+     */
+    public static synchronized void record(String query) {
+        if (query == null || query.isEmpty()) {
+            return;
+        }
+        if (history == null) {
+            load();
+        }
+        history.setProperty(query, String.valueOf(count(query) + 1));
+        if (!writePending) {
+            writePending = true;
+            writer.execute(QueryHistory::store);
+        }
+    }
+
+    /**
+     * get the most issued queries
+     *
+     * @param n number of queries
+     * @return the queries, most issued first
+     */
+    public static synchronized List<String> top(int n) {
+        if (history == null) {
+            load();
+        }
+        return history.stringPropertyNames().stream()
+                .sorted((a, b) -> Long.compare(count(b), count(a)))
+                .limit(Math.max(0, n))
+                .collect(Collectors.toList());
+    }
+
+    private static long count(String query) {
+        try {
+            return Long.parseLong(history.getProperty(query, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void store() {
+        Properties counts;
+        synchronized (QueryHistory.class) {
+            writePending = false;
+            counts = (Properties) history.clone();
+        }
+        try (OutputStream outputStream = new FileOutputStream(PropertiesUtil.getQueryHistoryFile())) {
+            counts.store(outputStream, "number of times each query was issued");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void load() {
+        history = new Properties();
+        File file = new File(PropertiesUtil.getQueryHistoryFile());
+        if (!file.exists()) {
+            return;
+        }
+        try (InputStream inputStream = new FileInputStream(file)) {
+            history.load(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,40 +1,108 @@
 package slicing
 
 import org.apache.commons.math3.special.Erf
-import org.apache.commons.math3.fitting.{PolynomialCurveFitter, WeightedObservedPoints}
 
+/**
+  * DRUM estimator of the range of the next mini query.
+  * The linear cost model a0 + a1 * range is fitted online by recursive least squares
+  * with exponential forgetting, so every update is O(1) and recent slices weigh more.
+  */
 class Drum(totalRange: Int, alpha: Double, minRange: Int) {
 
   import Drum._
 
-  private val stats = Seq.newBuilder[MiniQueryStats]
+  // coefficients of the cost model
+  private var a0 = 0.0
+  private var a1 = 0.0
+  // covariance of the coefficients
+  private var p00 = ColdCovariance
+  private var p01 = 0.0
+  private var p11 = ColdCovariance
+  // exponentially weighted mean of the squared prediction errors
+  private var variance = 0.0
+  // number of learned mini queries
+  private var count = 0
+  // whether the coefficients were initialized from a persisted prior
+  private var warm = false
+  private var lastRange = 0
+  private var lastActualMS = 0
 
+  /**
+    * initialize the cost model from the coefficients learned by previous queries of the same class
+    */
+  def warmStart(prior: Prior): Unit = {
+    a0 = prior.a0
+    a1 = prior.a1
+    variance = prior.variance
+    p00 = WarmCovariance0
+    p01 = 0.0
+    p11 = WarmCovariance1
+    warm = true
+  }
+
+  /**
+    * the coefficients learned so far, to be persisted as the prior of later queries
+    */
+  def prior: Prior = Prior(a0, a1, variance)
+
+  def isTrained: Boolean = warm || count >= 3
+
+  /**
+    * update the cost model with a finished mini query
+    *
+    * @param estimateMS time the mini query was estimated to take when it was sized, Int.MaxValue if it was not estimated
+    */
   def learn(range: Int, estimateMS: Int, actualMS: Int): Unit = {
-    stats += MiniQueryStats(range, estimateMS, actualMS)
+    val error = actualMS - (a0 + a1 * range)
+    if (isTrained) {
+      // the variance is of the errors of the estimates the ranges were sized with
+      val estimateError = if (estimateMS == Int.MaxValue) error else (actualMS - estimateMS).toDouble
+      variance = Forgetting * variance + (1 - Forgetting) * estimateError * estimateError
+    }
+    // gain k = P x / (lambda + x' P x) with x = (1, range)
+    val px0 = p00 + p01 * range
+    val px1 = p01 + p11 * range
+    val denominator = Forgetting + px0 + px1 * range
+    val k0 = px0 / denominator
+    val k1 = px1 / denominator
+    a0 += k0 * error
+    a1 += k1 * error
+    // P = (P - k x' P) / lambda
+    p00 = (p00 - k0 * px0) / Forgetting
+    p01 = (p01 - k0 * px1) / Forgetting
+    p11 = (p11 - k1 * px1) / Forgetting
+    count += 1
+    if (count == 3 && !warm) {
+      // the cold model starts with the residuals of the first fit
+      variance = error * error
+    }
+    lastRange = range
+    lastActualMS = actualMS
   }
 
 
   def estimate(limit: Int): RangeTime = {
-    val history = stats.result()
-    if (history.size < 1) {
+    if (count < 1 && !warm) {
       return RangeTime(minRange, Int.MaxValue)
     }
 
-    val lastRange = history.last.range
-    val lastTime = history.last.actualMS + Double.MinPositiveValue
-    val linearEstimate = lastRange * limit / lastTime
-
-    val closeRange = validateRange(linearEstimate, minRange, lastRange)
-    if (history.size < 3) { // too few observations
+    val maxRange = if (count < 1) totalRange / 2.0 else lastRange
+    if (!isTrained) { // too few observations
+      val linearEstimate = lastRange * limit / (lastActualMS + Double.MinPositiveValue)
+      val closeRange = validateRange(linearEstimate, minRange, maxRange)
       return RangeTime(closeRange.toInt, Int.MaxValue)
     }
 
-    val coeff = trainLinearModel(history)
-    val variance = calcVariance(history, coeff)
+    val coeff = if (a0 <= Double.MinPositiveValue || a1 <= Double.MinPositiveValue) {
+      if (count < 1) Coeff(Double.MinPositiveValue, Math.max(a1, Double.MinPositiveValue))
+      else Coeff(Double.MinPositiveValue, lastActualMS.toDouble / Math.max(lastRange, 1))
+    } else {
+      Coeff(a0, a1)
+    }
     val stdDev = Math.sqrt(variance)
 
     val rawRange = getOptimalRx(totalRange, limit, stdDev, alpha, coeff.a0, coeff.a1)
-    val validRange = validateRange(rawRange, minRange, lastRange)
+    val validRange = validateRange(rawRange, minRange, maxRange)
 
     val estimateTime = validRange * coeff.a1 + coeff.a0
     RangeTime(validRange.toInt, estimateTime.toInt)
@@ -44,6 +112,14 @@ class Drum(totalRange: Int, alpha: Double, minRange: Int) {
 
 object Drum {
 
+  // forgetting factor of the recursive least squares, older slices weigh Forgetting^age
+  val Forgetting = 0.9
+  // initial covariance of a cold model, large so that the first slices dominate
+  val ColdCovariance = 1e6
+  // initial covariance of a warm model, small enough to trust the prior until slices disagree
+  val WarmCovariance0 = 1e4
+  val WarmCovariance1 = 1e2
+
   def getOptimalRx(totalRange: Double, limit: Double, stdDev: Double, alpha: Double, a0: Double, a1: Double): Double = {
     val R = totalRange
     val Rw = (limit - a0) / a1
@@ -58,40 +134,10 @@ object Drum {
     }
   }
 
-  def calcVariance(history: Seq[MiniQueryStats], coeff: Coeff): Double = {
-    if (history.size <= 3) {
-      return history.map(s => Math.pow(s.range * coeff.a1 + coeff.a0 - s.actualMS, 2)).sum / history.size
-    }
-    val valid = history.filterNot(h => h.estimateMS == Int.MaxValue)
-    valid.map(h => (h.estimateMS - h.actualMS) * (h.estimateMS - h.actualMS)).sum.toDouble / valid.size
-  }
-
-
-  def trainLinearModel(history: Seq[MiniQueryStats]): Coeff = {
-    val obs: WeightedObservedPoints = new WeightedObservedPoints()
-    history.foreach(h => obs.add(h.range, h.actualMS))
-
-    val rawCoeff = linearFitting(obs)
-
-    if (rawCoeff.a0 <= Double.MinPositiveValue || rawCoeff.a1 <= Double.MinPositiveValue) {
-      Coeff(Double.MinPositiveValue, history.last.actualMS.toDouble / history.last.range)
-    } else {
-      rawCoeff
-    }
-  }
-
-  def linearFitting(obs: WeightedObservedPoints): Coeff = {
-    val filter: PolynomialCurveFitter = PolynomialCurveFitter.create(1)
-    val ret = filter.fit(obs.toList)
-    Coeff(ret(0), ret(1))
-  }
-
   def validateRange(range: Double, minRange: Double, lastRange: Double): Int= {
     Math.ceil(Math.max(minRange, Math.min(range.toInt, lastRange * 2))).toInt
   }
 
-  case class MiniQueryStats(range: Int, estimateMS: Int, actualMS: Int)
-
   case class RangeTime(range: Int, estimateMS: Int)
 
   /**
@@ -101,4 +147,11 @@ object Drum {
     override def toString: String = s"a1=$a1, a0=$a0"
   }
 
+  /**
+    * persisted cost model of a class of queries
+    */
+  case class Prior(a0: Double, a1: Double, variance: Double) {
+    override def toString: String = s"$a0,$a1,$variance"
+  }
+
 }
@@ -0,0 +1,93 @@
+package slicing;
+
+import utils.PropertiesUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Cost models learned by DRUM, persisted across queries and restarts.
+ * A model is keyed by the dataset and the selectivity class of the query,
+ * i.e. the magnitude of replies per hour its first slice returned,
+ * so a new query starts from the coefficients of earlier queries of similar density.
+ */
+public class DrumPriors {
+
+    private static Properties priors;
+
+    /**
+     * the selectivity class of a query
+     *
+     * @param rows  number of replies returned by the first slice
+     * @param hours time range of the first slice in hours
+     * @return floor of log2 of the replies per hour
+     */
+    public static int selectivityClass(long rows, long hours) {
+        double rowsPerHour = (double) rows / Math.max(1, hours);
+        return (int) Math.floor(Math.log(rowsPerHour + 1) / Math.log(2));
+    }
+
+    /**
+     * get the persisted cost model of a selectivity class of the configured dataset
+     *
+     * @param selectivityClass selectivity class
+     * @return the cost model, null if none was learned yet
+     */
+    public static synchronized Drum.Prior get(int selectivityClass) {
+        if (priors == null) {
+            load();
+        }
+        String value = priors.getProperty(key(selectivityClass));
+        if (value == null) {
+            return null;
+        }
+        try {
+            String[] coefficients = value.split(",");
+            return new Drum.Prior(Double.parseDouble(coefficients[0]), Double.parseDouble(coefficients[1]),
+                    Double.parseDouble(coefficients[2]));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * persist the cost model learned for a selectivity class of the configured dataset
+     *
+     * @param selectivityClass selectivity class
+     * @param prior            cost model
+     */
+    public static synchronized void put(int selectivityClass, Drum.Prior prior) {
+        if (priors == null) {
+            load();
+        }
+        priors.setProperty(key(selectivityClass), prior.toString());
+        try (OutputStream outputStream = new FileOutputStream(PropertiesUtil.getDrumPriorsFile())) {
+            priors.store(outputStream, "cost models learned by DRUM: dataset.class=a0,a1,variance");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String key(int selectivityClass) {
+        return PropertiesUtil.getDataset() + "." + selectivityClass;
+    }
+
+    private static void load() {
+        priors = new Properties();
+        File file = new File(PropertiesUtil.getDrumPriorsFile());
+        if (!file.exists()) {
+            return;
+        }
+        try (InputStream inputStream = new FileInputStream(file)) {
+            priors.load(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
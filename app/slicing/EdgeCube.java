@@ -0,0 +1,180 @@
+package slicing;
+
+import utils.DatabaseUtils;
+import utils.PropertiesUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Materialized cube of (hour bucket, quantized from point, quantized to point) -> count.
+ * The slicers read a slice as a handful of pre-aggregated buckets instead of one row per reply
+ * when the keyword is empty (the unfiltered cube) or has been materialized.
+ * The cube is created by data/setup_edge_cube.sql and grown incrementally by {@link #build(String)}.
+ */
+public class EdgeCube {
+
+    // materialized keywords and the creation time of the last reply aggregated for each
+    private static HashMap<String, Timestamp> builtUntil;
+
+    /**
+     * check if the slices of a query can be read from the cube
+     *
+     * @param query query keyword
+     * @return true if the cube is enabled and materialized for the keyword
+     */
+    public static synchronized boolean covers(String query) {
+        if (!PropertiesUtil.isEdgeCube()) {
+            return false;
+        }
+        if (builtUntil == null) {
+            loadState();
+        }
+        String keyword = keyword(query);
+        return keyword.isEmpty() || builtUntil.containsKey(keyword);
+    }
+
+    /**
+     * the key under which a query keyword is materialized
+     *
+     * @param query query keyword
+     * @return the trimmed keyword, empty for the unfiltered cube
+     */
+    public static String keyword(String query) {
+        return query == null ? "" : query.trim();
+    }
+
+    /**
+     * aggregate the replies created since the last build of the keyword into the cube
+     *
+     * @param query keyword to materialize, empty for the unfiltered cube
+     */
+    public static synchronized void build(String query) {
+        String keyword = keyword(query);
+        if (builtUntil == null) {
+            loadState();
+        }
+        Connection conn = DatabaseUtils.getConnection();
+        try {
+            Timestamp start = builtUntil.getOrDefault(keyword, new Timestamp(0));
+            Timestamp end = lastReply(conn);
+            if (end == null || !end.after(start)) {
+                return;
+            }
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement state = DatabaseUtils.prepareCubeBuildStatement(keyword, conn, PropertiesUtil.getCubeQuantization(), start, end);
+                state.executeUpdate();
+                state.close();
+                state = DatabaseUtils.prepareCubeUpdateStateStatement(keyword, conn, end);
+                state.executeUpdate();
+                state.close();
+                conn.commit();
+                builtUntil.put(keyword, end);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * aggregate the replies created since the last build into the unfiltered cube and every materialized keyword
+     */
+    public static synchronized void refresh() {
+        if (builtUntil == null) {
+            loadState();
+        }
+        build("");
+        for (String keyword : new ArrayList<>(builtUntil.keySet())) {
+            if (!keyword.isEmpty()) {
+                build(keyword);
+            }
+        }
+    }
+
+    /**
+     * aggregate again the hours the bulk ingestion inserted replies into, for the unfiltered cube and every
+     * materialized keyword up to how far it is built, since replies backfilled before that are not aggregated by {@link #build(String)}
+     */
+    public static synchronized void recountIngested() {
+        if (builtUntil == null) {
+            loadState();
+        }
+        Connection conn = DatabaseUtils.getConnection();
+        for (Map.Entry<String, Timestamp> keyword : builtUntil.entrySet()) {
+            try {
+                boolean autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+                try (PreparedStatement delete = DatabaseUtils.prepareCubeRecountDeleteStatement(keyword.getKey(), conn, keyword.getValue());
+                     PreparedStatement recount = DatabaseUtils.prepareCubeRecountStatement(keyword.getKey(), conn,
+                             PropertiesUtil.getCubeQuantization(), keyword.getValue())) {
+                    delete.executeUpdate();
+                    recount.executeUpdate();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(autoCommit);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * read the materialized keywords from the cube state table
+     */
+    private static void loadState() {
+        builtUntil = new HashMap<>();
+        Connection conn = DatabaseUtils.getConnection();
+        PreparedStatement state = DatabaseUtils.prepareCubeStateStatement(conn);
+        try {
+            ResultSet resultSet = state.executeQuery();
+            while (resultSet.next()) {
+                builtUntil.put(resultSet.getString("keyword"), resultSet.getTimestamp("built_until"));
+            }
+            resultSet.close();
+            state.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static Timestamp lastReply(Connection conn) throws SQLException {
+        PreparedStatement state = DatabaseUtils.prepareLastReplyStatement(conn);
+        ResultSet resultSet = state.executeQuery();
+        Timestamp last = resultSet.next() ? resultSet.getTimestamp("last_reply") : null;
+        resultSet.close();
+        state.close();
+        return last;
+    }
+
+    /**
+     * build or refresh the cube for the given keywords, the unfiltered cube if none is given
+     *
+     * @param args keywords to materialize
+     */
+    public static void main(String[] args) {
+        PropertiesUtil.loadProperties();
+        if (args.length == 0) {
+            build("");
+        }
+        for (String keyword : args) {
+            build(keyword);
+        }
+    }
+}
@@ -2,21 +2,14 @@ package slicing;
 
 
 import models.Edge;
-import models.Point;
 import models.ResultSetReturn;
 import org.joda.time.DateTime;
 import org.joda.time.Interval;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
-import utils.DatabaseUtils;
 import utils.PropertiesUtil;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 
 public class FixedInterval implements Slicer{
     //query keyword
@@ -27,6 +20,10 @@ public class FixedInterval implements Slicer{
     private final FiniteDuration fixedInterval = Duration.create(PropertiesUtil.getFixedInterval(), "days");
     //interval of the mini query
     private Interval interval;
+    //interval of the last issued mini query
+    private Interval lastInterval;
+    //grid step in degrees under which the replies are merged
+    private double snapStep;
 
     public HashMap<Edge, Integer> init(String query) {
         this.query = query;
@@ -57,45 +54,19 @@ public class FixedInterval implements Slicer{
         return new Interval(bound.getStartMillis(), endTime);
     }
 
-    private HashMap<Edge, Integer> issueQueryGroup(Interval interval) {
-
-        Connection conn = DatabaseUtils.getConnection();
-        PreparedStatement state = DatabaseUtils.prepareStatement(query, conn, interval.getStart().toDateTime().toString(), interval.getEnd().toDateTime().toString());
-        HashMap<Edge, Integer> result = new LinkedHashMap<>();
-        try {
-            ResultSet resultSet = state.executeQuery();
-            if (resultSet != null) {
-                while (resultSet.next()) {
-                    Point from = new Point(resultSet.getDouble("from_longitude"), resultSet.getDouble("from_latitude"));
-                    Point to = new Point(resultSet.getDouble("to_longitude"), resultSet.getDouble("to_latitude"));
-                    Edge currentEdge = new Edge(from, to);
-                    // don't add short edges
-                    if (Math.pow(currentEdge.length(), 2) > 0.001)
-                        putEdgeIntoMap(result, currentEdge, 1);
-                }
-            }
-            resultSet.close();
-            state.close();
+    @Override
+    public Interval getLastInterval() {
+        return lastInterval;
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return result;
+    @Override
+    public void setSnapStep(double snapStep) {
+        this.snapStep = snapStep;
     }
 
-    /**
-     * put edge into map
-     *
-     * @param edges  map of edges and width
-     * @param edge   edge
-     * @param weight weight
-     */
-    private void putEdgeIntoMap(HashMap<Edge, Integer> edges, Edge edge, int weight) {
-        if (edges.containsKey(edge)) {
-            edges.put(edge, edges.get(edge) + weight);
-        } else {
-            edges.put(edge, weight);
-        }
+    private HashMap<Edge, Integer> issueQueryGroup(Interval interval) {
+        lastInterval = interval;
+        return SliceQuery.issueQueryGroup(query, interval, snapStep);
     }
 
 }
\ No newline at end of file
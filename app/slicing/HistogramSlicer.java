@@ -0,0 +1,157 @@
+package slicing;
+
+
+import models.Edge;
+import models.ResultSetReturn;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+import utils.PropertiesUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Selectivity-aware progressive slicing.
+ * The interval boundaries are picked from the precomputed hourly counts of the query's terms,
+ * walking backward from the newest replies, so that every mini query returns roughly the same number of replies.
+ * The number of replies per slice is sized by the measured cost of a frame per reply.
+ * Falls back to DRUM when the terms of the query are not in the histogram.
+ */
+public class HistogramSlicer implements Slicer {
+    // weight of the last frame in the moving average of the cost per reply
+    private static final double SMOOTHING = 0.5;
+    // cost per reply assumed before a frame was measured, high enough to keep the first slices small
+    private static final double DEFAULT_MS_PER_ROW = 0.05;
+    // a slice holds at most this many times the replies of the previous one
+    private static final int MAX_GROWTH = 4;
+    //query keyword
+    private String query;
+    //bound is the range of dates in the database
+    private final Interval bound = new Interval(PropertiesUtil.getFirstDate(), PropertiesUtil.getLastDate());
+    //initial duration of the first mini query
+    private final FiniteDuration initialDuration = Duration.create(PropertiesUtil.getInitialDuration(), "days");
+    //pace of returning the result of the mini queries in milliseconds
+    private final long intervalMS = PropertiesUtil.getIntervalMS();
+    //hourly counts of the replies matching the query
+    private TreeMap<Long, Integer> histogram;
+    //slicer used when the histogram knows nothing about the query
+    private Slicer fallback;
+    //grid step in degrees under which the replies are merged
+    private double snapStep;
+    //interval of the last mini query and its number of replies according to the histogram
+    private Interval interval;
+    private long intervalRows;
+    //moving average of the milliseconds a frame costs per reply
+    private double msPerRow;
+    private long nextLimit;
+    //time spent by the last mini query and downstream on its result so far
+    private long lastQueryMS;
+    private long downstreamMS;
+
+    public HashMap<Edge, Integer> init(String query) {
+        this.query = query;
+        histogram = TermHistogram.load(query, bound);
+        if (histogram.isEmpty()) {
+            fallback = new MiniQueryGenerator();
+            fallback.setSnapStep(snapStep);
+            return fallback.init(query);
+        }
+        fallback = null;
+        long startTime = Math.max(bound.getEndMillis() - initialDuration.toMillis(), bound.getStartMillis());
+        interval = new Interval(startTime, bound.getEndMillis());
+        intervalRows = rows(interval);
+        msPerRow = DEFAULT_MS_PER_ROW;
+        nextLimit = intervalMS;
+        return issueQueryGroup();
+    }
+
+    public ResultSetReturn askSlice() {
+        if (fallback != null) {
+            return fallback.askSlice();
+        }
+        // the previous frame is complete once its downstream time was reported
+        calculateNext(lastQueryMS + downstreamMS);
+        HashMap<Edge, Integer> resultSet = issueQueryGroup();
+        ResultSetReturn returnResult = new ResultSetReturn(resultSet, false);
+        if (interval.getStartMillis() <= bound.getStartMillis()) {
+            returnResult.setDone(true);
+        }
+        return returnResult;
+    }
+
+    @Override
+    public Interval getLastInterval() {
+        return fallback != null ? fallback.getLastInterval() : interval;
+    }
+
+    @Override
+    public void setSnapStep(double snapStep) {
+        this.snapStep = snapStep;
+    }
+
+    @Override
+    public void reportDownstream(long downstreamMS) {
+        if (fallback != null) {
+            fallback.reportDownstream(downstreamMS);
+        } else {
+            this.downstreamMS += downstreamMS;
+        }
+    }
+
+    /**
+     * learn the cost per reply of the last frame and pick the interval of the next mini query
+     *
+     * @param lastActualMS time of the last frame, from issuing its mini query to sending its result
+     */
+    private void calculateNext(long lastActualMS) {
+        long diff = Math.max(0, nextLimit - lastActualMS);
+        nextLimit = intervalMS + diff;
+        // an empty or instant frame tells nothing about the cost per reply
+        if (intervalRows > 0 && lastActualMS > 0) {
+            double lastMSPerRow = (double) lastActualMS / intervalRows;
+            msPerRow = SMOOTHING * lastMSPerRow + (1 - SMOOTHING) * msPerRow;
+        }
+        // the slice may only grow by a bounded factor, so that a cheap frame cannot lift the limit
+        long maxRows = MAX_GROWTH * Math.max(intervalRows, (long) (intervalMS / DEFAULT_MS_PER_ROW));
+        long targetRows = Math.max(1, Math.min(maxRows, (long) (nextLimit / msPerRow)));
+
+        // walk backward over the hours before the last interval until the target is reached
+        long endTime = interval.getStartMillis();
+        long startTime = bound.getStartMillis();
+        long rows = 0;
+        for (Map.Entry<Long, Integer> bucket : histogram.headMap(endTime, false).descendingMap().entrySet()) {
+            rows += bucket.getValue();
+            if (bucket.getKey() <= bound.getStartMillis()) {
+                break;
+            }
+            if (rows >= targetRows) {
+                startTime = bucket.getKey();
+                break;
+            }
+        }
+        interval = new Interval(startTime, endTime);
+        intervalRows = rows;
+    }
+
+    /**
+     * number of replies in an interval according to the histogram
+     */
+    private long rows(Interval interval) {
+        long rows = 0;
+        for (int count : histogram.subMap(interval.getStartMillis(), true, interval.getEndMillis(), false).values()) {
+            rows += count;
+        }
+        return rows;
+    }
+
+    private HashMap<Edge, Integer> issueQueryGroup() {
+        DateTime issuedTimestamp = DateTime.now();
+        HashMap<Edge, Integer> resultSet = SliceQuery.issueQueryGroup(query, interval, snapStep);
+        lastQueryMS = DateTime.now().getMillis() - issuedTimestamp.getMillis();
+        downstreamMS = 0;
+        return resultSet;
+    }
+}
@@ -2,21 +2,14 @@ package slicing;
 
 
 import models.Edge;
-import models.Point;
 import models.ResultSetReturn;
 import org.joda.time.DateTime;
 import org.joda.time.Interval;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
-import utils.DatabaseUtils;
 import utils.PropertiesUtil;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 
 public class MiniQueryGenerator implements Slicer{
     //query keyword
@@ -30,43 +23,70 @@ public class MiniQueryGenerator implements Slicer{
     private final FiniteDuration minimumDuration = Duration.create(PropertiesUtil.getMinimumDuration(), "day");
     //interval of the mini query
     private Interval interval;
+    //interval of the last issued mini query
+    private Interval lastInterval;
+    //grid step in degrees under which the replies are merged
+    private double snapStep;
     //pace of returning the result of the mini queries in milliseconds
     private final long intervalMS = PropertiesUtil.getIntervalMS();
     private NextEstimates nextEstimates;
     private Drum estimator;
     private long nextLimit;
+    //selectivity class of the query, the key of its persisted cost model
+    private int selectivityClass;
+    //time spent by the last mini query and downstream on its result so far
+    private long lastQueryMS;
+    private long downstreamMS;
 
     public HashMap<Edge, Integer> init(String query) {
         this.query = query;
         interval = calculateFirst(boundary, initialDuration);
         nextEstimates = new NextEstimates(interval, Integer.MAX_VALUE);
         estimator = new Drum((int) boundary.toDuration().getStandardHours(), 0.00001, (int) minimumDuration.toHours());
-        long t0 = System.currentTimeMillis();
+        nextLimit = intervalMS;
         DateTime issuedTimestamp = DateTime.now();
         HashMap<Edge, Integer> resultSet = issueQueryGroup(interval);
-        long timeSpend = DateTime.now().getMillis() - issuedTimestamp.getMillis();
-        long diff = Math.max(0, intervalMS - timeSpend);
-        nextLimit = intervalMS + diff;
-        calculateNext(timeSpend);
+        lastQueryMS = DateTime.now().getMillis() - issuedTimestamp.getMillis();
+        downstreamMS = 0;
+        long rows = resultSet.values().stream().mapToLong(Integer::longValue).sum();
+        selectivityClass = DrumPriors.selectivityClass(rows, interval.toDuration().getStandardHours());
+        Drum.Prior prior = DrumPriors.get(selectivityClass);
+        if (prior != null) {
+            estimator.warmStart(prior);
+        }
         return resultSet;
     }
 
     public ResultSetReturn askSlice() {
-        long t0 = System.currentTimeMillis();
+        // the previous frame is complete once its downstream time was reported
+        calculateNext(lastQueryMS + downstreamMS);
         DateTime issuedTimestamp = DateTime.now();
         HashMap<Edge, Integer> resultSet = issueQueryGroup(nextEstimates.getNextInterval());
-        long timeSpend = DateTime.now().getMillis() - issuedTimestamp.getMillis();
-        long diff = Math.max(0, nextLimit - timeSpend);
-        nextLimit = intervalMS + diff;
-        calculateNext(timeSpend);
+        lastQueryMS = DateTime.now().getMillis() - issuedTimestamp.getMillis();
+        downstreamMS = 0;
         ResultSetReturn returnResult = new ResultSetReturn(resultSet, false);
-        if (nextEstimates.getNextInterval().toDurationMillis() == 0) {
+        if (nextEstimates.getNextInterval().getStartMillis() <= boundary.getStartMillis()) {
             returnResult.setDone(true);
+            if (estimator.isTrained()) {
+                DrumPriors.put(selectivityClass, estimator.prior());
+            }
         }
         return returnResult;
     }
 
+    @Override
+    public void reportDownstream(long downstreamMS) {
+        this.downstreamMS += downstreamMS;
+    }
+
+    /**
+     * learn the cost of the last frame and estimate the interval of the next mini query
+     *
+     * @param lastActualMS time of the last frame, from issuing its mini query to sending its result
+     */
     private void calculateNext(long lastActualMS) {
+        long diff = Math.max(0, nextLimit - lastActualMS);
+        nextLimit = intervalMS + diff;
         estimator.learn((int) nextEstimates.getNextInterval().toDuration().getStandardHours(), (int) nextEstimates.getNextEstimateMS(), (int) lastActualMS);
         Drum.RangeTime estimate = estimator.estimate((int) nextLimit);
 
@@ -81,45 +101,19 @@ public class MiniQueryGenerator implements Slicer{
         return new Interval(startTime, entireInterval.getEndMillis());
     }
 
-    private HashMap<Edge, Integer> issueQueryGroup(Interval interval) {
-
-        Connection conn = DatabaseUtils.getConnection();
-        PreparedStatement state = DatabaseUtils.prepareStatement(query, conn, interval.getStart().toDateTime().toString(), interval.getEnd().toDateTime().toString());
-        HashMap<Edge, Integer> result = new LinkedHashMap<>();
-        try {
-            ResultSet resultSet = state.executeQuery();
-            if (resultSet != null) {
-                while (resultSet.next()) {
-                    Point from = new Point(resultSet.getDouble("from_longitude"), resultSet.getDouble("from_latitude"));
-                    Point to = new Point(resultSet.getDouble("to_longitude"), resultSet.getDouble("to_latitude"));
-                    Edge currentEdge = new Edge(from, to);
-                    // don't add short edges
-                    if (Math.pow(currentEdge.length(), 2) > 0.001)
-                        putEdgeIntoMap(result, currentEdge, 1);
-                }
-            }
-            resultSet.close();
-            state.close();
+    @Override
+    public Interval getLastInterval() {
+        return lastInterval;
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return result;
+    @Override
+    public void setSnapStep(double snapStep) {
+        this.snapStep = snapStep;
     }
 
-    /**
-     * put edge into map
-     *
-     * @param edges  map of edges and width
-     * @param edge   edge
-     * @param weight weight
-     */
-    private void putEdgeIntoMap(HashMap<Edge, Integer> edges, Edge edge, int weight) {
-        if (edges.containsKey(edge)) {
-            edges.put(edge, edges.get(edge) + weight);
-        } else {
-            edges.put(edge, weight);
-        }
+    private HashMap<Edge, Integer> issueQueryGroup(Interval interval) {
+        lastInterval = interval;
+        return SliceQuery.issueQueryGroup(query, interval, snapStep);
     }
 
     class NextEstimates {
@@ -0,0 +1,44 @@
+package slicing;
+
+/**
+ * Estimates of counts from a uniform random sample of the replies.
+ * Every reply is in the sample with probability p, so a sampled count n estimates n / p
+ * with variance n (1 - p) / p^2.
+ */
+public class SampleEstimate {
+    // z-score of the 95% confidence interval
+    private static final double Z = 1.96;
+
+    /**
+     * estimate a count and its confidence interval
+     *
+     * @param sampled  count in the sample
+     * @param fraction probability of a reply to be in the sample
+     * @return {estimate, lower bound, upper bound}
+     */
+    public static double[] interval(long sampled, double fraction) {
+        if (fraction >= 1) {
+            return new double[]{sampled, sampled, sampled};
+        }
+        double estimate = sampled / fraction;
+        double halfWidth = Z * Math.sqrt(sampled * (1 - fraction)) / fraction;
+        return new double[]{estimate, Math.max(sampled, estimate - halfWidth), estimate + halfWidth};
+    }
+
+    /**
+     * the half width of the confidence interval of a count relative to its estimate
+     *
+     * @param sampled  count in the sample
+     * @param fraction probability of a reply to be in the sample
+     * @return relative error, infinite if nothing was sampled
+     */
+    public static double relativeError(long sampled, double fraction) {
+        if (fraction >= 1) {
+            return 0;
+        }
+        if (sampled == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Z * Math.sqrt((1 - fraction) / sampled);
+    }
+}
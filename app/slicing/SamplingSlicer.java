@@ -0,0 +1,102 @@
+package slicing;
+
+
+import models.Edge;
+import models.ResultSetReturn;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import utils.DatabaseUtils;
+import utils.PropertiesUtil;
+
+import java.sql.Connection;
+import java.util.HashMap;
+
+/**
+ * Random-order progressive slicing.
+ * The replies are spread over buckets by a hash of their id, a random permutation that is stable across queries,
+ * and each mini query reads the next range of buckets over the whole time range,
+ * so every frame shows a uniform sample instead of the most recent days.
+ * The number of buckets of each mini query is sized by DRUM. The query stops early
+ * once the relative error of the estimated number of replies is below samplingRelativeError.
+ */
+public class SamplingSlicer implements Slicer {
+    // number of buckets of the permutation, must match the sample statement
+    static final int BUCKETS = 1000;
+    // buckets read by the first mini query
+    private static final int FIRST_BUCKETS = 10;
+    //query keyword
+    private String query;
+    //bound is the range of dates in the database
+    private final Interval bound = new Interval(PropertiesUtil.getFirstDate(), PropertiesUtil.getLastDate());
+    //pace of returning the result of the mini queries in milliseconds
+    private final long intervalMS = PropertiesUtil.getIntervalMS();
+    private Drum estimator;
+    private long nextLimit;
+    //buckets read so far, and the buckets of the next mini query with its estimated time
+    private int covered;
+    private int nextRange;
+    private long nextEstimateMS;
+    //number of replies sampled so far
+    private long sampled;
+    //time spent by the last mini query and downstream on its result so far
+    private long lastQueryMS;
+    private long downstreamMS;
+
+    public HashMap<Edge, Integer> init(String query) {
+        this.query = query;
+        estimator = new Drum(BUCKETS, 0.00001, 1);
+        covered = 0;
+        sampled = 0;
+        nextRange = FIRST_BUCKETS;
+        nextEstimateMS = Integer.MAX_VALUE;
+        nextLimit = intervalMS;
+        return issueQueryGroup();
+    }
+
+    public ResultSetReturn askSlice() {
+        // the previous frame is complete once its downstream time was reported
+        calculateNext(lastQueryMS + downstreamMS);
+        HashMap<Edge, Integer> resultSet = issueQueryGroup();
+        ResultSetReturn returnResult = new ResultSetReturn(resultSet, false);
+        double targetError = PropertiesUtil.getSamplingRelativeError();
+        if (covered >= BUCKETS || (targetError > 0 && SampleEstimate.relativeError(sampled, getSampledFraction()) <= targetError)) {
+            returnResult.setDone(true);
+        }
+        return returnResult;
+    }
+
+    @Override
+    public void reportDownstream(long downstreamMS) {
+        this.downstreamMS += downstreamMS;
+    }
+
+    @Override
+    public double getSampledFraction() {
+        return (double) covered / BUCKETS;
+    }
+
+    private void calculateNext(long lastActualMS) {
+        long diff = Math.max(0, nextLimit - lastActualMS);
+        nextLimit = intervalMS + diff;
+        estimator.learn(nextRange, (int) nextEstimateMS, (int) lastActualMS);
+        Drum.RangeTime estimate = estimator.estimate((int) nextLimit);
+        nextRange = Math.max(1, Math.min(BUCKETS - covered, estimate.range()));
+        nextEstimateMS = estimate.estimateMS();
+    }
+
+    private HashMap<Edge, Integer> issueQueryGroup() {
+        Connection conn = DatabaseUtils.getConnection();
+        int upper = Math.min(BUCKETS, covered + nextRange);
+        DateTime issuedTimestamp = DateTime.now();
+        HashMap<Edge, Integer> resultSet = SliceQuery.group(DatabaseUtils.prepareSampleStatement(query, conn,
+                bound.getStart().toDateTime().toString(), bound.getEnd().toDateTime().toString(), covered, upper), false);
+        lastQueryMS = DateTime.now().getMillis() - issuedTimestamp.getMillis();
+        downstreamMS = 0;
+        nextRange = upper - covered;
+        covered = upper;
+        for (int weight : resultSet.values()) {
+            sampled += weight;
+        }
+        return resultSet;
+    }
+}
@@ -0,0 +1,93 @@
+package slicing;
+
+import models.Edge;
+import models.Point;
+import org.joda.time.Interval;
+import utils.DatabaseUtils;
+import utils.PropertiesUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Issues the mini queries of the slicers and groups the returned rows into weighted edges.
+ */
+class SliceQuery {
+
+    /**
+     * issue the mini query of one slice, reading the edge cube when it covers the keyword,
+     * and otherwise letting the database group the replies when aggregation pushdown is enabled
+     *
+     * @param query    query keyword
+     * @param interval time range of the slice
+     * @param snapStep grid step in degrees under which the grouped replies are merged
+     * @return map of edges and their weights
+     */
+    static HashMap<Edge, Integer> issueQueryGroup(String query, Interval interval, double snapStep) {
+        Connection conn = DatabaseUtils.getConnection();
+        String start = interval.getStart().toDateTime().toString();
+        String end = interval.getEnd().toDateTime().toString();
+        if (EdgeCube.covers(query)) {
+            // a slice reads the hour buckets from the one of its start up to the one of its end,
+            // and the newest slice also reads the bucket of the last reply
+            String cubeEnd = interval.getEndMillis() >= PropertiesUtil.getLastDate().getMillis()
+                    ? interval.getEnd().plusHours(1).toDateTime().toString()
+                    : end;
+            return group(DatabaseUtils.prepareCubeStatement(EdgeCube.keyword(query), conn, start, cubeEnd), true);
+        }
+        if (PropertiesUtil.isAggregationPushdown()) {
+            double step = PropertiesUtil.isAggregationSnap() ? snapStep : 0;
+            return group(DatabaseUtils.prepareGroupedStatement(query, conn, start, end, step), true);
+        }
+        return group(DatabaseUtils.prepareStatement(query, conn, start, end), false);
+    }
+
+    /**
+     * run the statement and put the returned rows into a map of edges
+     *
+     * @param state    prepared statement returning from/to coordinates
+     * @param weighted whether the rows carry a weight column or stand for one reply each
+     * @return map of edges and their weights
+     */
+    static HashMap<Edge, Integer> group(PreparedStatement state, boolean weighted) {
+        HashMap<Edge, Integer> result = new LinkedHashMap<>();
+        try {
+            ResultSet resultSet = state.executeQuery();
+            if (resultSet != null) {
+                while (resultSet.next()) {
+                    Point from = new Point(resultSet.getDouble("from_longitude"), resultSet.getDouble("from_latitude"));
+                    Point to = new Point(resultSet.getDouble("to_longitude"), resultSet.getDouble("to_latitude"));
+                    Edge currentEdge = new Edge(from, to);
+                    // don't add short edges
+                    if (Math.pow(currentEdge.length(), 2) > 0.001)
+                        putEdgeIntoMap(result, currentEdge, weighted ? resultSet.getInt("weight") : 1);
+                }
+                resultSet.close();
+            }
+            state.close();
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    /**
+     * put edge into map
+     *
+     * @param edges  map of edges and width
+     * @param edge   edge
+     * @param weight weight
+     */
+    static void putEdgeIntoMap(HashMap<Edge, Integer> edges, Edge edge, int weight) {
+        if (edges.containsKey(edge)) {
+            edges.put(edge, edges.get(edge) + weight);
+        } else {
+            edges.put(edge, weight);
+        }
+    }
+}
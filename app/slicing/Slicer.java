@@ -2,6 +2,7 @@ package slicing;
 
 import models.Edge;
 import models.ResultSetReturn;
+import org.joda.time.Interval;
 
 import java.util.HashMap;
 
@@ -9,4 +10,41 @@ public interface Slicer {
 
     HashMap<Edge, Integer> init(String query);
     ResultSetReturn askSlice();
+
+    /**
+     * report the time spent downstream on the last slice (clustering, bundling and serialization),
+     * so that the next slice can be sized for the cost of the whole frame
+     *
+     * @param downstreamMS milliseconds spent after the slice was returned
+     */
+    default void reportDownstream(long downstreamMS) {
+    }
+
+    /**
+     * the fraction of the matching replies read by the slices so far when they are a random sample,
+     * the counts of the result estimate the full counts once divided by it
+     *
+     * @return 1 if the slices are exact
+     */
+    default double getSampledFraction() {
+        return 1;
+    }
+
+    /**
+     * the time range of the last slice, so that its result can be retained as a segment of the timeline
+     *
+     * @return the interval of the last slice, null if the slices are not time ranges
+     */
+    default Interval getLastInterval() {
+        return null;
+    }
+
+    /**
+     * the grid step under which the mini queries grouped by the database merge the replies,
+     * when aggregation snapping is enabled
+     *
+     * @param snapStep grid step in degrees, such as the range search radius of the clustering at its max zoom level
+     */
+    default void setSnapStep(double snapStep) {
+    }
 }
@@ -0,0 +1,176 @@
+package slicing;
+
+
+import models.Edge;
+import models.ResultSetReturn;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+import utils.DatabaseUtils;
+import utils.PropertiesUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.HashMap;
+
+/**
+ * Viewport-first progressive slicing.
+ * The first mini queries fetch the edges touching the user's viewport, each following region is a ring
+ * around the region covered so far, its margin doubling, until the region covers the whole world.
+ * Every region is read backward from the newest replies in time windows sized by DRUM, as the temporal slicer does.
+ * A mini query only searches the four boxes of its ring around the region covered so far, within one time window,
+ * so that the time and point indexes of the replies narrow it down before the text search.
+ */
+public class SpatialSlicer implements Slicer {
+    // longitude/latitude bounds of the world
+    private static final double[] WORLD = {-180, -90, 180, 90};
+    // a box outside the world, that matches no point
+    private static final double[] NOWHERE = {1000, 1000, 1001, 1001};
+    //query keyword
+    private String query;
+    //bound is the range of dates in the database
+    private final Interval bound = new Interval(PropertiesUtil.getFirstDate(), PropertiesUtil.getLastDate());
+    //initial duration of the first mini query
+    private final FiniteDuration initialDuration = Duration.create(PropertiesUtil.getInitialDuration(), "days");
+    //minimum duration is the minimum time range of a sliced query
+    private final FiniteDuration minimumDuration = Duration.create(PropertiesUtil.getMinimumDuration(), "day");
+    //the user's viewport as {lowerLongitude, lowerLatitude, upperLongitude, upperLatitude}
+    private final double[] viewport;
+    //margin in degrees around the viewport of the region being read
+    private double margin;
+    //region being read, and the region read over the whole time range before it, null before the first ring
+    private double[] region;
+    private double[] covered;
+    //time window of the last mini query within the region
+    private Interval interval;
+    //pace of returning the result of the mini queries in milliseconds
+    private final long intervalMS = PropertiesUtil.getIntervalMS();
+    private Drum estimator;
+    private long nextLimit;
+    //estimated time of the last mini query
+    private long nextEstimateMS;
+    //time spent by the last mini query and downstream on its result so far
+    private long lastQueryMS;
+    private long downstreamMS;
+
+    /**
+     * Create a slicer that starts from the given viewport
+     *
+     * @param lowerLongitude lower longitude of the viewport
+     * @param lowerLatitude  lower latitude of the viewport
+     * @param upperLongitude upper longitude of the viewport
+     * @param upperLatitude  upper latitude of the viewport
+     */
+    public SpatialSlicer(double lowerLongitude, double lowerLatitude, double upperLongitude, double upperLatitude) {
+        // a viewport crossing the antimeridian or wider than the world covers all longitudes
+        if (lowerLongitude > upperLongitude || upperLongitude - lowerLongitude >= WORLD[2] - WORLD[0]) {
+            lowerLongitude = WORLD[0];
+            upperLongitude = WORLD[2];
+        }
+        this.viewport = clamp(new double[]{lowerLongitude, lowerLatitude, upperLongitude, upperLatitude});
+    }
+
+    public HashMap<Edge, Integer> init(String query) {
+        this.query = query;
+        region = viewport;
+        covered = null;
+        margin = 0;
+        long startTime = Math.max(bound.getEndMillis() - initialDuration.toMillis(), bound.getStartMillis());
+        interval = new Interval(startTime, bound.getEndMillis());
+        estimator = new Drum((int) bound.toDuration().getStandardHours(), 0.00001, (int) minimumDuration.toHours());
+        nextEstimateMS = Integer.MAX_VALUE;
+        nextLimit = intervalMS;
+        return issueQueryGroup();
+    }
+
+    public ResultSetReturn askSlice() {
+        // the previous frame is complete once its downstream time was reported
+        int hours = calculateNext(lastQueryMS + downstreamMS);
+        long endTime = interval.getStartMillis();
+        if (endTime <= bound.getStartMillis()) {
+            // the region is read over the whole time range, the next ring starts again from the newest replies
+            covered = region;
+            // the first ring is as wide as half the viewport
+            margin = margin == 0 ? Math.max(viewport[2] - viewport[0], viewport[3] - viewport[1]) / 2 : margin * 2;
+            margin = Math.max(margin, 1);
+            region = expand(viewport, margin);
+            endTime = bound.getEndMillis();
+        }
+        interval = new Interval(Math.max(bound.getStartMillis(), endTime - hours * 3600000L), endTime);
+        HashMap<Edge, Integer> resultSet = issueQueryGroup();
+        ResultSetReturn returnResult = new ResultSetReturn(resultSet, false);
+        if (isWorld(region) && interval.getStartMillis() <= bound.getStartMillis()) {
+            returnResult.setDone(true);
+        }
+        return returnResult;
+    }
+
+    @Override
+    public void reportDownstream(long downstreamMS) {
+        this.downstreamMS += downstreamMS;
+    }
+
+    /**
+     * learn the cost of the last frame and estimate the hours of the next time window
+     *
+     * @param lastActualMS time of the last frame, from issuing its mini query to sending its result
+     * @return the hours of the next time window
+     */
+    private int calculateNext(long lastActualMS) {
+        long diff = Math.max(0, nextLimit - lastActualMS);
+        nextLimit = intervalMS + diff;
+        estimator.learn((int) interval.toDuration().getStandardHours(), (int) nextEstimateMS, (int) lastActualMS);
+        Drum.RangeTime estimate = estimator.estimate((int) nextLimit);
+        nextEstimateMS = estimate.estimateMS();
+        return Math.max(1, estimate.range());
+    }
+
+    /**
+     * fetch the edges of the time window touching the ring of the region around the region covered so far,
+     * but not the region covered so far
+     *
+     * @return map of edges and their weights
+     */
+    private HashMap<Edge, Integer> issueQueryGroup() {
+        DateTime issuedTimestamp = DateTime.now();
+        Connection conn = DatabaseUtils.getConnection();
+        PreparedStatement state = DatabaseUtils.prepareSpatialStatement(query, conn, interval.getStart().toDateTime().toString(),
+                interval.getEnd().toDateTime().toString(), ring(region, covered), covered == null ? NOWHERE : covered);
+        HashMap<Edge, Integer> resultSet = SliceQuery.group(state, false);
+        lastQueryMS = DateTime.now().getMillis() - issuedTimestamp.getMillis();
+        downstreamMS = 0;
+        return resultSet;
+    }
+
+    /**
+     * split the part of a region outside an inner region into four boxes: below, above, left and right of it
+     *
+     * @param region the region
+     * @param inner  the inner region within it, null if there is none
+     * @return the four boxes, the region itself and boxes matching no point when there is no inner region
+     */
+    private static double[][] ring(double[] region, double[] inner) {
+        if (inner == null) {
+            return new double[][]{region, NOWHERE, NOWHERE, NOWHERE};
+        }
+        return new double[][]{
+                {region[0], region[1], region[2], inner[1]},
+                {region[0], inner[3], region[2], region[3]},
+                {region[0], inner[1], inner[0], inner[3]},
+                {inner[2], inner[1], region[2], inner[3]}};
+    }
+
+    private static double[] expand(double[] box, double margin) {
+        return clamp(new double[]{box[0] - margin, box[1] - margin, box[2] + margin, box[3] + margin});
+    }
+
+    private static double[] clamp(double[] box) {
+        return new double[]{Math.max(WORLD[0], box[0]), Math.max(WORLD[1], box[1]),
+                Math.min(WORLD[2], box[2]), Math.min(WORLD[3], box[3])};
+    }
+
+    private static boolean isWorld(double[] box) {
+        return box != null && box[0] <= WORLD[0] && box[1] <= WORLD[1] && box[2] >= WORLD[2] && box[3] >= WORLD[3];
+    }
+}
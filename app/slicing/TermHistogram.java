@@ -0,0 +1,128 @@
+package slicing;
+
+import org.joda.time.Interval;
+import utils.DatabaseUtils;
+import utils.PropertiesUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.TreeMap;
+
+/**
+ * Per-term hourly count of replies, the selectivity of a keyword over time.
+ * Created by data/setup_term_histogram.sql and grown incrementally by {@link #build()},
+ * the empty term counts all replies.
+ */
+public class TermHistogram {
+
+    /**
+     * read the hourly counts of the replies matching a query,
+     * summed over its terms, so queries combining several terms are over-estimated
+     *
+     * @param query    query keyword, empty for all replies
+     * @param interval time range to read
+     * @return map of hour bucket start in milliseconds to the number of replies
+     */
+    public static TreeMap<Long, Integer> load(String query, Interval interval) {
+        TreeMap<Long, Integer> histogram = new TreeMap<>();
+        Connection conn = DatabaseUtils.getConnection();
+        PreparedStatement state = DatabaseUtils.prepareHistogramStatement(query == null ? "" : query, conn,
+                interval.getStart().toDateTime().toString(), interval.getEnd().toDateTime().toString());
+        try {
+            ResultSet resultSet = state.executeQuery();
+            while (resultSet.next()) {
+                histogram.put(resultSet.getTimestamp("bucket").getTime(), resultSet.getInt("cnt"));
+            }
+            resultSet.close();
+            state.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return histogram;
+    }
+
+    /**
+     * count the replies created since the last build into the histogram
+     */
+    public static synchronized void build() {
+        Connection conn = DatabaseUtils.getConnection();
+        try {
+            Timestamp start = builtUntil(conn);
+            Timestamp end = EdgeCube.lastReply(conn);
+            if (end == null || !end.after(start)) {
+                return;
+            }
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement state = DatabaseUtils.prepareHistogramBuildStatement(false, conn, start, end);
+                state.executeUpdate();
+                state.close();
+                state = DatabaseUtils.prepareHistogramBuildStatement(true, conn, start, end);
+                state.executeUpdate();
+                state.close();
+                state = DatabaseUtils.prepareHistogramUpdateStateStatement(conn, end);
+                state.executeUpdate();
+                state.close();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * count again the hours the bulk ingestion inserted replies into, up to how far the histogram is built,
+     * since replies backfilled before that are not counted by {@link #build()}
+     */
+    public static synchronized void recountIngested() {
+        Connection conn = DatabaseUtils.getConnection();
+        try {
+            Timestamp builtUntil = builtUntil(conn);
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement delete = DatabaseUtils.prepareHistogramRecountDeleteStatement(conn, builtUntil);
+                 PreparedStatement terms = DatabaseUtils.prepareHistogramRecountStatement(false, conn, builtUntil);
+                 PreparedStatement all = DatabaseUtils.prepareHistogramRecountStatement(true, conn, builtUntil)) {
+                delete.executeUpdate();
+                terms.executeUpdate();
+                all.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Timestamp builtUntil(Connection conn) throws SQLException {
+        PreparedStatement state = DatabaseUtils.prepareHistogramStateStatement(conn);
+        ResultSet resultSet = state.executeQuery();
+        Timestamp builtUntil = resultSet.next() ? resultSet.getTimestamp("built_until") : new Timestamp(0);
+        resultSet.close();
+        state.close();
+        return builtUntil;
+    }
+
+    /**
+     * build or refresh the histogram
+     *
+     * @param args unused
+     */
+    public static void main(String[] args) {
+        PropertiesUtil.loadProperties();
+        build();
+    }
+}
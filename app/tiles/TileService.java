@@ -0,0 +1,269 @@
+package tiles;
+
+import clustering.Clustering;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import models.Cluster;
+import models.Edge;
+import utils.PropertiesUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Slippy map tiles of the clusters and meta-edges of the HGC hierarchies of the running queries.
+ * A tile is identified by the query, its data version and z/x/y, so the rendered tiles are kept in an LRU cache,
+ * and the tiles of completed queries on disk, where later views of the same query find them.
+ */
+public class TileService {
+
+    // hierarchy of each query id, the latest session that issued the query
+    private static final Map<String, Entry> hierarchies = new ConcurrentHashMap<>();
+    // rendered tiles by query id, data version and z/x/y
+    private static final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > PropertiesUtil.getTileCacheSize();
+        }
+    };
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    // format of the query ids, the dataset and the SHA-256 digest of the query, the only ids used as file names
+    private static final Pattern QUERY_ID = Pattern.compile("\\w+-[0-9a-f]{64}");
+
+    private static class Entry {
+        private final WeakReference<Clustering> clustering;
+        private final boolean complete;
+
+        private Entry(Clustering clustering, boolean complete) {
+            this.clustering = new WeakReference<>(clustering);
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * A rendered tile with the data version it was rendered from
+     */
+    public static class Tile {
+        private final String version;
+        private final String data;
+
+        private Tile(String version, String data) {
+            this.version = version;
+            this.data = data;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getData() {
+            return data;
+        }
+    }
+
+    /**
+     * the id of a query in the tile urls, the same for every session issuing it
+     *
+     * @param query  query keyword
+     * @param radius range search radius of the clustering
+     */
+    public static String queryId(String query, double radius) {
+        StringBuilder id = new StringBuilder(PropertiesUtil.getDataset()).append("-");
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte b : digest.digest((query + "\n" + radius).getBytes(StandardCharsets.UTF_8))) {
+                id.append(String.format("%02x", b));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return id.toString();
+    }
+
+    /**
+     * whether a query id from a tile url has the format of the generated ids,
+     * so that it cannot name a file outside the tile cache directory
+     *
+     * @param queryId id of the query
+     */
+    public static boolean isValidQueryId(String queryId) {
+        return queryId != null && QUERY_ID.matcher(queryId).matches();
+    }
+
+    /**
+     * serve the tiles of a query from a hierarchy
+     *
+     * @param queryId    id of the query
+     * @param clustering the hierarchy of the query
+     * @param complete   whether all the data of the query is loaded, then its tiles are also cached on disk
+     */
+    public static void register(String queryId, Clustering clustering, boolean complete) {
+        hierarchies.put(queryId, new Entry(clustering, complete));
+    }
+
+    /**
+     * get the current data version of a query
+     *
+     * @param queryId id of the query
+     * @return the version, null if the query is neither running nor cached on disk
+     */
+    public static String version(String queryId) {
+        if (!isValidQueryId(queryId)) {
+            return null;
+        }
+        Entry entry = hierarchies.get(queryId);
+        Clustering clustering = entry == null ? null : entry.clustering.get();
+        if (clustering != null) {
+            return Long.toHexString(clustering.getDataVersion());
+        }
+        // the latest version cached on disk of a completed query
+        File dir = diskDir(queryId);
+        File[] versions = dir == null ? null : dir.listFiles(File::isDirectory);
+        if (versions == null || versions.length == 0) {
+            return null;
+        }
+        return Arrays.stream(versions).max(Comparator.comparingLong(File::lastModified)).get().getName();
+    }
+
+    /**
+     * get a tile of a query
+     *
+     * @param queryId id of the query
+     * @param z       zoom level
+     * @param x       column of the tile
+     * @param y       row of the tile
+     * @return the tile, null if the query is unknown or the tile out of range
+     */
+    public static Tile tile(String queryId, int z, int x, int y) {
+        int n = 1 << Math.max(0, Math.min(z, 30));
+        if (z < 0 || x < 0 || y < 0 || x >= n || y >= n || !isValidQueryId(queryId)) {
+            return null;
+        }
+        Entry entry = hierarchies.get(queryId);
+        Clustering clustering = entry == null ? null : entry.clustering.get();
+        String version = version(queryId);
+        if (version == null) {
+            return null;
+        }
+        String key = queryId + "/" + version + "/" + z + "/" + x + "/" + y;
+        synchronized (cache) {
+            String data = cache.get(key);
+            if (data != null) {
+                return new Tile(version, data);
+            }
+        }
+        File file = diskFile(key);
+        String data = null;
+        if (file != null && file.exists()) {
+            try {
+                data = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (data == null) {
+            if (clustering == null) {
+                return null;
+            }
+            synchronized (clustering) {
+                // the hierarchy may have changed since the version was read
+                version = Long.toHexString(clustering.getDataVersion());
+                key = queryId + "/" + version + "/" + z + "/" + x + "/" + y;
+                data = render(clustering, z, x, y, n);
+            }
+            if (entry.complete && file != null) {
+                write(diskFile(key), data);
+            }
+        }
+        synchronized (cache) {
+            cache.put(key, data);
+        }
+        return new Tile(version, data);
+    }
+
+    /**
+     * render the clusters within a tile and the meta-edges between the clusters of its zoom level with an end within it.
+     * The meta-edges are sent whole, in the tiles of both their ends, for the client to draw each once
+     */
+    private static String render(Clustering clustering, int z, int x, int y, int n) {
+        int zoom = Math.min(z, clustering.getMaxZoom());
+        double left = (double) x / n;
+        double top = (double) y / n;
+        double right = (double) (x + 1) / n;
+        double bottom = (double) (y + 1) / n;
+        double[] bbox = {Clustering.xLng(left), Clustering.yLat(bottom), Clustering.xLng(right), Clustering.yLat(top)};
+        ObjectNode tile = objectMapper.createObjectNode();
+        tile.put("z", z).put("x", x).put("y", y);
+        ArrayNode clusters = tile.putArray("clusters");
+        for (Cluster cluster : clustering.getClusters(bbox, zoom)) {
+            if (within(cluster, left, top, right, bottom)) {
+                ObjectNode clusterNode = clusters.addObject();
+                clusterNode.putArray("coordinates").add(Clustering.xLng(cluster.getX())).add(Clustering.yLat(cluster.getY()));
+                clusterNode.put("size", cluster.getNumPoints());
+            }
+        }
+        ArrayNode edges = tile.putArray("edges");
+        // a tile does not keep the meta-edges of its zoom level up to date, only the drawn zoom levels do
+        HashMap<Edge, Integer> metaEdges = clustering.getMetaEdges(bbox, zoom, false);
+        for (Map.Entry<Edge, Integer> metaEdge : metaEdges.entrySet()) {
+            Cluster from = (Cluster) metaEdge.getKey().getFromPoint();
+            Cluster to = (Cluster) metaEdge.getKey().getToPoint();
+            if (within(from, left, top, right, bottom) || within(to, left, top, right, bottom)) {
+                ObjectNode lineNode = edges.addObject();
+                lineNode.putArray("from").add(Clustering.xLng(from.getX())).add(Clustering.yLat(from.getY()));
+                lineNode.putArray("to").add(Clustering.xLng(to.getX())).add(Clustering.yLat(to.getY()));
+                lineNode.put("width", metaEdge.getValue());
+            }
+        }
+        return tile.toString();
+    }
+
+    /**
+     * whether a cluster is in a tile, the left and top borders belong to the tile
+     */
+    private static boolean within(Cluster cluster, double left, double top, double right, double bottom) {
+        return left <= cluster.getX() && cluster.getX() < right && top <= cluster.getY() && cluster.getY() < bottom;
+    }
+
+    private static File diskDir(String queryId) {
+        String dir = PropertiesUtil.getTileCacheDir();
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        return new File(dir, queryId);
+    }
+
+    private static File diskFile(String key) {
+        String dir = PropertiesUtil.getTileCacheDir();
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        return new File(dir, key + ".json");
+    }
+
+    private static void write(File file, String data) {
+        try {
+            file.getParentFile().mkdirs();
+            File temp = new File(file.getPath() + ".tmp");
+            Files.write(temp.toPath(), data.getBytes(StandardCharsets.UTF_8));
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
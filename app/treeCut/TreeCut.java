@@ -1,5 +1,6 @@
 package treeCut;
 
+import clustering.ClusterHierarchy;
 import clustering.Clustering;
 import models.Cluster;
 import models.Edge;
@@ -64,7 +65,7 @@ public class TreeCut {
      * @param externalCluster outside cluster corresponding to edge set with only one node inside screen
      * @param internalCluster inside screen clusters
      */
-    public void execute(Clustering clustering, double lowerLongitude,
+    public void execute(ClusterHierarchy clustering, double lowerLongitude,
                         double upperLongitude, double lowerLatitude,
                         double upperLatitude, int zoom,
                         HashMap<Edge, Integer> edges, HashSet<Edge> externalEdgeSet,
@@ -188,11 +189,13 @@ public class TreeCut {
      * @param edges           edge set to be returned
      * @param externalEdgeSet edge set with only one node inside screen
      */
-    private void updateEdgeSet(Clustering clustering, double lowerLongitude, double upperLongitude, double lowerLatitude, double upperLatitude, int zoom, HashMap<Edge, Integer> edges, HashSet<Edge> externalEdgeSet) {
+    private void updateEdgeSet(ClusterHierarchy clustering, double lowerLongitude, double upperLongitude, double lowerLatitude, double upperLatitude, int zoom, HashMap<Edge, Integer> edges, HashSet<Edge> externalEdgeSet) {
         for (Edge edge : externalEdgeSet) {
             // add the edge in the edge set
-            Cluster fromCluster = clustering.parentCluster(new Cluster(new Point(Clustering.lngX(edge.getFromX()), Clustering.latY(edge.getFromY()))), zoom);
-            Cluster toCluster = clustering.parentCluster(new Cluster(new Point(Clustering.lngX(edge.getToX()), Clustering.latY(edge.getToY()))), zoom);
+            Cluster fromCluster = clustering.parentCluster(edge.getFromPoint(), zoom);
+            Cluster toCluster = clustering.parentCluster(edge.getToPoint(), zoom);
+            if (fromCluster == null || toCluster == null)
+                continue;
             double fromLongitude = Clustering.xLng(fromCluster.getX());
             double fromLatitude = Clustering.yLat(fromCluster.getY());
             double insideLat, insideLng, outsideLat, outsideLng;
@@ -1,15 +1,22 @@
 package utils;
 
+import org.joda.time.LocalDate;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 
 /**
  * Util class to do database relative manipulations.
  */
 public class DatabaseUtils {
     private static Connection conn;
+    // connection of the threads that run their queries apart from the static connection, e.g. background jobs
+    private static final ThreadLocal<Connection> threadConnection = new ThreadLocal<>();
 
     /**
      * Gets the static database connection.
@@ -18,16 +25,54 @@ public class DatabaseUtils {
      * @throws SQLException
      */
     public static Connection getConnection()  {
+        Connection own = threadConnection.get();
+        if (own != null) {
+            return own;
+        }
+        if (conn == null) {
+            conn = newConnection();
+        }
+        return conn;
+    }
+
+    /**
+     * Makes the current thread get its own connection instead of the static one.
+     * @param connection the connection of the thread, null to go back to the static connection
+     */
+    public static void setThreadConnection(Connection connection) {
+        if (connection == null) {
+            threadConnection.remove();
+        } else {
+            threadConnection.set(connection);
+        }
+    }
+
+    /**
+     * Opens a new database connection, for work that runs in parallel to the static connection.
+     * @return database connection object
+     */
+    public static Connection newConnection() {
         try {
-            if (conn == null) {
-                Class.forName("org.postgresql.Driver");
-                conn = DriverManager.getConnection("jdbc:postgresql://localhost:5432/graphtweet", "graphuser",
-                        "graphuser");
-            }
-        }catch (ClassNotFoundException | SQLException e) {
+            Class.forName("org.postgresql.Driver");
+            return DriverManager.getConnection("jdbc:postgresql://localhost:5432/graphtweet", "graphuser",
+                    "graphuser");
+        } catch (ClassNotFoundException | SQLException e) {
             e.printStackTrace();
         }
-        return conn;
+        return null;
+    }
+
+    /**
+     * Reads the precomputed tsvector columns of the replies instead of computing the tsvector of every
+     * matching row, when the table was loaded by the bulk ingestion with tsvectorColumns enabled.
+     * @param statement query string over from_text and to_text
+     * @return query string over from_tsv and to_tsv if enabled, the given one otherwise
+     */
+    private static String textSearch(String statement) {
+        if (!PropertiesUtil.isTsvectorColumns()) {
+            return statement;
+        }
+        return statement.replaceAll("to_tsvector\\('english', (r\\.)?(from|to)_text\\)", "$1$2_tsv");
     }
 
     /**
@@ -41,7 +86,7 @@ public class DatabaseUtils {
     public static PreparedStatement prepareStatement(String query, Connection conn, String start, String end) {
         PreparedStatement state = null;
         try {
-            String searchQuery = QueryStatement.incrementalTweetsStatament;
+            String searchQuery = textSearch(QueryStatement.incrementalTweetsStatament);
             state = conn.prepareStatement(searchQuery);
             state.setString(1, query);
             state.setString(2, query);
@@ -53,6 +98,99 @@ public class DatabaseUtils {
         return state;
     }
 
+    /**
+     * Prepares the statement to do database query grouped by from/to coordinates,
+     * returning one row per distinct edge with its number of replies as weight
+     * @param query query keyword
+     * @param conn database connection object
+     * @param start query start date
+     * @param end query end date
+     * @param step grid step in degrees of longitude the coordinates are snapped to before grouping, the latitudes on the same step
+     *             of the spherical mercator y, 0 to group exact coordinates
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareGroupedStatement(String query, Connection conn, String start, String end, double step) {
+        PreparedStatement state = null;
+        try {
+            int i = 1;
+            if (step > 0) {
+                state = conn.prepareStatement(textSearch(QueryStatement.snappedTweetsStatement));
+                state.setDouble(i++, step);
+            } else {
+                state = conn.prepareStatement(textSearch(QueryStatement.groupedTweetsStatement));
+            }
+            state.setString(i++, query);
+            state.setString(i++, query);
+            state.setString(i++, start);
+            state.setString(i, end);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to do database query for the edges touching a ring of a region around an inner region,
+     * but not touching the inner region that was already fetched
+     * @param query query keyword
+     * @param conn database connection object
+     * @param start query start date
+     * @param end query end date
+     * @param ring the four boxes {lowerLongitude, lowerLatitude, upperLongitude, upperLatitude} the ring is made of
+     * @param inner {lowerLongitude, lowerLatitude, upperLongitude, upperLatitude} of the inner region
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareSpatialStatement(String query, Connection conn, String start, String end, double[][] ring, double[] inner) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(textSearch(QueryStatement.spatialTweetsStatement));
+            state.setString(1, query);
+            state.setString(2, query);
+            state.setString(3, start);
+            state.setString(4, end);
+            int i = 5;
+            for (double[] box : new double[][]{ring[0], ring[1], ring[2], ring[3], inner}) {
+                // once for the from point and once for the to point
+                for (int endPoint = 0; endPoint < 2; endPoint++) {
+                    state.setDouble(i++, box[0]);
+                    state.setDouble(i++, box[1]);
+                    state.setDouble(i++, box[2]);
+                    state.setDouble(i++, box[3]);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to do database query for a random sample of the replies,
+     * the replies are spread over 1000 buckets by a hash of their id and the sample reads a range of buckets
+     * @param query query keyword
+     * @param conn database connection object
+     * @param start query start date
+     * @param end query end date
+     * @param lowerBucket first bucket of the sample
+     * @param upperBucket bucket after the last one of the sample
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareSampleStatement(String query, Connection conn, String start, String end, int lowerBucket, int upperBucket) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(textSearch(QueryStatement.sampleTweetsStatement));
+            state.setString(1, query);
+            state.setString(2, query);
+            state.setString(3, start);
+            state.setString(4, end);
+            state.setInt(5, lowerBucket);
+            state.setInt(6, upperBucket);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
     /**
      * Prepares the statement to do database query
      * @param conn database connection object
@@ -81,7 +219,7 @@ public class DatabaseUtils {
     public static PreparedStatement prepareStatement(String query, Connection conn) {
         PreparedStatement state = null;
         try {
-            String searchQuery = QueryStatement.statement;
+            String searchQuery = textSearch(QueryStatement.statement);
             state = conn.prepareStatement(searchQuery);
             state.setString(1, query);
             state.setString(2, query);
@@ -91,4 +229,393 @@ public class DatabaseUtils {
         return state;
     }
 
+
+    /**
+     * Prepares the statement to read one slice from the pre-aggregated edge cube
+     * @param keyword materialized keyword, empty for the unfiltered cube
+     * @param conn database connection object
+     * @param start query start date
+     * @param end query end date
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareCubeStatement(String keyword, Connection conn, String start, String end) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.cubeStatement);
+            state.setString(1, keyword);
+            state.setString(2, start);
+            state.setString(3, end);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to aggregate new replies into the edge cube
+     * @param keyword keyword to materialize, empty for the unfiltered cube
+     * @param conn database connection object
+     * @param step quantization step of the from/to points in degrees
+     * @param start exclusive lower bound of the replies to aggregate
+     * @param end inclusive upper bound of the replies to aggregate
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareCubeBuildStatement(String keyword, Connection conn, double step, Timestamp start, Timestamp end) {
+        PreparedStatement state = null;
+        try {
+            if (keyword.isEmpty()) {
+                state = conn.prepareStatement(QueryStatement.cubeBuildAllStatement);
+                state.setDouble(1, step);
+                state.setTimestamp(2, start);
+                state.setTimestamp(3, end);
+            } else {
+                state = conn.prepareStatement(textSearch(QueryStatement.cubeBuildStatement));
+                state.setString(1, keyword);
+                state.setDouble(2, step);
+                state.setString(3, keyword);
+                state.setString(4, keyword);
+                state.setTimestamp(5, start);
+                state.setTimestamp(6, end);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to read the materialized keywords of the edge cube and how far they are built
+     * @param conn database connection object
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareCubeStateStatement(Connection conn) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.cubeStateStatement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to record how far the edge cube of a keyword is built
+     * @param keyword materialized keyword, empty for the unfiltered cube
+     * @param conn database connection object
+     * @param builtUntil the creation time of the last aggregated reply
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareCubeUpdateStateStatement(String keyword, Connection conn, Timestamp builtUntil) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.cubeUpdateStateStatement);
+            state.setString(1, keyword);
+            state.setTimestamp(2, builtUntil);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to get the creation time of the latest reply
+     * @param conn database connection object
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareLastReplyStatement(Connection conn) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.lastReplyStatement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to read the hourly counts of the replies matching a query
+     * @param query query keyword, empty for the counts of all replies
+     * @param conn database connection object
+     * @param start query start date
+     * @param end query end date
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareHistogramStatement(String query, Connection conn, String start, String end) {
+        PreparedStatement state = null;
+        try {
+            if (query.trim().isEmpty()) {
+                state = conn.prepareStatement(QueryStatement.histogramAllStatement);
+                state.setString(1, start);
+                state.setString(2, end);
+            } else {
+                state = conn.prepareStatement(QueryStatement.histogramStatement);
+                state.setString(1, query);
+                state.setString(2, start);
+                state.setString(3, end);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to count new replies into the term histogram
+     * @param all whether to count all replies under the empty term instead of per term
+     * @param conn database connection object
+     * @param start exclusive lower bound of the replies to count
+     * @param end inclusive upper bound of the replies to count
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareHistogramBuildStatement(boolean all, Connection conn, Timestamp start, Timestamp end) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(all ? QueryStatement.histogramBuildAllStatement : textSearch(QueryStatement.histogramBuildStatement));
+            state.setTimestamp(1, start);
+            state.setTimestamp(2, end);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to get how far the term histogram is built
+     * @param conn database connection object
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareHistogramStateStatement(Connection conn) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.histogramStateStatement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to record how far the term histogram is built
+     * @param conn database connection object
+     * @param builtUntil the creation time of the last counted reply
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareHistogramUpdateStateStatement(Connection conn, Timestamp builtUntil) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.histogramUpdateStateStatement);
+            state.setTimestamp(1, builtUntil);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to drop the counts of the term histogram in the hours replies were ingested into,
+     * up to how far it is built
+     * @param conn database connection object
+     * @param builtUntil the creation time of the last counted reply
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareHistogramRecountDeleteStatement(Connection conn, Timestamp builtUntil) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.histogramRecountDeleteStatement);
+            state.setTimestamp(1, builtUntil);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to count again into the term histogram the replies of the hours replies were ingested into,
+     * up to how far it is built
+     * @param all whether to count all replies under the empty term instead of each term
+     * @param conn database connection object
+     * @param builtUntil the creation time of the last counted reply
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareHistogramRecountStatement(boolean all, Connection conn, Timestamp builtUntil) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(all ? QueryStatement.histogramRecountAllStatement : textSearch(QueryStatement.histogramRecountStatement));
+            state.setTimestamp(1, builtUntil);
+            state.setTimestamp(2, builtUntil);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to drop the buckets of the edge cube of a keyword in the hours replies were ingested into,
+     * up to how far it is built
+     * @param keyword materialized keyword, empty for the unfiltered cube
+     * @param conn database connection object
+     * @param builtUntil the creation time of the last aggregated reply
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareCubeRecountDeleteStatement(String keyword, Connection conn, Timestamp builtUntil) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.cubeRecountDeleteStatement);
+            state.setString(1, keyword);
+            state.setTimestamp(2, builtUntil);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to aggregate again into the edge cube of a keyword the replies of the hours
+     * replies were ingested into, up to how far it is built
+     * @param keyword materialized keyword, empty for the unfiltered cube
+     * @param conn database connection object
+     * @param step grid step of the quantized points
+     * @param builtUntil the creation time of the last aggregated reply
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareCubeRecountStatement(String keyword, Connection conn, double step, Timestamp builtUntil) {
+        PreparedStatement state = null;
+        try {
+            if (keyword.isEmpty()) {
+                state = conn.prepareStatement(QueryStatement.cubeRecountAllStatement);
+                state.setDouble(1, step);
+                state.setTimestamp(2, builtUntil);
+                state.setTimestamp(3, builtUntil);
+            } else {
+                state = conn.prepareStatement(textSearch(QueryStatement.cubeRecountStatement));
+                state.setString(1, keyword);
+                state.setDouble(2, step);
+                state.setString(3, keyword);
+                state.setString(4, keyword);
+                state.setTimestamp(5, builtUntil);
+                state.setTimestamp(6, builtUntil);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to forget the hours replies were ingested into, once every aggregate counted them again
+     * @param conn database connection object
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareClearIngestedHoursStatement(Connection conn) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.clearIngestedHoursStatement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to create the staging table of the binary COPY of a connection,
+     * emptied when its transaction commits
+     * @param conn database connection object
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareStagingTableStatement(Connection conn) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.stagingTableStatement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to insert the staged replies that are not loaded yet,
+     * recording the hours they were ingested into
+     * @param conn database connection object
+     * @return constructed statement, returning the number of inserted replies
+     */
+    public static PreparedStatement prepareInsertStagedStatement(Connection conn) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.insertStagedRepliesStatement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Starts a binary COPY of replies into the staging table, in the column order of json_to_csv.py
+     * @param conn database connection object, busy until the copy is ended or cancelled
+     * @return the started copy
+     */
+    public static CopyIn prepareCopyIn(Connection conn) {
+        CopyIn copyIn = null;
+        try {
+            copyIn = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(QueryStatement.copyRepliesStatement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return copyIn;
+    }
+
+    /**
+     * Prepares the statement to create the partition of the replies of one month if it does not exist
+     * @param conn database connection object
+     * @param month first day of the month
+     * @return constructed statement
+     */
+    public static PreparedStatement preparePartitionStatement(Connection conn, LocalDate month) {
+        PreparedStatement state = null;
+        try {
+            LocalDate start = month.withDayOfMonth(1);
+            state = conn.prepareStatement(String.format(QueryStatement.partitionStatement,
+                    start.toString("yyyy_MM"), start.toString(), start.plusMonths(1).toString()));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to detach or attach back the default partition of the replies,
+     * detached while partitions are created for the ranges it holds rows of
+     * @param conn database connection object
+     * @param attach whether to attach it back
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareDefaultPartitionStatement(Connection conn, boolean attach) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(attach ? QueryStatement.attachDefaultPartitionStatement
+                    : QueryStatement.detachDefaultPartitionStatement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the statement to move the replies of the detached default partition in a range into the partitions of the range
+     * @param conn database connection object
+     * @param start first day of the range
+     * @param end day after the range
+     * @return constructed statement
+     */
+    public static PreparedStatement prepareMoveDefaultStatement(Connection conn, LocalDate start, LocalDate end) {
+        PreparedStatement state = null;
+        try {
+            state = conn.prepareStatement(QueryStatement.moveDefaultRepliesStatement);
+            state.setTimestamp(1, new Timestamp(start.toDate().getTime()));
+            state.setTimestamp(2, new Timestamp(end.toDate().getTime()));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return state;
+    }
+
 }
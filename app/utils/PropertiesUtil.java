@@ -22,6 +22,34 @@ public class PropertiesUtil {
     private static int initialDuration;
     private static long intervalMS;
     private static int fixedInterval;
+    private static boolean edgeCube;
+    private static double cubeQuantization;
+    private static boolean aggregationPushdown;
+    private static boolean aggregationSnap;
+    private static String dataset;
+    private static String drumPriorsFile;
+    private static boolean tsvectorColumns;
+    private static int ingestThreads;
+    private static int ingestBatchSize;
+    private static boolean ingestHistogram;
+    private static double samplingRelativeError;
+    private static String snapshotDir;
+    private static String precomputeQueries;
+    private static int precomputeHistory;
+    private static int precomputeHour;
+    private static boolean precomputeAtStartup;
+    private static double precomputeRadius;
+    private static int precomputeZoom;
+    private static String queryHistoryFile;
+    private static String spatialIndex;
+    private static String spatialIndexZooms;
+    private static int tileCacheSize;
+    private static String tileCacheDir;
+    private static boolean prefetch;
+    private static long prefetchBudgetMs;
+    private static int prefetchThreads;
+    private static int kmeansMaxIterations;
+    private static double kmeansTolerance;
 
     private static File configFile = new File("./conf/config.properties");
 
@@ -42,6 +70,35 @@ public class PropertiesUtil {
             initialDuration = Integer.parseInt(configProps.getProperty("initialDuration"));
             intervalMS = Long.parseLong(configProps.getProperty("intervalMS"));
             fixedInterval = Integer.parseInt(configProps.getProperty("fixedInterval"));
+            edgeCube = Boolean.parseBoolean(configProps.getProperty("edgeCube", "false"));
+            cubeQuantization = Double.parseDouble(configProps.getProperty("cubeQuantization", "0.001"));
+            aggregationPushdown = Boolean.parseBoolean(configProps.getProperty("aggregationPushdown", "false"));
+            aggregationSnap = Boolean.parseBoolean(configProps.getProperty("aggregationSnap", "false"));
+            dataset = configProps.getProperty("dataset", "replies");
+            drumPriorsFile = configProps.getProperty("drumPriorsFile", "./conf/drum_priors.properties");
+            tsvectorColumns = Boolean.parseBoolean(configProps.getProperty("tsvectorColumns", "false"));
+            ingestThreads = Integer.parseInt(configProps.getProperty("ingestThreads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            ingestBatchSize = Integer.parseInt(configProps.getProperty("ingestBatchSize", "100000"));
+            ingestHistogram = Boolean.parseBoolean(configProps.getProperty("ingestHistogram", "false"));
+            samplingRelativeError = Double.parseDouble(configProps.getProperty("samplingRelativeError", "0"));
+            snapshotDir = configProps.getProperty("snapshotDir", "");
+            precomputeQueries = configProps.getProperty("precomputeQueries", "");
+            precomputeHistory = Integer.parseInt(configProps.getProperty("precomputeHistory", "10"));
+            precomputeHour = Integer.parseInt(configProps.getProperty("precomputeHour", "3"));
+            precomputeAtStartup = Boolean.parseBoolean(configProps.getProperty("precomputeAtStartup", "false"));
+            precomputeRadius = Double.parseDouble(configProps.getProperty("precomputeRadius", "40"));
+            precomputeZoom = Integer.parseInt(configProps.getProperty("precomputeZoom", "3"));
+            queryHistoryFile = configProps.getProperty("queryHistoryFile", "./conf/query_history.properties");
+            spatialIndex = configProps.getProperty("spatialIndex", "kdtree");
+            spatialIndexZooms = configProps.getProperty("spatialIndexZooms", "");
+            tileCacheSize = Integer.parseInt(configProps.getProperty("tileCacheSize", "2000"));
+            tileCacheDir = configProps.getProperty("tileCacheDir", "");
+            prefetch = Boolean.parseBoolean(configProps.getProperty("prefetch", "false"));
+            prefetchBudgetMs = Long.parseLong(configProps.getProperty("prefetchBudgetMs", "10000"));
+            prefetchThreads = Integer.parseInt(configProps.getProperty("prefetchThreads", "1"));
+            kmeansMaxIterations = Integer.parseInt(configProps.getProperty("kmeansMaxIterations", "100"));
+            kmeansTolerance = Double.parseDouble(configProps.getProperty("kmeansTolerance", "1e-6"));
             inputStream.close();
         }
         catch (FileNotFoundException e) {
@@ -72,4 +129,116 @@ public class PropertiesUtil {
     public static long getIntervalMS() {
         return intervalMS;
     }
+
+    public static boolean isEdgeCube() {
+        return edgeCube;
+    }
+
+    public static double getCubeQuantization() {
+        return cubeQuantization;
+    }
+
+    public static boolean isAggregationPushdown() {
+        return aggregationPushdown;
+    }
+
+    public static boolean isAggregationSnap() {
+        return aggregationSnap;
+    }
+
+    public static String getDataset() {
+        return dataset;
+    }
+
+    public static String getDrumPriorsFile() {
+        return drumPriorsFile;
+    }
+
+    public static boolean isTsvectorColumns() {
+        return tsvectorColumns;
+    }
+
+    public static int getIngestThreads() {
+        return ingestThreads;
+    }
+
+    public static int getIngestBatchSize() {
+        return ingestBatchSize;
+    }
+
+    public static boolean isIngestHistogram() {
+        return ingestHistogram;
+    }
+
+    public static double getSamplingRelativeError() {
+        return samplingRelativeError;
+    }
+
+    public static String getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    public static String getPrecomputeQueries() {
+        return precomputeQueries;
+    }
+
+    public static int getPrecomputeHistory() {
+        return precomputeHistory;
+    }
+
+    public static int getPrecomputeHour() {
+        return precomputeHour;
+    }
+
+    public static boolean isPrecomputeAtStartup() {
+        return precomputeAtStartup;
+    }
+
+    public static double getPrecomputeRadius() {
+        return precomputeRadius;
+    }
+
+    public static int getPrecomputeZoom() {
+        return precomputeZoom;
+    }
+
+    public static String getQueryHistoryFile() {
+        return queryHistoryFile;
+    }
+
+    public static String getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    public static String getSpatialIndexZooms() {
+        return spatialIndexZooms;
+    }
+
+    public static int getTileCacheSize() {
+        return tileCacheSize;
+    }
+
+    public static String getTileCacheDir() {
+        return tileCacheDir;
+    }
+
+    public static boolean getPrefetch() {
+        return prefetch;
+    }
+
+    public static long getPrefetchBudgetMs() {
+        return prefetchBudgetMs;
+    }
+
+    public static int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+    public static int getKmeansMaxIterations() {
+        return kmeansMaxIterations;
+    }
+
+    public static double getKmeansTolerance() {
+        return kmeansTolerance;
+    }
 }
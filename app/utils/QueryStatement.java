@@ -21,5 +21,170 @@ class QueryStatement {
     static String fixedIntervalStatement = "select from_longitude, from_latitude, to_longitude, to_latitude "
             + "from replies_100k where from_create_at::timestamp > TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
             + "AND from_create_at::timestamp <= TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss');";
+    static String cubeStatement = "select from_longitude, from_latitude, to_longitude, to_latitude, sum(weight) as weight "
+            + "from edge_cube where keyword = ? "
+            + "AND bucket >= date_trunc('hour', TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss')::timestamp) "
+            + "AND bucket < date_trunc('hour', TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss')::timestamp) "
+            + "group by from_longitude, from_latitude, to_longitude, to_latitude;";
+    static String cubeBuildStatement = "insert into edge_cube "
+            + "(keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude, weight) "
+            + "select ?, date_trunc('hour', r.from_create_at::timestamp), "
+            + "round(r.from_longitude / q.step) * q.step, round(r.from_latitude / q.step) * q.step, "
+            + "round(r.to_longitude / q.step) * q.step, round(r.to_latitude / q.step) * q.step, count(*) "
+            + "from replies r, (select ?::double precision as step) q "
+            + "where ( to_tsvector('english', r.from_text) @@ to_tsquery( ? ) or "
+            + "to_tsvector('english', r.to_text) @@ to_tsquery( ? )) "
+            + "AND r.from_create_at::timestamp > ? AND r.from_create_at::timestamp <= ? "
+            + "group by 1, 2, 3, 4, 5, 6 "
+            + "on conflict (keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude) "
+            + "do update set weight = edge_cube.weight + excluded.weight;";
+    static String cubeBuildAllStatement = "insert into edge_cube "
+            + "(keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude, weight) "
+            + "select '', date_trunc('hour', r.from_create_at::timestamp), "
+            + "round(r.from_longitude / q.step) * q.step, round(r.from_latitude / q.step) * q.step, "
+            + "round(r.to_longitude / q.step) * q.step, round(r.to_latitude / q.step) * q.step, count(*) "
+            + "from replies r, (select ?::double precision as step) q "
+            + "where r.from_create_at::timestamp > ? AND r.from_create_at::timestamp <= ? "
+            + "group by 1, 2, 3, 4, 5, 6 "
+            + "on conflict (keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude) "
+            + "do update set weight = edge_cube.weight + excluded.weight;";
+    static String cubeStateStatement = "select keyword, built_until from edge_cube_state;";
+    static String cubeUpdateStateStatement = "insert into edge_cube_state (keyword, built_until) values ( ? , ? ) "
+            + "on conflict (keyword) do update set built_until = excluded.built_until;";
+    static String lastReplyStatement = "select max(from_create_at::timestamp) as last_reply from replies;";
+    static String groupedTweetsStatement = "select from_longitude, from_latitude, to_longitude, to_latitude, count(*) as weight "
+            + "from replies where ( to_tsvector('english', from_text) @@ to_tsquery( ? ) or "
+            + "to_tsvector('english', to_text) "
+            + "@@ to_tsquery( ? )) AND from_create_at::timestamp > TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
+            + "AND from_create_at::timestamp <= TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
+            + "group by from_longitude, from_latitude, to_longitude, to_latitude;";
+    static String snappedTweetsStatement = "select round(r.from_longitude / q.step) * q.step as from_longitude, "
+            + "degrees(2 * atan(exp(pi() * (1 - 2 * round(f.y / q.ystep) * q.ystep)))) - 90 as from_latitude, "
+            + "round(r.to_longitude / q.step) * q.step as to_longitude, "
+            + "degrees(2 * atan(exp(pi() * (1 - 2 * round(t.y / q.ystep) * q.ystep)))) - 90 as to_latitude, count(*) as weight "
+            + "from replies r, (select step, step / 360 as ystep from (select ?::double precision as step) s) q, "
+            + "lateral (select 0.5 - ln(tan(pi() / 4 + radians(least(85.0511287798, greatest(-85.0511287798, r.from_latitude))) / 2)) "
+            + "/ (2 * pi()) as y) f, "
+            + "lateral (select 0.5 - ln(tan(pi() / 4 + radians(least(85.0511287798, greatest(-85.0511287798, r.to_latitude))) / 2)) "
+            + "/ (2 * pi()) as y) t "
+            + "where ( to_tsvector('english', r.from_text) @@ to_tsquery( ? ) or "
+            + "to_tsvector('english', r.to_text) "
+            + "@@ to_tsquery( ? )) AND r.from_create_at::timestamp > TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
+            + "AND r.from_create_at::timestamp <= TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
+            + "group by 1, 2, 3, 4;";
+    static String spatialTweetsStatement = "select from_longitude, from_latitude, to_longitude, to_latitude "
+            + "from replies where ( to_tsvector('english', from_text) @@ to_tsquery( ? ) or "
+            + "to_tsvector('english', to_text) "
+            + "@@ to_tsquery( ? )) AND from_create_at::timestamp > TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
+            + "AND from_create_at::timestamp <= TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
+            + "AND (point(from_longitude, from_latitude) <@ box(point( ? , ? ), point( ? , ? )) "
+            + "or point(to_longitude, to_latitude) <@ box(point( ? , ? ), point( ? , ? )) "
+            + "or point(from_longitude, from_latitude) <@ box(point( ? , ? ), point( ? , ? )) "
+            + "or point(to_longitude, to_latitude) <@ box(point( ? , ? ), point( ? , ? )) "
+            + "or point(from_longitude, from_latitude) <@ box(point( ? , ? ), point( ? , ? )) "
+            + "or point(to_longitude, to_latitude) <@ box(point( ? , ? ), point( ? , ? )) "
+            + "or point(from_longitude, from_latitude) <@ box(point( ? , ? ), point( ? , ? )) "
+            + "or point(to_longitude, to_latitude) <@ box(point( ? , ? ), point( ? , ? ))) "
+            + "AND not (point(from_longitude, from_latitude) <@ box(point( ? , ? ), point( ? , ? )) "
+            + "or point(to_longitude, to_latitude) <@ box(point( ? , ? ), point( ? , ? )));";
+    static String histogramStatement = "select bucket, sum(cnt) as cnt from term_histogram "
+            + "where term in (select unnest(tsvector_to_array(to_tsvector('english', ? )))) "
+            + "AND bucket >= date_trunc('hour', TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss')::timestamp) "
+            + "AND bucket <= TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss')::timestamp "
+            + "group by bucket order by bucket;";
+    static String histogramAllStatement = "select bucket, cnt from term_histogram where term = '' "
+            + "AND bucket >= date_trunc('hour', TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss')::timestamp) "
+            + "AND bucket <= TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss')::timestamp "
+            + "order by bucket;";
+    static String histogramBuildStatement = "insert into term_histogram (term, bucket, cnt) "
+            + "select t.term, date_trunc('hour', r.from_create_at::timestamp), count(*) "
+            + "from replies r, unnest(tsvector_to_array(to_tsvector('english', r.from_text) "
+            + "|| to_tsvector('english', r.to_text))) as t(term) "
+            + "where r.from_create_at::timestamp > ? AND r.from_create_at::timestamp <= ? "
+            + "group by 1, 2 "
+            + "on conflict (term, bucket) do update set cnt = term_histogram.cnt + excluded.cnt;";
+    static String histogramBuildAllStatement = "insert into term_histogram (term, bucket, cnt) "
+            + "select '', date_trunc('hour', r.from_create_at::timestamp), count(*) "
+            + "from replies r where r.from_create_at::timestamp > ? AND r.from_create_at::timestamp <= ? "
+            + "group by 1, 2 "
+            + "on conflict (term, bucket) do update set cnt = term_histogram.cnt + excluded.cnt;";
+    static String histogramStateStatement = "select built_until from term_histogram_state where id = 1;";
+    static String histogramUpdateStateStatement = "insert into term_histogram_state (id, built_until) values (1, ? ) "
+            + "on conflict (id) do update set built_until = excluded.built_until;";
+    static String histogramRecountDeleteStatement = "delete from term_histogram "
+            + "where bucket in (select bucket from ingested_hours where bucket <= ? );";
+    static String histogramRecountStatement = "insert into term_histogram (term, bucket, cnt) "
+            + "select t.term, h.bucket, count(*) "
+            + "from ingested_hours h join replies r on date_trunc('hour', r.from_create_at::timestamp) = h.bucket, "
+            + "unnest(tsvector_to_array(to_tsvector('english', r.from_text) "
+            + "|| to_tsvector('english', r.to_text))) as t(term) "
+            + "where h.bucket <= ? AND r.from_create_at::timestamp <= ? "
+            + "group by 1, 2 "
+            + "on conflict (term, bucket) do update set cnt = term_histogram.cnt + excluded.cnt;";
+    static String histogramRecountAllStatement = "insert into term_histogram (term, bucket, cnt) "
+            + "select '', h.bucket, count(*) "
+            + "from ingested_hours h join replies r on date_trunc('hour', r.from_create_at::timestamp) = h.bucket "
+            + "where h.bucket <= ? AND r.from_create_at::timestamp <= ? "
+            + "group by 1, 2 "
+            + "on conflict (term, bucket) do update set cnt = term_histogram.cnt + excluded.cnt;";
+    static String cubeRecountDeleteStatement = "delete from edge_cube where keyword = ? "
+            + "AND bucket in (select bucket from ingested_hours where bucket <= ? );";
+    static String cubeRecountStatement = "insert into edge_cube "
+            + "(keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude, weight) "
+            + "select ?, h.bucket, "
+            + "round(r.from_longitude / q.step) * q.step, round(r.from_latitude / q.step) * q.step, "
+            + "round(r.to_longitude / q.step) * q.step, round(r.to_latitude / q.step) * q.step, count(*) "
+            + "from ingested_hours h join replies r on date_trunc('hour', r.from_create_at::timestamp) = h.bucket, "
+            + "(select ?::double precision as step) q "
+            + "where ( to_tsvector('english', r.from_text) @@ to_tsquery( ? ) or "
+            + "to_tsvector('english', r.to_text) @@ to_tsquery( ? )) "
+            + "AND h.bucket <= ? AND r.from_create_at::timestamp <= ? "
+            + "group by 1, 2, 3, 4, 5, 6 "
+            + "on conflict (keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude) "
+            + "do update set weight = edge_cube.weight + excluded.weight;";
+    static String cubeRecountAllStatement = "insert into edge_cube "
+            + "(keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude, weight) "
+            + "select '', h.bucket, "
+            + "round(r.from_longitude / q.step) * q.step, round(r.from_latitude / q.step) * q.step, "
+            + "round(r.to_longitude / q.step) * q.step, round(r.to_latitude / q.step) * q.step, count(*) "
+            + "from ingested_hours h join replies r on date_trunc('hour', r.from_create_at::timestamp) = h.bucket, "
+            + "(select ?::double precision as step) q "
+            + "where h.bucket <= ? AND r.from_create_at::timestamp <= ? "
+            + "group by 1, 2, 3, 4, 5, 6 "
+            + "on conflict (keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude) "
+            + "do update set weight = edge_cube.weight + excluded.weight;";
+    static String clearIngestedHoursStatement = "truncate ingested_hours;";
+    static String stagingTableStatement = "create temp table if not exists replies_staging (tweet_from bigint, "
+            + "from_create_at timestamp, from_text text, from_longitude double precision, from_latitude double precision, "
+            + "tweet_to bigint, to_create_at timestamp, to_text text, to_longitude double precision, "
+            + "to_latitude double precision) on commit delete rows;";
+    static String copyRepliesStatement = "COPY replies_staging (tweet_from, from_create_at, from_text, from_longitude, from_latitude, "
+            + "tweet_to, to_create_at, to_text, to_longitude, to_latitude) FROM STDIN (FORMAT binary);";
+    static String insertStagedRepliesStatement = "with inserted as (insert into replies (tweet_from, from_create_at, from_text, "
+            + "from_longitude, from_latitude, tweet_to, to_create_at, to_text, to_longitude, to_latitude) "
+            + "select tweet_from, from_create_at, from_text, from_longitude, from_latitude, "
+            + "tweet_to, to_create_at, to_text, to_longitude, to_latitude from replies_staging "
+            + "on conflict do nothing returning from_create_at), "
+            + "hours as (insert into ingested_hours (bucket) "
+            + "select distinct date_trunc('hour', from_create_at::timestamp) from inserted on conflict do nothing) "
+            + "select count(*) as inserted from inserted;";
+    static String partitionStatement = "create table if not exists replies_%s partition of replies "
+            + "for values from ('%s') to ('%s');";
+    static String detachDefaultPartitionStatement = "alter table replies detach partition replies_default;";
+    static String attachDefaultPartitionStatement = "alter table replies attach partition replies_default default;";
+    static String moveDefaultRepliesStatement = "with moved as (delete from replies_default "
+            + "where from_create_at >= ? AND from_create_at < ? "
+            + "returning tweet_from, from_create_at, from_text, from_longitude, from_latitude, "
+            + "tweet_to, to_create_at, to_text, to_longitude, to_latitude) "
+            + "insert into replies (tweet_from, from_create_at, from_text, from_longitude, from_latitude, "
+            + "tweet_to, to_create_at, to_text, to_longitude, to_latitude) "
+            + "select tweet_from, from_create_at, from_text, from_longitude, from_latitude, "
+            + "tweet_to, to_create_at, to_text, to_longitude, to_latitude from moved;";
+    static String sampleTweetsStatement = "select from_longitude, from_latitude, to_longitude, to_latitude "
+            + "from replies where ( to_tsvector('english', from_text) @@ to_tsquery( ? ) or "
+            + "to_tsvector('english', to_text) "
+            + "@@ to_tsquery( ? )) AND from_create_at::timestamp > TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
+            + "AND from_create_at::timestamp <= TO_TIMESTAMP( ? , 'yyyy-mm-dd\"T\"hh24:mi:ss') "
+            + "AND mod(hashint8(tweet_from)::bigint + 2147483648, 1000) >= ? "
+            + "AND mod(hashint8(tweet_from)::bigint + 2147483648, 1000) < ?;";
 }
-
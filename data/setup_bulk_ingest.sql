@@ -0,0 +1,53 @@
+#replies table partitioned by month with precomputed tsvector columns,
+#loaded by the bulk ingestion instead of json_to_csv.py and \copy:
+#sbt "runMain ingestion.BulkIngest user_id.json [more.json ...]"
+#the monthly partitions between firstDate and lastDate of conf/config.properties are created by the ingestion,
+#replies outside them go to the default partition, and are moved out of it once their month gets a partition,
+#replies already loaded are skipped
+#requires PostgreSQL 12 or later for generated columns,
+#then enable tsvectorColumns=true in conf/config.properties
+
+\c graphtweet
+
+DROP TABLE IF EXISTS replies;
+
+create table replies(
+tweet_from bigint not null,
+from_create_at timestamp not null,
+from_text text not null,
+from_longitude double precision,
+from_latitude double precision,
+tweet_to bigint not null,
+to_create_at timestamp not null,
+to_text text not null,
+to_longitude double precision,
+to_latitude double precision,
+from_tsv tsvector generated always as (to_tsvector('english', from_text)) stored,
+to_tsv tsvector generated always as (to_tsvector('english', to_text)) stored,
+PRIMARY KEY (tweet_from, from_create_at))
+partition by range (from_create_at);
+
+create table replies_default partition of replies default;
+
+#hours the ingestion inserted replies into, counted again by the term histogram and the edge cube
+#when they are refreshed after the ingestion, since backfilled replies are older than how far they are built
+DROP TABLE IF EXISTS ingested_hours;
+
+create table ingested_hours(
+bucket timestamp not null,
+PRIMARY KEY (bucket));
+
+#the indexes are created on every partition, including the ones created later by the ingestion,
+#for the first load of a large dump it is faster to create them after the ingestion
+create index replies_from_tsv on replies using gin(from_tsv);
+
+create index replies_to_tsv on replies using gin(to_tsv);
+
+create index replies_from_create_at on replies(from_create_at);
+
+#point indexes of the regions read by the viewport-first spatial slicer
+create index replies_from_point on replies using gist(point(from_longitude, from_latitude));
+
+create index replies_to_point on replies using gist(point(to_longitude, to_latitude));
+
+GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA public TO graphuser;
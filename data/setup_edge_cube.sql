@@ -0,0 +1,30 @@
+#pre-aggregated hourly edge cube read by the slicers,
+#run after setup_postgres_reply_tweets_graph.sql
+#then fill it with: sbt "runMain slicing.EdgeCube" (unfiltered)
+#or: sbt "runMain slicing.EdgeCube keyword1 keyword2" (materialized keywords)
+#and enable it with edgeCube=true in conf/config.properties
+
+\c graphtweet
+
+DROP TABLE IF EXISTS edge_cube;
+
+create table edge_cube(
+keyword text not null,
+bucket timestamp not null,
+from_longitude double precision not null,
+from_latitude double precision not null,
+to_longitude double precision not null,
+to_latitude double precision not null,
+weight integer not null,
+PRIMARY KEY (keyword, bucket, from_longitude, from_latitude, to_longitude, to_latitude));
+
+#keywords that are materialized in the cube and the creation time of the last aggregated reply,
+#the empty keyword is the unfiltered cube
+DROP TABLE IF EXISTS edge_cube_state;
+
+create table edge_cube_state(
+keyword text not null,
+built_until timestamp not null,
+PRIMARY KEY (keyword));
+
+GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA public TO graphuser;
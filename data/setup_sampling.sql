@@ -0,0 +1,9 @@
+#index of the sample buckets read by the sampling slicer,
+#run after setup_postgres_reply_tweets_graph.sql or setup_bulk_ingest.sql,
+#the number of buckets must match the sample statement and SamplingSlicer.BUCKETS
+
+\c graphtweet
+
+create index replies_sample_bucket on replies ((mod(hashint8(tweet_from)::bigint + 2147483648, 1000)));
+
+GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA public TO graphuser;
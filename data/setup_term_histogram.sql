@@ -0,0 +1,24 @@
+#per-term hourly count histogram read by the histogram slicer,
+#run after setup_postgres_reply_tweets_graph.sql
+#then fill or refresh it with: sbt "runMain slicing.TermHistogram"
+#the empty term counts all replies
+
+\c graphtweet
+
+DROP TABLE IF EXISTS term_histogram;
+
+create table term_histogram(
+term text not null,
+bucket timestamp not null,
+cnt integer not null,
+PRIMARY KEY (term, bucket));
+
+#creation time of the last reply counted in the histogram
+DROP TABLE IF EXISTS term_histogram_state;
+
+create table term_histogram_state(
+id integer not null,
+built_until timestamp not null,
+PRIMARY KEY (id));
+
+GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA public TO graphuser;
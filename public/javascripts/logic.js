@@ -84,11 +84,35 @@ function getBundlingAlgorithm() {
  const algorithms = {
         "FDEB": 0,
         "IFDEB": 1,
-        "FE": 2
+        "FE": 2,
+        "KDEEB": 3
     };
     return algorithms[document.getElementById("bundlingAlgo").value];
 }
 
+/**
+ * get the slicing algorithm of the progressive query
+ */
+function getSlicingAlgorithm() {
+    const algorithms = {
+        "DRUM": 0,
+        "Fixed": 1,
+        "Spatial": 2,
+        "Histogram": 3,
+        "Sampling": 4
+    };
+    return algorithms[document.getElementById("slicingAlgo").value];
+}
+
+/**
+ * get the time window to display, 0 when unset
+ * @param elementId id of the datetime input
+ */
+function getWindowTime(elementId) {
+    const value = document.getElementById(elementId).value;
+    return value ? Date.parse(value) : 0;
+}
+
 /**
  * get the choice for certain checkbox with id = elementId
  * @param elementId id of the target html element
@@ -115,12 +139,15 @@ function sendingRequest(zoom, newQuery) {
     if (zoom === undefined) zoom = previousBounds['currentZoom'];
     const clusteringAlgorithm = getClusteringAlgorithm();
     const bundlingAlgorithm = getBundlingAlgorithm();
+    const slicingAlgorithm = getSlicingAlgorithm();
     let clusteringControl = getChoice("cluster");
     let bundlingControl = getChoice("bundle");
     let cutControl = getChoice("treeCut");
     let pointStatus = getChoice("point");
     let edgeStatus = getChoice("edge");
     let radius = getRadiusOption();
+    let windowStart = getWindowTime("windowStart");
+    let windowEnd = getWindowTime("windowEnd");
     let sendingObj = {
         query: query,
         lowerLongitude: minLng,
@@ -129,6 +156,7 @@ function sendingRequest(zoom, newQuery) {
         upperLatitude: maxLat,
         clusteringAlgorithm: clusteringAlgorithm,
         bundlingAlgorithm: bundlingAlgorithm,
+        slicingAlgorithm: slicingAlgorithm,
         bundling: bundlingControl,
         treeCut: cutControl,
         clustering: clusteringControl,
@@ -136,7 +164,9 @@ function sendingRequest(zoom, newQuery) {
         pointStatus: pointStatus,
         edgeStatus: edgeStatus,
         newQuery: newQuery,
-        radius: radius
+        radius: radius,
+        windowStart: windowStart,
+        windowEnd: windowEnd
     };
     const sendingJSON = JSON.stringify(sendingObj);
     socket.send(sendingJSON);
@@ -214,7 +244,12 @@ function receiveClusterPoints(data) {
  * @param pointsJson the json containing points data
  */
 function updatePointsStats(pointsJson) {
-    document.getElementById('repliesCnt').innerHTML = "Reply Tweets Count: " + pointsJson['repliesCnt'] + " / 20,023,731";
+    let repliesCnt = pointsJson['repliesCnt'];
+    if (pointsJson['sampledFraction'] < 1) {
+        // estimated from a random sample, show the 95% confidence interval
+        repliesCnt = "~" + repliesCnt + " [" + pointsJson['repliesCntLower'] + ", " + pointsJson['repliesCntUpper'] + "]";
+    }
+    document.getElementById('repliesCnt').innerHTML = "Reply Tweets Count: " + repliesCnt + " / 20,023,731";
     document.getElementById('pointsCnt').innerHTML = "Points Count: " + pointsJson['pointsCnt'];
     document.getElementById('clustersCnt').innerHTML = "Clusters Count: " + pointsJson['clustersCnt'];
 }
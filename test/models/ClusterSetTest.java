@@ -0,0 +1,154 @@
+package models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterSetTest {
+
+    /**
+     * enough clusters that their probes collide in every table the set grows through
+     */
+    private static List<Cluster> clusters(int count) {
+        List<Cluster> clusters = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            clusters.add(new Cluster(new Point(i % 10, i / 10)));
+        }
+        return clusters;
+    }
+
+    @Test
+    public void addsEachClusterOnce() {
+        ClusterSet set = new ClusterSet();
+        List<Cluster> clusters = clusters(1000);
+        for (Cluster cluster : clusters) {
+            assertTrue(set.add(cluster));
+        }
+        for (Cluster cluster : clusters) {
+            assertFalse(set.add(cluster));
+            assertTrue(set.contains(cluster));
+        }
+        assertEquals(1000, set.size());
+    }
+
+    @Test
+    public void comparesClustersByIdentity() {
+        ClusterSet set = new ClusterSet();
+        Cluster cluster = new Cluster(new Point(1, 2));
+        Cluster same = new Cluster(new Point(1, 2));
+        set.add(cluster);
+        assertFalse(set.contains(same));
+        assertTrue(set.add(same));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void findsClustersProbedPastRemovedOnes() {
+        ClusterSet set = new ClusterSet();
+        List<Cluster> clusters = clusters(1000);
+        set.addAll(clusters);
+        for (int i = 0; i < clusters.size(); i += 2) {
+            assertTrue(set.remove(clusters.get(i)));
+            assertFalse(set.remove(clusters.get(i)));
+        }
+        assertEquals(500, set.size());
+        for (int i = 0; i < clusters.size(); i++) {
+            assertEquals(i % 2 == 1, set.contains(clusters.get(i)));
+        }
+        // the removed slots are reused
+        for (int i = 0; i < clusters.size(); i += 2) {
+            assertTrue(set.add(clusters.get(i)));
+        }
+        assertEquals(1000, set.size());
+        for (Cluster cluster : clusters) {
+            assertTrue(set.contains(cluster));
+        }
+    }
+
+    @Test
+    public void rehashesWhenRemovedSlotsFillTheTable() {
+        ClusterSet set = new ClusterSet();
+        List<Cluster> kept = clusters(100);
+        set.addAll(kept);
+        for (Cluster cluster : clusters(10000)) {
+            set.add(cluster);
+            set.remove(cluster);
+        }
+        assertEquals(100, set.size());
+        for (Cluster cluster : kept) {
+            assertTrue(set.contains(cluster));
+        }
+    }
+
+    @Test
+    public void iteratesOverEveryClusterOnce() {
+        ClusterSet set = new ClusterSet();
+        List<Cluster> clusters = clusters(300);
+        set.addAll(clusters);
+        Set<Cluster> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Cluster cluster : set) {
+            assertTrue(seen.add(cluster));
+        }
+        assertEquals(300, seen.size());
+    }
+
+    @Test
+    public void removesThroughTheIterator() {
+        ClusterSet set = new ClusterSet();
+        List<Cluster> clusters = clusters(300);
+        set.addAll(clusters);
+        for (Iterator<Cluster> iterator = set.iterator(); iterator.hasNext(); ) {
+            Cluster cluster = iterator.next();
+            if (clusters.indexOf(cluster) % 3 == 0)
+                iterator.remove();
+        }
+        assertEquals(200, set.size());
+        for (int i = 0; i < clusters.size(); i++) {
+            assertEquals(i % 3 != 0, set.contains(clusters.get(i)));
+        }
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void failsWhenModifiedWhileIterating() {
+        ClusterSet set = new ClusterSet();
+        set.addAll(clusters(10));
+        for (Cluster ignored : set) {
+            set.add(new Cluster(new Point(0, 0)));
+        }
+    }
+
+    @Test
+    public void clears() {
+        ClusterSet set = new ClusterSet();
+        List<Cluster> clusters = clusters(100);
+        set.addAll(clusters);
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(clusters.get(0)));
+        assertTrue(set.add(clusters.get(0)));
+    }
+
+    @Test
+    public void comparesTheOverlapToTheSmallerSet() {
+        List<Cluster> clusters = clusters(100);
+        ClusterSet small = new ClusterSet();
+        ClusterSet large = new ClusterSet();
+        small.addAll(clusters.subList(0, 10));
+        large.addAll(clusters.subList(4, 100));
+        // 6 of the 10 clusters of the smaller set are common
+        assertTrue(small.overlapsMoreThan(large, 0.5));
+        assertTrue(large.overlapsMoreThan(small, 0.5));
+        assertFalse(small.overlapsMoreThan(large, 0.6));
+        assertFalse(new ClusterSet().overlapsMoreThan(large, 0));
+    }
+}
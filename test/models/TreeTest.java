@@ -0,0 +1,139 @@
+package models;
+
+import edgeBundling.ForceBundling;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TreeTest {
+
+    private static Edge edge(double fromX, double fromY, double toX, double toY) {
+        return new Edge(new Point(fromX, fromY), new Point(toX, toY));
+    }
+
+    /**
+     * a short edge at a random position and a direction close to the horizontal, among groups of edges apart from each other
+     */
+    private static Edge randomEdge(Random random) {
+        double x = 0.1 + 0.2 * random.nextInt(4) + random.nextDouble() * 0.02;
+        double y = 0.1 + 0.2 * random.nextInt(4) + random.nextDouble() * 0.02;
+        double length = 0.01 + random.nextDouble() * 0.04;
+        double angle = (random.nextDouble() - 0.5) * Math.PI / 4;
+        return edge(x, y, x + length * Math.cos(angle), y + length * Math.sin(angle));
+    }
+
+    private static Tree.Node leaf(Tree tree, Edge edge) {
+        for (Tree.Node leaf : tree.getLeaves()) {
+            if (leaf.equals(edge))
+                return leaf;
+        }
+        return null;
+    }
+
+    @Test
+    public void filtersTheEdgesAlreadyLeaves() {
+        Tree tree = new Tree();
+        tree.insert(edge(0.1, 0.1, 0.2, 0.2), Arrays.asList(edge(0.1, 0.1, 0.2, 0.2), edge(0.1, 0.1, 0.2, 0.21)));
+        List<Edge> edges = new ArrayList<>(Arrays.asList(edge(0.2, 0.21, 0.1, 0.1), edge(0.3, 0.3, 0.4, 0.4)));
+        tree.filter(edges);
+        // an edge is a leaf in either direction
+        assertEquals(Collections.singletonList(edge(0.3, 0.3, 0.4, 0.4)), edges);
+        assertEquals(2, leaf(tree, edge(0.1, 0.1, 0.2, 0.21)).getWeight());
+        assertEquals(1, leaf(tree, edge(0.1, 0.1, 0.2, 0.2)).getWeight());
+    }
+
+    @Test
+    public void countsTheLeavesInsertedAgain() {
+        Tree tree = new Tree();
+        tree.insert(edge(0.1, 0.1, 0.2, 0.2), Collections.singletonList(edge(0.1, 0.1, 0.2, 0.2)));
+        tree.insert(edge(0.1, 0.1, 0.2, 0.2), Collections.singletonList(edge(0.1, 0.1, 0.2, 0.2)));
+        assertEquals(1, tree.getLeaves().size());
+        assertEquals(2, tree.getLeaves().get(0).getWeight());
+    }
+
+    @Test
+    public void findsTheLeavesWhoseEndpointsMoved() {
+        Tree tree = new Tree();
+        Point from = new Point(0.1, 0.1);
+        Point to = new Point(0.2, 0.2);
+        tree.insert(edge(0.1, 0.1, 0.2, 0.2), Collections.singletonList(new Edge(from, to)));
+        // the endpoint moves after the leaf was indexed, as the clusters of the edges do
+        from.setX(0.15);
+        List<Edge> edges = new ArrayList<>(Collections.singletonList(new Edge(from, to)));
+        tree.filter(edges);
+        assertTrue(edges.isEmpty());
+        assertEquals(2, tree.getLeaves().get(0).getWeight());
+        // the leaf is indexed again at its new endpoints
+        edges.add(edge(0.15, 0.1, 0.2, 0.2));
+        tree.filter(edges);
+        assertTrue(edges.isEmpty());
+        assertEquals(3, tree.getLeaves().get(0).getWeight());
+    }
+
+    @Test
+    public void keepsTheCopyOfASplitLeafApartFromTheOriginal() {
+        Random random = new Random(0);
+        Tree tree = new Tree();
+        Edge original = edge(0.9, 0.9, 0.92, 0.9);
+        tree.insert(original, Collections.singletonList(edge(0.9, 0.9, 0.92, 0.9)));
+        // grow the tree away from the original until every insert merges the inserted node into a sibling
+        while (tree.size() < 16400) {
+            Edge edge = randomEdge(random);
+            tree.insert(edge, Collections.singletonList(new Edge(new Point(edge.getFromPoint()), new Point(edge.getToPoint()))));
+        }
+        assertTrue(tree.isIndexConsistent());
+        // the same edge splits the original, whose copy has the same endpoints, then is merged into the copy
+        tree.insert(edge(0.9, 0.9, 0.92, 0.9), Collections.singletonList(edge(0.9, 0.9, 0.92, 0.91)));
+        assertTrue(tree.isIndexConsistent());
+    }
+
+    @Test
+    public void insertsUnderTheMostCompatibleNode() {
+        ForceBundling fb = new ForceBundling();
+        int explored = 0;
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            Tree tree = new Tree();
+            List<Edge> leaves = new ArrayList<>();
+            // fill the first level of the tree, then every insert searches it
+            for (int i = 0; i < 50; i++) {
+                Edge edge = randomEdge(random);
+                Edge leaf = new Edge(new Point(edge.getFromPoint()), new Point(edge.getToPoint()));
+                leaves.add(leaf);
+                tree.insert(edge, Collections.singletonList(leaf));
+            }
+            List<Tree.Node> nodes = new ArrayList<>();
+            for (Edge leaf : leaves) {
+                nodes.add(leaf(tree, leaf).getParent());
+            }
+            Edge edge = randomEdge(random);
+            // the scores before the insert, which moves the parent towards the inserted node
+            double[] scores = new double[nodes.size()];
+            double best = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                scores[i] = fb.compatibilityScore(nodes.get(i), edge);
+                best = Math.max(best, scores[i]);
+            }
+            Edge leaf = new Edge(new Point(edge.getFromPoint()), new Point(edge.getToPoint()));
+            explored += tree.insert(edge, Collections.singletonList(leaf));
+            // the parent of the inserted node scored as high as any node of the first level
+            Tree.Node parent = leaf(tree, leaf).getParent().getParent();
+            int index = -1;
+            for (int i = 0; i < nodes.size(); i++) {
+                if (nodes.get(i) == parent)
+                    index = i;
+            }
+            assertTrue(index >= 0);
+            assertEquals(best, scores[index], 0);
+        }
+        // the groups of edges far from the inserted one are not scored
+        assertTrue(explored < 20 * 50 / 2);
+    }
+}